@@ -0,0 +1,55 @@
+package edu.berkeley.cs162;
+
+/**
+ * Fills a KVCache of each entry layout and reports the heap it retains per entry, for
+ * a few value sizes. Heap use is measured as the difference in used memory after
+ * System.gc(), so run it with a fixed heap (e.g. -Xms1g -Xmx1g) for stable numbers.
+ *
+ * Run with: ant bench -Dbench=edu.berkeley.cs162.CacheFootprintBenchmark
+ */
+public final class CacheFootprintBenchmark {
+
+    private static final int NUM_SETS = 64;
+    private static final int MAX_ELEMS_PER_SET = 1024;
+    /** Keys do not spread evenly over the sets, so leave room to avoid evictions. */
+    private static final int NUM_ENTRIES = NUM_SETS * MAX_ELEMS_PER_SET / 2;
+    private static final int[] VALUE_SIZES = {16, 128, 1024};
+
+    public static void main(String[] args) {
+        System.out.println("value bytes\tlayout\tbytes/entry\toverhead/entry");
+        for (final int valueSize : VALUE_SIZES) {
+            for (final KVCache.EntryLayout layout : KVCache.EntryLayout.values()) {
+                run(valueSize, layout);
+            }
+        }
+    }
+
+    private static void run(final int valueSize, final KVCache.EntryLayout layout) {
+        final StringBuilder value = new StringBuilder(valueSize);
+        for (int i = 0; i < valueSize; ++i) {
+            value.append((char) ('a' + i % 26));
+        }
+        final long before = usedHeap();
+        KVCache cache = new KVCache(NUM_SETS, MAX_ELEMS_PER_SET, KVCache.EvictionPolicyType.CLOCK, layout);
+        for (int i = 0; i < NUM_ENTRIES; ++i) {
+            // a fresh copy each time, as values read from the network or the store would be
+            cache.put("key" + i, value.toString());
+        }
+        final long after = usedHeap();
+        if (cache.getEvictionCount() != 0) throw new AssertionError("entries were evicted");
+        cache = null;
+
+        final long perEntry = (after - before) / NUM_ENTRIES;
+        // a key such as "key12345" and the value as raw ASCII bytes
+        final long payload = 8 + valueSize;
+        System.out.println(valueSize + "\t" + layout + "\t" + perEntry + "\t" + (perEntry - payload));
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,85 @@
+package edu.berkeley.cs162;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+/**
+ * Replays synthetic key traces against each eviction policy and reports the hit ratio.
+ * Every miss is followed by a put, as KVServer.get does when it reads through to the store.
+ *
+ * Traces:
+ *  - zipf: keys drawn from a Zipfian distribution (s = 0.99).
+ *  - zipf+scan: the same, but every so often a scan of one-off keys runs through the cache.
+ *
+ * Run with: ant bench -Dbench=edu.berkeley.cs162.EvictionPolicyBenchmark
+ */
+public final class EvictionPolicyBenchmark {
+
+    private static final int NUM_SETS = 16;
+    private static final int MAX_ELEMS_PER_SET = 64;
+    private static final int NUM_KEYS = 50000;
+    private static final int TRACE_LENGTH = 1000000;
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    /** In the scan trace, a scan of SCAN_LENGTH unique keys starts every SCAN_PERIOD requests. */
+    private static final int SCAN_PERIOD = 10000;
+    private static final int SCAN_LENGTH = 2000;
+
+    public static void main(String[] args) {
+        final String[] zipf = zipfTrace(new Random(162), false);
+        final String[] scan = zipfTrace(new Random(162), true);
+
+        System.out.println("policy\tzipf\tzipf+scan");
+        for (final KVCache.EvictionPolicyType type : KVCache.EvictionPolicyType.values()) {
+            System.out.printf("%s\t%.4f\t%.4f%n", type, hitRatio(type, zipf), hitRatio(type, scan));
+        }
+    }
+
+    private static double hitRatio(final KVCache.EvictionPolicyType type, final String[] trace) {
+        final KVCache.CacheSet[] sets = new KVCache.CacheSet[NUM_SETS];
+        for (int i = 0; i < NUM_SETS; ++i) {
+            sets[i] = new KVCache.CacheSet(i, MAX_ELEMS_PER_SET, type);
+        }
+
+        long hits = 0;
+        for (final String key : trace) {
+            final KVCache.CacheSet set = sets[Math.abs(key.hashCode() % NUM_SETS)];
+            if (set.get(key) != null) {
+                ++hits;
+            } else {
+                final WriteLock lock = set.getWriteLock();
+                lock.lock();
+                try {
+                    set.put(key, key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    private static String[] zipfTrace(final Random random, final boolean withScans) {
+        // cumulative distribution of the Zipfian ranks, sampled by binary search
+        final double[] cdf = new double[NUM_KEYS];
+        double sum = 0;
+        for (int rank = 1; rank <= NUM_KEYS; ++rank) {
+            sum += 1.0 / Math.pow(rank, ZIPF_EXPONENT);
+            cdf[rank - 1] = sum;
+        }
+
+        final String[] trace = new String[TRACE_LENGTH];
+        int scanKey = 0;
+        for (int i = 0; i < TRACE_LENGTH; ++i) {
+            if (withScans && i % SCAN_PERIOD < SCAN_LENGTH) {
+                trace[i] = "scan" + scanKey++;
+            } else {
+                int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                if (rank < 0) rank = -rank - 1;
+                trace[i] = "key" + rank;
+            }
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,97 @@
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+/**
+ * Measures read throughput on a single hot CacheSet as the number of reader threads grows.
+ * Compares the old read path, which held the set's write lock for every get, with the
+ * optimistic read path. The workload is 95% gets and 5% puts.
+ *
+ * Run with: ant bench -Dbench=edu.berkeley.cs162.KVCacheContentionBenchmark
+ */
+public final class KVCacheContentionBenchmark {
+
+    private static final int SET_SIZE = 64;
+    private static final int WRITE_PERCENT = 5;
+    private static final long RUN_MILLIS = 1000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("threads\tlocked ops/s\toptimistic ops/s");
+        for (final int numThreads : THREAD_COUNTS) {
+            final long locked = run(numThreads, true);
+            final long optimistic = run(numThreads, false);
+            System.out.println(numThreads + "\t" + locked + "\t" + optimistic);
+        }
+    }
+
+    private static long run(final int numThreads, final boolean lockReads) throws Exception {
+        final KVCache.CacheSet set = new KVCache.CacheSet(0, SET_SIZE);
+        final String[] keys = new String[SET_SIZE];
+        final WriteLock writeLock = set.getWriteLock();
+        writeLock.lock();
+        try {
+            for (int i = 0; i < SET_SIZE; ++i) {
+                keys[i] = "key" + i;
+                set.put(keys[i], "value" + i);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong totalOps = new AtomicLong();
+        final CountDownLatch started = new CountDownLatch(numThreads);
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < numThreads; ++t) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long ops = 0;
+                    started.countDown();
+                    while (running.get()) {
+                        final String key = keys[random.nextInt(SET_SIZE)];
+                        if (random.nextInt(100) < WRITE_PERCENT) {
+                            writeLock.lock();
+                            try {
+                                set.put(key, key);
+                            } finally {
+                                writeLock.unlock();
+                            }
+                        } else if (lockReads) {
+                            writeLock.lock();
+                            try {
+                                set.get(key);
+                            } finally {
+                                writeLock.unlock();
+                            }
+                        } else {
+                            set.get(key);
+                        }
+                        ++ops;
+                    }
+                    totalOps.addAndGet(ops);
+                }
+            }));
+        }
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        started.await();
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return totalOps.get() * 1000 / RUN_MILLIS;
+    }
+}
@@ -0,0 +1,159 @@
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares KVClientHandler's POOLED and VIRTUAL_THREADS execution modes under a growing
+ * number of concurrent clients. Each client holds one persistent BINARY connection and
+ * runs 90% gets and 10% puts over a small, cached key set until time is up. In POOLED mode
+ * a connection keeps its pool thread, so clients beyond the pool size wait in the queue
+ * or are turned away with "Server busy".
+ *
+ * Client threads are virtual where the JVM supports them. On older JVMs, which includes
+ * the JDK 8 the project needs for JAXB, no virtual threads are measured at all: the
+ * clients are platform threads, and the VIRTUAL_THREADS server falls back to a pool of
+ * KVClientHandler.FALLBACK_THREADS platform threads, so both rows are pooled servers of
+ * different sizes. The output says so. The largest client counts then need "ulimit -n"
+ * and "ulimit -u" above the count.
+ *
+ * Run with: ant bench -Dbench=edu.berkeley.cs162.KVClientHandlerLoadBenchmark
+ * (pass client counts as arguments to replace the default 10 100 10000)
+ */
+public final class KVClientHandlerLoadBenchmark {
+
+    private static final String HOSTNAME = "localhost";
+    private static final int PORT = 8090;
+    private static final int NUM_KEYS = 100;
+    private static final int WRITE_PERCENT = 10;
+    private static final long RUN_MILLIS = 1000;
+    private static final int[] CLIENT_COUNTS = {10, 100, 10000};
+
+    public static void main(String[] args) throws Exception {
+        int[] clientCounts = CLIENT_COUNTS;
+        if (args.length > 0) {
+            clientCounts = new int[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                clientCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("virtual threads supported: " + VirtualThreads.isSupported());
+        if (!VirtualThreads.isSupported()) {
+            System.out.println("only platform threads are measured: VIRTUAL_THREADS runs on a pool of "
+                    + KVClientHandler.FALLBACK_THREADS + " platform threads");
+        }
+        System.out.println("clients\tmode\tops/s\tmean us/op\tmax us/op\tbusy\terrors");
+        for (final int numClients : clientCounts) {
+            for (final KVClientHandler.ExecutionMode mode : KVClientHandler.ExecutionMode.values()) {
+                run(numClients, mode);
+            }
+        }
+    }
+
+    private static void run(final int numClients, final KVClientHandler.ExecutionMode mode) throws Exception {
+        final KVServer kvServer = new KVServer(100, 10);
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            kvServer.put("key" + i, "value" + i);
+        }
+        final SocketServer socketServer = new SocketServer(HOSTNAME, PORT);
+        socketServer.addHandler(new KVClientHandler(kvServer, mode));
+        socketServer.connect();
+        final Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socketServer.run();
+                } catch (final Exception e) {
+                    // stopped
+                }
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        final AtomicLong totalOps = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong busy = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch ready = new CountDownLatch(numClients);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numClients);
+        final long[] deadline = new long[1];
+        final ThreadFactory factory = VirtualThreads.newFactory("bench-client");
+        final List<Thread> clients = new ArrayList<Thread>(numClients);
+
+        for (int c = 0; c < numClients; ++c) {
+            final Thread t = factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    final KVClient client = new KVClient(HOSTNAME, PORT, KVMessage.WireFormat.BINARY);
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long ops = 0;
+                    long nanos = 0;
+                    long max = 0;
+                    try {
+                        ready.countDown();
+                        go.await();
+                        long now = System.nanoTime();
+                        while (now < deadline[0]) {
+                            final String key = "key" + random.nextInt(NUM_KEYS);
+                            try {
+                                if (random.nextInt(100) < WRITE_PERCENT) {
+                                    client.put(key, "value");
+                                } else {
+                                    client.get(key);
+                                }
+                            } catch (final KVException e) {
+                                if (KVMessage.ResponseType.SERVER_BUSY.toString().equals(e.getMsg().getMessage())) {
+                                    busy.incrementAndGet();
+                                } else {
+                                    errors.incrementAndGet();
+                                }
+                                break;
+                            }
+                            final long end = System.nanoTime();
+                            if (end <= deadline[0]) {
+                                ++ops;
+                                nanos += end - now;
+                                max = Math.max(max, end - now);
+                            }
+                            now = end;
+                        }
+                    } catch (final InterruptedException e) {
+                        // give up
+                    } finally {
+                        client.close();
+                        totalOps.addAndGet(ops);
+                        totalNanos.addAndGet(nanos);
+                        long seen;
+                        while ((seen = maxNanos.get()) < max && !maxNanos.compareAndSet(seen, max)) {
+                            // retry
+                        }
+                        done.countDown();
+                    }
+                }
+            });
+            clients.add(t);
+            t.start();
+        }
+
+        ready.await();
+        deadline[0] = System.nanoTime() + RUN_MILLIS * 1000000L;
+        go.countDown();
+        done.await();
+        socketServer.stop();
+
+        final long ops = totalOps.get();
+        final String label = mode == KVClientHandler.ExecutionMode.VIRTUAL_THREADS && !VirtualThreads.isSupported()
+                ? mode + "(platform pool)"
+                : mode.toString();
+        System.out.println(numClients + "\t" + label + "\t" + ops * 1000 / RUN_MILLIS + "\t"
+                + (ops == 0 ? 0 : totalNanos.get() / ops / 1000) + "\t" + maxNanos.get() / 1000 + "\t"
+                + busy.get() + "\t" + errors.get());
+    }
+}
@@ -0,0 +1,65 @@
+package edu.berkeley.cs162;
+
+/**
+ * Compares the XML and BINARY wire formats of KVMessage: time to encode and decode a
+ * get response, and its size on the wire, for a range of value sizes.
+ *
+ * Run with: ant bench -Dbench=edu.berkeley.cs162.KVMessageCodecBenchmark
+ */
+public final class KVMessageCodecBenchmark {
+
+    private static final int[] VALUE_SIZES = {16, 1024, 16 * 1024, 256 * 1024};
+    private static final long RUN_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("value bytes\tformat\tframe bytes\tencode ns/op\tdecode ns/op");
+        for (final int size : VALUE_SIZES) {
+            final KVMessage msg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+            msg.setKey("benchmark-key");
+            msg.setValue(makeValue(size));
+            for (final KVMessage.WireFormat format : KVMessage.WireFormat.values()) {
+                final byte[] encoded = format.encode(msg);
+                // warm up, then measure
+                encodeNanos(format, msg);
+                decodeNanos(format, encoded);
+                System.out.println(size + "\t" + format + "\t" + encoded.length + "\t"
+                        + encodeNanos(format, msg) + "\t" + decodeNanos(format, encoded));
+            }
+        }
+    }
+
+    /**
+     * Mostly plain text, with some characters XML has to escape.
+     */
+    private static String makeValue(final int size) {
+        final StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; ++i) {
+            sb.append(i % 50 == 0 ? '&' : (char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    private static long encodeNanos(final KVMessage.WireFormat format, final KVMessage msg) throws KVException {
+        final long start = System.nanoTime();
+        final long end = start + RUN_MILLIS * 1000000L;
+        long ops = 0;
+        long now;
+        do {
+            format.encode(msg);
+            ++ops;
+        } while ((now = System.nanoTime()) < end);
+        return (now - start) / ops;
+    }
+
+    private static long decodeNanos(final KVMessage.WireFormat format, final byte[] encoded) throws KVException {
+        final long start = System.nanoTime();
+        final long end = start + RUN_MILLIS * 1000000L;
+        long ops = 0;
+        long now;
+        do {
+            format.decode(encoded);
+            ++ops;
+        } while ((now = System.nanoTime()) < end);
+        return (now - start) / ops;
+    }
+}
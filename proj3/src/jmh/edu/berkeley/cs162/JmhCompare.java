@@ -0,0 +1,198 @@
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prints each benchmark of a JMH JSON result file next to its score in a baseline file,
+ * with the change in percent. Positive changes are better: for throughput benchmarks the
+ * score went up, for average-time benchmarks it went down.
+ *
+ * Usage: JmhCompare baseline.json result.json (ant jmh runs it when the baseline exists)
+ */
+public final class JmhCompare {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: JmhCompare baseline.json result.json");
+            System.exit(2);
+        }
+        final Map<String, Score> baseline = read(args[0]);
+        final Map<String, Score> result = read(args[1]);
+        System.out.println("benchmark\tunit\tbaseline\tcurrent\tchange %");
+        for (final Map.Entry<String, Score> entry : result.entrySet()) {
+            final Score current = entry.getValue();
+            final Score before = baseline.get(entry.getKey());
+            if (before == null || !before.unit.equals(current.unit)) {
+                System.out.println(entry.getKey() + "\t" + current.unit + "\t-\t"
+                        + format(current.score) + "\t-");
+                continue;
+            }
+            // a throughput is better higher, a time per operation lower
+            final double gain = current.unit.startsWith("ops/")
+                    ? current.score - before.score : before.score - current.score;
+            final double change = gain / before.score * 100;
+            System.out.println(entry.getKey() + "\t" + current.unit + "\t" + format(before.score) + "\t"
+                    + format(current.score) + "\t" + String.format("%+.1f", change));
+        }
+    }
+
+    private static String format(final double score) {
+        return String.format("%.3f", score);
+    }
+
+    private static final class Score {
+        final double score;
+        final String unit;
+
+        Score(final double score, final String unit) {
+            this.score = score;
+            this.unit = unit;
+        }
+    }
+
+    /**
+     * @return the primary score of every benchmark in the file, keyed by the benchmark
+     * name followed by its parameters.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Score> read(final String fileName) throws IOException {
+        final String json = new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8);
+        final Map<String, Score> scores = new LinkedHashMap<String, Score>();
+        for (final Object run : (List<Object>) new JsonReader(json).read()) {
+            final Map<String, Object> fields = (Map<String, Object>) run;
+            final StringBuilder name = new StringBuilder((String) fields.get("benchmark"));
+            final Map<String, Object> params = (Map<String, Object>) fields.get("params");
+            if (params != null) {
+                for (final Map.Entry<String, Object> param : params.entrySet()) {
+                    name.append(' ').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            final Map<String, Object> metric = (Map<String, Object>) fields.get("primaryMetric");
+            scores.put(name.toString(), new Score((Double) metric.get("score"), (String) metric.get("scoreUnit")));
+        }
+        return scores;
+    }
+
+    /**
+     * Just enough of a JSON parser for JMH's output: objects become LinkedHashMaps,
+     * arrays ArrayLists, and numbers Doubles.
+     */
+    private static final class JsonReader {
+        private final String s;
+        private int pos;
+
+        JsonReader(final String s) {
+            this.s = s;
+        }
+
+        Object read() throws IOException {
+            skipSpace();
+            if (pos >= s.length()) {
+                throw new IOException("Unexpected end of JSON");
+            }
+            final char c = s.charAt(pos);
+            if (c == '{') {
+                final Map<String, Object> map = new LinkedHashMap<String, Object>();
+                ++pos;
+                if (!consume('}')) {
+                    do {
+                        skipSpace();
+                        final String key = readString();
+                        expect(':');
+                        map.put(key, read());
+                    } while (consume(','));
+                    expect('}');
+                }
+                return map;
+            } else if (c == '[') {
+                final List<Object> list = new ArrayList<Object>();
+                ++pos;
+                if (!consume(']')) {
+                    do {
+                        list.add(read());
+                    } while (consume(','));
+                    expect(']');
+                }
+                return list;
+            } else if (c == '"') {
+                return readString();
+            } else if (s.startsWith("true", pos)) {
+                pos += 4;
+                return Boolean.TRUE;
+            } else if (s.startsWith("false", pos)) {
+                pos += 5;
+                return Boolean.FALSE;
+            } else if (s.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            }
+            final int start = pos;
+            while (pos < s.length() && "+-.0123456789eE".indexOf(s.charAt(pos)) >= 0) {
+                ++pos;
+            }
+            try {
+                return Double.valueOf(s.substring(start, pos));
+            } catch (final NumberFormatException e) {
+                // JMH writes NaN scores as strings, so anything else is malformed
+                throw new IOException("Malformed JSON at offset " + start);
+            }
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            final StringBuilder sb = new StringBuilder();
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c == '\\') {
+                    c = s.charAt(pos++);
+                    switch (c) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: sb.append(c);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+            throw new IOException("Unterminated JSON string");
+        }
+
+        private void skipSpace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                ++pos;
+            }
+        }
+
+        private boolean consume(final char c) {
+            skipSpace();
+            if (pos < s.length() && s.charAt(pos) == c) {
+                ++pos;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(final char c) throws IOException {
+            if (!consume(c)) {
+                throw new IOException("Expected '" + c + "' at offset " + pos);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package edu.berkeley.cs162;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * KVCache get and put throughput, from one thread and from four, as the same capacity
+ * is split into more sets, with both entry layouts. Every key is cached, so gets always hit; puts replace a
+ * cached value under the set's write lock, the way KVServer does.
+ *
+ * Run with: ant jmh -Djmh.include=KVCacheJmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class KVCacheJmh {
+
+    private static final int CAPACITY = 4096;
+    private static final int NUM_KEYS = CAPACITY / 2;
+
+    @Param({"1", "16", "256"})
+    public int numSets;
+
+    @Param({"OBJECTS", "COMPACT"})
+    public KVCache.EntryLayout layout;
+
+    private KVCache cache;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        cache = new KVCache(numSets, CAPACITY / numSets, KVCache.EvictionPolicyType.CLOCK, layout);
+        keys = new String[NUM_KEYS];
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            keys[i] = "key" + i;
+            put(keys[i], "value" + i);
+        }
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(NUM_KEYS)];
+    }
+
+    private void put(final String key, final String value) {
+        final WriteLock lock = cache.getWriteLock(key);
+        lock.lock();
+        try {
+            cache.put(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Benchmark
+    public String get() {
+        return cache.get(randomKey());
+    }
+
+    @Benchmark
+    public void put() {
+        put(randomKey(), "value");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getContended() {
+        return cache.get(randomKey());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void putContended() {
+        put(randomKey(), "value");
+    }
+}
@@ -0,0 +1,62 @@
+package edu.berkeley.cs162;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to marshal and unmarshal a get response carrying a 1 KB or 256 KB value, in the
+ * XML and BINARY wire formats.
+ *
+ * Run with: ant jmh -Djmh.include=KVMessageJmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class KVMessageJmh {
+
+    @Param({"1024", "262144"})
+    public int valueBytes;
+
+    @Param({"XML", "BINARY"})
+    public KVMessage.WireFormat format;
+
+    private KVMessage msg;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws KVException {
+        // mostly plain text, with some characters XML has to escape
+        final StringBuilder sb = new StringBuilder(valueBytes);
+        for (int i = 0; i < valueBytes; ++i) {
+            sb.append(i % 50 == 0 ? '&' : (char) ('a' + i % 26));
+        }
+        msg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+        msg.setKey("benchmark-key");
+        msg.setValue(sb.toString());
+        encoded = format.encode(msg);
+    }
+
+    @Benchmark
+    public byte[] marshal() throws KVException {
+        return format.encode(msg);
+    }
+
+    @Benchmark
+    public KVMessage unmarshal() throws KVException {
+        return format.decode(encoded);
+    }
+}
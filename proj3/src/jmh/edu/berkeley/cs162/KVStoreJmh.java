@@ -0,0 +1,87 @@
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * KVStore put and get throughput for the in-memory engine and the log-structured one.
+ * The simulated store latency is off unless the run sets -Dlatency.
+ *
+ * Run with: ant jmh -Djmh.include=KVStoreJmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class KVStoreJmh {
+
+    private static final int NUM_KEYS = 10000;
+
+    @Param({"memory", "log"})
+    public String engine;
+
+    private KVStore store;
+    private File dataDir;
+    private String[] keys;
+
+    @Setup
+    public void setUp() throws IOException, KVException {
+        if ("log".equals(engine)) {
+            dataDir = Files.createTempDirectory("kvstore-jmh").toFile();
+            store = new KVStore(dataDir);
+        } else {
+            store = new KVStore(16);
+        }
+        keys = new String[NUM_KEYS];
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            keys[i] = "key" + i;
+            store.put(keys[i], "value" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws KVException {
+        store.close();
+        if (dataDir != null) {
+            final File[] files = dataDir.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+            dataDir.delete();
+        }
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(NUM_KEYS)];
+    }
+
+    @Benchmark
+    public String get() throws KVException {
+        return store.get(randomKey());
+    }
+
+    @Benchmark
+    public boolean put() throws KVException {
+        return store.put(randomKey(), "value");
+    }
+}
@@ -0,0 +1,106 @@
+package edu.berkeley.cs162;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end operations per second against a KVServer on the loopback interface. Each
+ * benchmark thread holds its own persistent connection in the given wire format and
+ * runs gets and puts over a small, cached key set.
+ *
+ * Run with: ant jmh -Djmh.include=LoopbackJmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class LoopbackJmh {
+
+    private static final String HOSTNAME = "localhost";
+    private static final int PORT = 8091;
+    private static final int NUM_KEYS = 100;
+
+    @Param({"XML", "BINARY"})
+    public KVMessage.WireFormat format;
+
+    private SocketServer socketServer;
+
+    @Setup
+    public void setUp() throws Exception {
+        final KVServer kvServer = new KVServer(100, 10);
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            kvServer.put("key" + i, "value" + i);
+        }
+        socketServer = new SocketServer(HOSTNAME, PORT);
+        socketServer.addHandler(new KVClientHandler(kvServer));
+        socketServer.connect();
+        final Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socketServer.run();
+                } catch (final Exception e) {
+                    // stopped
+                }
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        socketServer.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        KVClient client;
+
+        @Setup
+        public void setUp(final LoopbackJmh bench) {
+            client = new KVClient(HOSTNAME, PORT, bench.format);
+        }
+
+        @TearDown
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    private static String randomKey() {
+        return "key" + ThreadLocalRandom.current().nextInt(NUM_KEYS);
+    }
+
+    @Benchmark
+    public String get(final Connection conn) throws KVException {
+        return conn.client.get(randomKey());
+    }
+
+    @Benchmark
+    public boolean put(final Connection conn) throws KVException {
+        return conn.client.put(randomKey(), "value");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getConcurrent(final Connection conn) throws KVException {
+        return conn.client.get(randomKey());
+    }
+}
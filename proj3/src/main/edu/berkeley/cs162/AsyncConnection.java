@@ -0,0 +1,349 @@
+/**
+ * One non-blocking framed connection that a KVClient's async requests share
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A framed connection driven by an event loop on a thread of its own, so callers never
+ * block on the network. Requests are sent in the order they were submitted and the
+ * server answers them in that order, so each response completes the oldest request
+ * still on the wire.
+ *
+ * At most maxInFlight requests are on the wire at once; later ones wait in this client
+ * until earlier responses come back. A request that has not been answered within the
+ * timeout it was sent with fails with "Network Error: Could not receive data". If it
+ * was already sent, the server has stalled and would keep its slot on the wire taken,
+ * so the connection is closed. Once the connection fails or is closed, every
+ * outstanding request fails with it and the connection stays closed; KVClient opens a
+ * new one for the next request.
+ *
+ * Futures are completed on the event loop thread, so dependent stages that block
+ * should use the *Async methods of CompletableFuture.
+ */
+final class AsyncConnection {
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final KVMessage.WireFormat format;
+    private final int maxInFlight;
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final Thread loop;
+    private volatile boolean open = true;
+
+    /** Handed from callers to the event loop. */
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<Request>();
+
+    /* Everything below is only touched by the event loop. */
+    /** Not yet sent, because maxInFlight requests already are. */
+    private final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+    /** Sent and not yet answered, oldest first. */
+    private final ArrayDeque<Request> inFlight = new ArrayDeque<Request>();
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private ByteBuffer body = null;
+    /** The earliest deadline of a request that may still be outstanding, if hasDeadline. */
+    private long nextDeadline = 0;
+    private boolean hasDeadline = false;
+
+    private static final class Request {
+        final byte[] frame;
+        final long deadline;
+        final CompletableFuture<KVMessage> future = new CompletableFuture<KVMessage>();
+
+        Request(final byte[] frame, final long deadline) {
+            this.frame = frame;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Starts connecting to server:port in the background.
+     * @throws KVException "Network Error: Could not create socket" if the connection
+     *                     cannot even be started.
+     */
+    AsyncConnection(final String server, final int port, final KVMessage.WireFormat format,
+                    final int maxInFlight) throws KVException {
+        this.format = format;
+        this.maxInFlight = maxInFlight;
+        try {
+            selector = Selector.open();
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final boolean connected = channel.connect(new InetSocketAddress(server, port));
+            key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+        } catch (final IOException e) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.SOCKET_ERROR));
+        }
+        final ByteBuffer preamble = ByteBuffer.allocate(4);
+        preamble.putInt(format.preamble).flip();
+        outbound.add(preamble);
+
+        loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "kv-async-" + COUNT.incrementAndGet());
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Queues req to be sent.
+     * @return the server's response, whether or not it reports success.
+     */
+    CompletableFuture<KVMessage> send(final KVMessage req, final long timeoutMillis) {
+        final Request request;
+        try {
+            request = new Request(format.encode(req), System.nanoTime() + timeoutMillis * 1000000L);
+        } catch (final KVException e) {
+            final CompletableFuture<KVMessage> failed = new CompletableFuture<KVMessage>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        submitted.add(request);
+        if (!open) {
+            // the loop may have exited already; fail whatever it left behind
+            failAll(KVMessage.ResponseType.DATA_SEND_ERROR);
+        } else {
+            selector.wakeup();
+        }
+        return request.future;
+    }
+
+    /**
+     * Closes the connection. Requests still outstanding fail.
+     */
+    void close() {
+        open = false;
+        selector.wakeup();
+    }
+
+    private void runLoop() {
+        KVMessage.ResponseType failure = KVMessage.ResponseType.DATA_RECEIVE_ERROR;
+        try {
+            while (open) {
+                selector.select(selectTimeoutMillis());
+                Request request;
+                while ((request = submitted.poll()) != null) {
+                    waiting.add(request);
+                    noteDeadline(request);
+                }
+                expire();
+                final boolean ready = selector.selectedKeys().remove(key);
+                if (ready && key.isConnectable()) {
+                    failure = KVMessage.ResponseType.CONNECT_ERROR;
+                    channel.finishConnect();
+                    failure = KVMessage.ResponseType.DATA_RECEIVE_ERROR;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                if (ready && key.isReadable()) {
+                    read();
+                }
+                if (channel.isConnected()) {
+                    failure = KVMessage.ResponseType.DATA_SEND_ERROR;
+                    write();
+                    failure = KVMessage.ResponseType.DATA_RECEIVE_ERROR;
+                }
+            }
+        } catch (final IOException e) {
+            // fall through and fail everything outstanding
+        } catch (final ClosedSelectorException e) {
+            // closed
+        } finally {
+            open = false;
+            try {
+                channel.close();
+                selector.close();
+            } catch (final IOException e) {
+                // nothing left to clean up
+            }
+            failAll(failure);
+        }
+    }
+
+    /**
+     * @return how long the loop may sleep before the next request times out.
+     */
+    private long selectTimeoutMillis() {
+        if (!hasDeadline) {
+            return 0; // no deadline, sleep until woken
+        }
+        return Math.max(1, (nextDeadline - System.nanoTime()) / 1000000L + 1);
+    }
+
+    private void noteDeadline(final Request request) {
+        if (!hasDeadline || request.deadline - nextDeadline < 0) {
+            nextDeadline = request.deadline;
+            hasDeadline = true;
+        }
+    }
+
+    /**
+     * Fails requests whose time is up. Requests are only scanned once the earliest
+     * deadline has passed.
+     * @throws IOException if a request on the wire timed out, to close the connection.
+     */
+    private void expire() throws IOException {
+        final long now = System.nanoTime();
+        if (!hasDeadline || nextDeadline - now > 0) {
+            return;
+        }
+        hasDeadline = false;
+        for (final Request request : inFlight) {
+            if (request.deadline - now <= 0) {
+                // closed before the caller hears of it, so that its next request reconnects
+                open = false;
+                timeOut(request);
+                throw new IOException("Request timed out on the wire");
+            }
+            noteDeadline(request);
+        }
+        final Iterator<Request> it = waiting.iterator();
+        while (it.hasNext()) {
+            final Request request = it.next();
+            if (request.deadline - now <= 0) {
+                timeOut(request);
+                it.remove();
+            } else {
+                noteDeadline(request);
+            }
+        }
+    }
+
+    private static void timeOut(final Request request) {
+        request.future.completeExceptionally(
+                new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DATA_RECEIVE_ERROR)));
+    }
+
+    /**
+     * Sends waiting requests while there is room on the wire, then writes as much as the
+     * socket will take.
+     */
+    private void write() throws IOException {
+        while (inFlight.size() < maxInFlight && !waiting.isEmpty()) {
+            final Request request = waiting.pollFirst();
+            final ByteBuffer frame = ByteBuffer.allocate(4 + request.frame.length);
+            frame.putInt(request.frame.length).put(request.frame).flip();
+            outbound.add(frame);
+            inFlight.add(request);
+        }
+        if (!outbound.isEmpty()) {
+            channel.write(outbound.toArray(new ByteBuffer[outbound.size()]));
+            while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+                outbound.pollFirst();
+            }
+        }
+        key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void read() throws IOException {
+        readBuffer.clear();
+        if (channel.read(readBuffer) < 0) {
+            throw new IOException("Connection closed by server");
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            if (body == null) {
+                fill(header, readBuffer);
+                if (header.hasRemaining()) return;
+                final int length = header.getInt(0);
+                header.clear();
+                if (length < 0 || length > KVMessage.MAX_FRAME_BYTES) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                body = ByteBuffer.allocate(length);
+            }
+            fill(body, readBuffer);
+            if (!body.hasRemaining()) {
+                complete(body.array());
+                body = null;
+            }
+        }
+    }
+
+    private void complete(final byte[] frame) throws IOException {
+        final Request request = inFlight.pollFirst();
+        if (request == null) {
+            throw new IOException("Response without a request");
+        }
+        try {
+            request.future.complete(format.decode(frame));
+        } catch (final KVException e) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private static void fill(final ByteBuffer dst, final ByteBuffer src) {
+        final int n = Math.min(dst.remaining(), src.remaining());
+        final ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        src.position(src.position() + n);
+    }
+
+    private void failAll(final KVMessage.ResponseType failure) {
+        final KVException e = new KVException(KVMessage.makeResponse(failure));
+        Request request;
+        while ((request = submitted.poll()) != null) {
+            request.future.completeExceptionally(e);
+        }
+        if (Thread.currentThread() != loop) {
+            return;
+        }
+        for (final Request r : inFlight) {
+            r.future.completeExceptionally(e);
+        }
+        for (final Request r : waiting) {
+            r.future.completeExceptionally(e);
+        }
+        inFlight.clear();
+        waiting.clear();
+    }
+}
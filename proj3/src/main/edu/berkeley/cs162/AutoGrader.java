@@ -35,119 +35,132 @@ import java.util.ArrayList;
 
 public class AutoGrader {
 	
-	private static long STORE_DELAY = 1;
-	private static long CACHE_DELAY = 1;
+	/**
+	 * Simulated latency of the cache and the store, or null to run them at full speed.
+	 * Chosen at startup by the kvstore.latency system property.
+	 */
+	private static volatile LatencyModel latencyModel = LatencyModel.fromSystemProperty();
 	
 	private static KVStore dataStore = null;
 	private static KVCache dataCache = null;
 	
 	private static int currentOp = 0;
 	
+	/**
+	 * @param model the simulated device latency to apply from now on, or null for none
+	 */
+	public static void setLatencyModel(LatencyModel model) {
+		latencyModel = model;
+	}
+
+	public static LatencyModel getLatencyModel() {
+		return latencyModel;
+	}
+
 	public static void registerKVServer(KVStore dataStore, KVCache dataCache) {
 		AutoGrader.dataStore = dataStore;
 		AutoGrader.dataCache = dataCache;
 	}
 
 	public static void agCachePutStarted(String key, String value) {
-		
+		KVMetrics.started(KVMetrics.Op.CACHE_PUT);
 	}
 	
 	public static void agCachePutFinished(String key, String value) {
-		
+		KVMetrics.finished(KVMetrics.Op.CACHE_PUT);
 	}
 
 	public static void agCacheGetStarted(String key) {
-		
+		KVMetrics.started(KVMetrics.Op.CACHE_GET);
 	}
 	
 	public static void agCacheGetFinished(String key) {
-		
+		KVMetrics.finished(KVMetrics.Op.CACHE_GET);
 	}
 
 	public static void agCacheDelStarted(String key) {
-		
+		KVMetrics.started(KVMetrics.Op.CACHE_DEL);
 	}
 	
 	public static void agCacheDelFinished(String key) {
-		
+		KVMetrics.finished(KVMetrics.Op.CACHE_DEL);
 	}
 
 	public static void agStorePutStarted(String key, String value) {
-		
+		KVMetrics.started(KVMetrics.Op.STORE_PUT);
 	}
 	
 	public static void agStorePutFinished(String key, String value) {
-		
+		KVMetrics.finished(KVMetrics.Op.STORE_PUT);
 	}
 
 	public static void agStoreGetStarted(String key) {
-		
+		KVMetrics.started(KVMetrics.Op.STORE_GET);
 	}
 	
 	public static void agStoreGetFinished(String key) {
-		
+		KVMetrics.finished(KVMetrics.Op.STORE_GET);
 	}
 
 	public static void agStoreDelStarted(String key) {
-		
+		KVMetrics.started(KVMetrics.Op.STORE_DEL);
 	}
 
 	public static void agStoreDelFinished(String key) {
-		
+		KVMetrics.finished(KVMetrics.Op.STORE_DEL);
 	}
 
 	public static void agKVServerPutStarted(String key, String value) {
-		
+		KVMetrics.started(KVMetrics.Op.SERVER_PUT);
 	}
 	
 	public static void agKVServerPutFinished(String key, String value) {
-		
+		KVMetrics.finished(KVMetrics.Op.SERVER_PUT);
 	}
 
 	public static void agKVServerGetStarted(String key) {
-		
+		KVMetrics.started(KVMetrics.Op.SERVER_GET);
 	}
 	
 	public static void agKVServerGetFinished(String key) {
-		
+		KVMetrics.finished(KVMetrics.Op.SERVER_GET);
 	}
 	
 	public static void agKVServerDelStarted(String key) {
-		
+		KVMetrics.started(KVMetrics.Op.SERVER_DEL);
 	}
 
 	public static void agKVServerDelFinished(String key) {
-		
+		KVMetrics.finished(KVMetrics.Op.SERVER_DEL);
 	}
 
 	public static void agCachePutDelay() {
-		delay(CACHE_DELAY);
+		cacheDelay();
 	}
 
 	public static void agCacheGetDelay() {
-		delay(CACHE_DELAY);
+		cacheDelay();
 	}
 	
 	public static void agCacheDelDelay() {
-		delay(CACHE_DELAY);
+		cacheDelay();
 	}
 
 	/**
-	 * KVStore will sleep for STORE_DELAY milliseconds  
+	 * KVStore waits as long as the latency model says, and fails if it says so
+	 * @throws IOException if the latency model simulates a failed access
 	 */
-	public static void agStoreDelay() {
-		delay(STORE_DELAY);
+	public static void agStoreDelay() throws IOException {
+		final LatencyModel model = latencyModel;
+		if (model != null) {
+			model.storeAccess();
+		}
 	}
-	
-	/**
-	 * Helper method to put the current thread to sleep for sleepTime duration
-	 * @param sleepTime time to sleep in milliseconds
-	 */
-	private static void delay(long sleepTime) {
-		try {
-			Thread.sleep(sleepTime);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+
+	private static void cacheDelay() {
+		final LatencyModel model = latencyModel;
+		if (model != null) {
+			model.cacheAccess();
 		}
 	}
 
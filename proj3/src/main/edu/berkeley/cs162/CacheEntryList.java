@@ -0,0 +1,116 @@
+/**
+ * Intrusive doubly-linked list of cache entries.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A doubly-linked list threaded through the _prev/_next fields of KVCache.CacheEntry,
+ * so that moving an entry or unlinking it is O(1) and allocates nothing.
+ * An entry can be on at most one list at a time; _list records which one.
+ * Not thread safe; callers hold the owning CacheSet's write lock.
+ */
+final class CacheEntryList {
+    private KVCache.CacheEntry _head = null;
+    private KVCache.CacheEntry _tail = null;
+    private int _size = 0;
+
+    int size() {
+        return _size;
+    }
+
+    boolean isEmpty() {
+        return _size == 0;
+    }
+
+    boolean contains(final KVCache.CacheEntry entry) {
+        return entry._list == this;
+    }
+
+    /**
+     * @return the least recently added (or moved) entry, or null if the list is empty.
+     */
+    KVCache.CacheEntry head() {
+        return _head;
+    }
+
+    void addLast(final KVCache.CacheEntry entry) {
+        assert entry._list == null;
+        entry._list = this;
+        entry._prev = _tail;
+        entry._next = null;
+        if (_tail == null) {
+            _head = entry;
+        } else {
+            _tail._next = entry;
+        }
+        _tail = entry;
+        ++_size;
+    }
+
+    void remove(final KVCache.CacheEntry entry) {
+        assert entry._list == this;
+        if (entry._prev == null) {
+            _head = entry._next;
+        } else {
+            entry._prev._next = entry._next;
+        }
+        if (entry._next == null) {
+            _tail = entry._prev;
+        } else {
+            entry._next._prev = entry._prev;
+        }
+        entry._prev = null;
+        entry._next = null;
+        entry._list = null;
+        --_size;
+    }
+
+    void moveToLast(final KVCache.CacheEntry entry) {
+        if (entry != _tail) {
+            remove(entry);
+            addLast(entry);
+        }
+    }
+
+    /**
+     * Appends the entries of this list, head first, to out.
+     */
+    void appendTo(final List<KVCache.CacheEntry> out) {
+        for (KVCache.CacheEntry cur = _head; cur != null; cur = cur._next) {
+            out.add(cur);
+        }
+    }
+
+    List<KVCache.CacheEntry> toList() {
+        final List<KVCache.CacheEntry> out = new ArrayList<KVCache.CacheEntry>(_size);
+        appendTo(out);
+        return out;
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Grows and shrinks a KVCache while it serves.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Grows and shrinks the set count of a KVCache while it serves, guided by its hit ratio
+ * and how full it is. Each call to adjust looks at the hits, misses and evictions since
+ * the previous call:
+ * - with a hit ratio below the target and evictions, the working set does not fit, so it
+ *   splits up to an eighth more sets, never going beyond maxSets;
+ * - with no evictions and at most a quarter of the cache's slots in use, the memory is
+ *   going unused, so it merges one set, never going below the count the cache was
+ *   created with.
+ * Intervals with fewer than MIN_LOOKUPS lookups are left alone, and so are those in
+ * between, where the cache is either big enough or already at its limit.
+ *
+ * start runs adjust from a daemon thread once a period.
+ */
+final class CacheSizer {
+
+    /** Lookups an interval needs before its hit ratio is trusted. */
+    static final long MIN_LOOKUPS = 100;
+
+    private final KVCache cache;
+    private final int maxSets;
+    private final double targetHitRatio;
+
+    /** The cache's counts at the previous adjust. */
+    private long lastHits;
+    private long lastMisses;
+    private long lastEvictions;
+
+    private Thread thread;
+
+    /**
+     * @param cache the cache to resize.
+     * @param maxSets the most sets the cache may grow to.
+     * @param targetHitRatio the hit ratio below which an evicting cache grows.
+     */
+    CacheSizer(final KVCache cache, final int maxSets, final double targetHitRatio) {
+        if (targetHitRatio <= 0 || targetHitRatio > 1) {
+            throw new IllegalArgumentException("target hit ratio must be in (0, 1]");
+        }
+        this.cache = cache;
+        this.maxSets = maxSets;
+        this.targetHitRatio = targetHitRatio;
+        lastHits = cache.getHitCount();
+        lastMisses = cache.getMissCount();
+        lastEvictions = cache.getEvictionCount();
+    }
+
+    /**
+     * Calls adjust every periodMillis from a daemon thread, until close.
+     */
+    synchronized void start(final long periodMillis) {
+        if (thread != null) {
+            throw new IllegalStateException("already started");
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(periodMillis);
+                        adjust();
+                    }
+                } catch (final InterruptedException e) {
+                    // closed
+                }
+            }
+        }, "kvcache-sizer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Resizes the cache if the interval since the previous call calls for it.
+     * @return how many sets were added, or removed if negative.
+     */
+    synchronized int adjust() {
+        final long hits = cache.getHitCount();
+        final long misses = cache.getMissCount();
+        final long evictions = cache.getEvictionCount();
+        final long intervalHits = hits - lastHits;
+        final long lookups = intervalHits + misses - lastMisses;
+        final long intervalEvictions = evictions - lastEvictions;
+        if (lookups < MIN_LOOKUPS) {
+            // keep counting until there is enough to judge
+            return 0;
+        }
+        lastHits = hits;
+        lastMisses = misses;
+        lastEvictions = evictions;
+
+        final int numSets = cache.getNumSets();
+        if ((double) intervalHits / lookups < targetHitRatio && intervalEvictions > 0) {
+            final int toAdd = Math.min(Math.max(1, numSets / 8), maxSets - numSets);
+            for (int i = 0; i < toAdd; ++i) {
+                cache.split();
+            }
+            return Math.max(0, toAdd);
+        }
+        if (intervalEvictions == 0 && cache.getEntryCount() * 4L <= cache.getCapacity()) {
+            return cache.merge() - numSets;
+        }
+        return 0;
+    }
+
+    /**
+     * Stops the thread started by start, if any. The cache keeps its current size.
+     */
+    void close() throws InterruptedException {
+        final Thread toStop;
+        synchronized (this) {
+            toStop = thread;
+            thread = null;
+        }
+        if (toStop != null) {
+            toStop.interrupt();
+            toStop.join();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Second-chance (CLOCK) eviction policy.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Second-chance (CLOCK) eviction. Entries sit in a fixed ring of slots; the hand
+ * sweeps the ring, clearing reference bits, and evicts the first unreferenced entry
+ * it finds. The hand persists across evictions, so eviction is amortised O(1).
+ * Hits only set the entry's reference bit, which readers do without the lock.
+ */
+final class ClockEvictionPolicy implements EvictionPolicy {
+    /**
+     * The CLOCK ring. Each entry knows its own slot; empty slots are null.
+     */
+    private final KVCache.CacheEntry[] _slots;
+
+    /**
+     * Stack of empty slot indices, so that filling a non-full set never scans the ring.
+     */
+    private final int[] _freeSlots;
+    private int _numFree;
+
+    /**
+     * The slot the CLOCK hand will examine next.
+     */
+    private int _hand = 0;
+
+    ClockEvictionPolicy(final int size) {
+        _slots = new KVCache.CacheEntry[size];
+        _freeSlots = new int[size];
+        // pushed in reverse so the set fills up from slot 0
+        for (int i = 0; i < size; ++i) {
+            _freeSlots[i] = size - 1 - i;
+        }
+        _numFree = size;
+    }
+
+    @Override
+    public boolean recordsAccesses() {
+        return false;
+    }
+
+    @Override
+    public void onAccess(final KVCache.CacheEntry entry) {
+        entry.setIsReferenced(true);
+    }
+
+    @Override
+    public void onInsert(final KVCache.CacheEntry entry) {
+        assert _numFree > 0;
+        entry._slot = _freeSlots[--_numFree];
+        _slots[entry._slot] = entry;
+    }
+
+    @Override
+    public void onRemove(final KVCache.CacheEntry entry) {
+        _slots[entry._slot] = null;
+        _freeSlots[_numFree++] = entry._slot;
+    }
+
+    @Override
+    public KVCache.CacheEntry selectVictim(final String candidateKey) {
+        assert _numFree < _slots.length;
+        while (true) {
+            final KVCache.CacheEntry cacheEntry = _slots[_hand];
+            _hand = (_hand + 1) % _slots.length;
+            if (cacheEntry == null) {
+                continue;
+            }
+            if (!cacheEntry.getIsReferenced()) {
+                return cacheEntry;
+            }
+            cacheEntry.setIsReferenced(false);
+        }
+    }
+
+    /**
+     * @return the resident entries in the order the hand would evict them if nothing were
+     * read meanwhile: the unreferenced ones from the hand on, then the referenced ones.
+     */
+    @Override
+    public Collection<KVCache.CacheEntry> entries() {
+        final List<KVCache.CacheEntry> entries = new ArrayList<KVCache.CacheEntry>(_slots.length - _numFree);
+        final List<KVCache.CacheEntry> referenced = new ArrayList<KVCache.CacheEntry>();
+        for (int i = 0; i < _slots.length; ++i) {
+            final KVCache.CacheEntry entry = _slots[(_hand + i) % _slots.length];
+            if (entry != null) {
+                (entry.getIsReferenced() ? referenced : entries).add(entry);
+            }
+        }
+        entries.addAll(referenced);
+        return entries;
+    }
+}
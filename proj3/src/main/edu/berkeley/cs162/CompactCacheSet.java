@@ -0,0 +1,452 @@
+/**
+ * A cache set that keeps its entries as UTF-8 bytes in one array.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The COMPACT layout of a KVCache set. Instead of a CacheEntry, two Strings and a hash
+ * map node per entry, the keys and values of the whole set live as UTF-8 in one byte
+ * array, the slab, and each entry is a handful of ints: its hash and where its key and
+ * value sit in the slab. An open-addressing table with linear probing maps hashes to
+ * entries. ASCII data takes half the space it does as Strings, and the garbage
+ * collector sees a few arrays per set rather than several objects per entry.
+ *
+ * New keys and values are appended to the slab and never overwritten in place; a
+ * replaced or removed entry leaves dead bytes behind. When the slab runs out of room,
+ * the live entries are copied into a new slab sized to them, which is larger or smaller
+ * than the old one as the live bytes have grown or shrunk. Because published bytes never
+ * change, optimistic readers only have to validate the ints they read, against the
+ * set's sequence counter, exactly as with the object layout.
+ *
+ * A negative entry (value KVCache.ABSENT) has no value bytes; its value offset is -1.
+ *
+ * Eviction is CLOCK, with the entries as the ring's slots, so the resident entries and
+ * their reference bits match what a set of the object layout would hold.
+ */
+final class CompactCacheSet extends KVCache.CacheSet {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Ints per entry in _meta. */
+    private static final int STRIDE = 5;
+    private static final int HASH = 0;
+    private static final int KEY_OFFSET = 1;
+    private static final int KEY_LENGTH = 2;
+    private static final int VALUE_OFFSET = 3;
+    private static final int VALUE_LENGTH = 4;
+
+    /** Slab bytes to start with per entry. The slab grows as needed. */
+    private static final int INITIAL_BYTES_PER_ENTRY = 32;
+
+    /**
+     * Open-addressing table of entry index + 1, or 0 for an empty bucket. At least twice
+     * as many buckets as entries, so probe sequences stay short. Atomic only so that
+     * optimistic readers see writes in order; it is only written with the write lock held.
+     */
+    private final AtomicIntegerArray _table;
+    private final int _mask;
+
+    /** STRIDE ints per entry, see HASH and the other field indices. */
+    private final AtomicIntegerArray _meta;
+
+    /** CLOCK reference bits. Readers set them without the lock; a lost update is harmless. */
+    private final boolean[] _referenced;
+
+    /** Whether each entry index is in use. Only touched with the write lock held. */
+    private final boolean[] _used;
+    private final int[] _freeSlots;
+    private int _numFree;
+    private int _hand = 0;
+
+    /** The slab never shrinks below the length it starts with. */
+    private final int _minSlabLength;
+    private volatile byte[] _slab;
+    /** Where the next bytes go in _slab. */
+    private int _top = 0;
+    /** Bytes of _slab below _top that belong to resident entries. */
+    private int _liveBytes = 0;
+
+    CompactCacheSet(final int id, final int size) {
+        super(id, size, null, 0);
+        int buckets = 2;
+        while (buckets < 2 * size) {
+            buckets <<= 1;
+        }
+        _table = new AtomicIntegerArray(buckets);
+        _mask = buckets - 1;
+        _meta = new AtomicIntegerArray(STRIDE * size);
+        _referenced = new boolean[size];
+        _used = new boolean[size];
+        _freeSlots = new int[size];
+        // pushed in reverse so the set fills up from slot 0, like ClockEvictionPolicy
+        for (int i = 0; i < size; ++i) {
+            _freeSlots[i] = size - 1 - i;
+        }
+        _numFree = size;
+        _minSlabLength = Math.max(64, size * INITIAL_BYTES_PER_ENTRY);
+        _slab = new byte[_minSlabLength];
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the entry holding key, or -1. May be wrong if a writer is active; the
+     * caller validates.
+     */
+    private int find(final String key, final int hash, final byte[] slab) {
+        int bucket = spread(hash) & _mask;
+        for (int probes = 0; probes <= _mask; ++probes) {
+            final int entry = _table.get(bucket) - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            if (_meta.get(entry * STRIDE + HASH) == hash && keyEquals(entry, key, slab)) {
+                return entry;
+            }
+            bucket = (bucket + 1) & _mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares key with the stored key of entry without encoding it, unless it has
+     * characters outside ASCII.
+     */
+    private boolean keyEquals(final int entry, final String key, final byte[] slab) {
+        final int offset = _meta.get(entry * STRIDE + KEY_OFFSET);
+        final int length = _meta.get(entry * STRIDE + KEY_LENGTH);
+        if (!inBounds(slab, offset, length)) {
+            return false;
+        }
+        final int chars = key.length();
+        if (chars == length) {
+            boolean ascii = true;
+            for (int i = 0; i < chars; ++i) {
+                final char c = key.charAt(i);
+                if (c >= 0x80) {
+                    ascii = false;
+                    break;
+                }
+                if (slab[offset + i] != c) {
+                    return false;
+                }
+            }
+            if (ascii) {
+                return true;
+            }
+        } else if (chars > length) {
+            // every character takes at least one byte
+            return false;
+        }
+        final byte[] bytes = key.getBytes(UTF8);
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (slab[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Readers may see offsets that belong to another slab while a writer is active.
+     */
+    private static boolean inBounds(final byte[] slab, final int offset, final int length) {
+        return offset >= 0 && length >= 0 && offset <= slab.length - length;
+    }
+
+    private String valueOf(final int entry, final byte[] slab) {
+        final int offset = _meta.get(entry * STRIDE + VALUE_OFFSET);
+        final int length = _meta.get(entry * STRIDE + VALUE_LENGTH);
+        if (offset == -1 && length == 0) {
+            return KVCache.ABSENT;
+        }
+        return inBounds(slab, offset, length) ? new String(slab, offset, length, UTF8) : null;
+    }
+
+    private String keyOf(final int entry, final byte[] slab) {
+        return new String(slab, _meta.get(entry * STRIDE + KEY_OFFSET), _meta.get(entry * STRIDE + KEY_LENGTH), UTF8);
+    }
+
+    @Override
+    String get(final String key) {
+        final int hash = key.hashCode();
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; ++attempt) {
+            final long seq = _seq;
+            if ((seq & 1L) != 0) {
+                // a writer is in the middle of a mutation
+                Thread.yield();
+                continue;
+            }
+            final byte[] slab = _slab;
+            final int entry = find(key, hash, slab);
+            final String value = entry < 0 ? null : valueOf(entry, slab);
+            if (seq == _seq) {
+                return recordLookup(entry, value);
+            }
+        }
+
+        final Lock readLock = _lock.readLock();
+        readLock.lock();
+        try {
+            final byte[] slab = _slab;
+            final int entry = find(key, hash, slab);
+            return recordLookup(entry, entry < 0 ? null : valueOf(entry, slab));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private String recordLookup(final int entry, final String value) {
+        if (value != null) {
+            _hits.increment();
+            if (!_referenced[entry]) _referenced[entry] = true;
+        } else {
+            _misses.increment();
+        }
+        return value;
+    }
+
+    @Override
+    void put(final String key, final String value) {
+        assert _lock.isWriteLockedByCurrentThread();
+        beginWrite();
+        try {
+            final int hash = key.hashCode();
+            final byte[] valueBytes = value == KVCache.ABSENT ? null : value.getBytes(UTF8);
+            final int existing = find(key, hash, _slab);
+            if (existing >= 0) {
+                _liveBytes -= _meta.get(existing * STRIDE + VALUE_LENGTH);
+                // drop the old value first, so that compacting to make room does not copy it
+                _meta.set(existing * STRIDE + VALUE_OFFSET, -1);
+                _meta.set(existing * STRIDE + VALUE_LENGTH, 0);
+                final int offset = valueBytes != null ? append(valueBytes, null) : -1;
+                _meta.set(existing * STRIDE + VALUE_OFFSET, offset);
+                _meta.set(existing * STRIDE + VALUE_LENGTH, valueBytes != null ? valueBytes.length : 0);
+                _referenced[existing] = true;
+                return;
+            }
+
+            if (_numFree == 0) {
+                evict();
+            }
+            final byte[] keyBytes = key.getBytes(UTF8);
+            final int offset = append(keyBytes, valueBytes);
+            final int entry = _freeSlots[--_numFree];
+            _used[entry] = true;
+            _referenced[entry] = false;
+            _meta.set(entry * STRIDE + HASH, hash);
+            _meta.set(entry * STRIDE + KEY_OFFSET, offset);
+            _meta.set(entry * STRIDE + KEY_LENGTH, keyBytes.length);
+            _meta.set(entry * STRIDE + VALUE_OFFSET, valueBytes != null ? offset + keyBytes.length : -1);
+            _meta.set(entry * STRIDE + VALUE_LENGTH, valueBytes != null ? valueBytes.length : 0);
+            int bucket = spread(hash) & _mask;
+            while (_table.get(bucket) != 0) {
+                bucket = (bucket + 1) & _mask;
+            }
+            _table.set(bucket, entry + 1);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Copies first and then second, if not null, to the end of the slab, compacting or
+     * growing the slab first if they do not fit.
+     * @return the offset of first.
+     */
+    private int append(final byte[] first, final byte[] second) {
+        final int length = first.length + (second != null ? second.length : 0);
+        byte[] slab = _slab;
+        if (_top + length > slab.length) {
+            slab = compact(length);
+        }
+        final int offset = _top;
+        System.arraycopy(first, 0, slab, offset, first.length);
+        if (second != null) {
+            System.arraycopy(second, 0, slab, offset + first.length, second.length);
+        }
+        _top += length;
+        _liveBytes += length;
+        return offset;
+    }
+
+    /**
+     * Copies the resident entries into a new slab with room for extra more bytes and
+     * half as many again, never below the initial size, and points the entries at their
+     * copies. Sizing from the live bytes alone lets a slab that grew for a burst of
+     * large values shrink back once they are gone. Readers still holding the old slab fail
+     * validation and retry.
+     */
+    private byte[] compact(final int extra) {
+        final int needed = _liveBytes + extra;
+        final byte[] old = _slab;
+        final byte[] slab = new byte[Math.max(_minSlabLength, needed + needed / 2)];
+        int top = 0;
+        for (int entry = 0; entry < _size; ++entry) {
+            if (!_used[entry]) continue;
+            final int base = entry * STRIDE;
+            final int keyLength = _meta.get(base + KEY_LENGTH);
+            final int valueLength = _meta.get(base + VALUE_LENGTH);
+            System.arraycopy(old, _meta.get(base + KEY_OFFSET), slab, top, keyLength);
+            _meta.set(base + KEY_OFFSET, top);
+            if (_meta.get(base + VALUE_OFFSET) != -1) {
+                System.arraycopy(old, _meta.get(base + VALUE_OFFSET), slab, top + keyLength, valueLength);
+                _meta.set(base + VALUE_OFFSET, top + keyLength);
+            }
+            top += keyLength + valueLength;
+        }
+        _top = top;
+        _slab = slab;
+        return slab;
+    }
+
+    @Override
+    String del(final String key) {
+        assert _lock.isWriteLockedByCurrentThread();
+        beginWrite();
+        try {
+            final byte[] slab = _slab;
+            final int entry = find(key, key.hashCode(), slab);
+            if (entry < 0) {
+                return null;
+            }
+            final String value = valueOf(entry, slab);
+            remove(entry);
+            return value;
+        } finally {
+            endWrite();
+        }
+    }
+
+    @Override
+    void performEviction(final String candidateKey) {
+        assert _lock.isWriteLockedByCurrentThread();
+        if (_numFree == _size) return;
+        beginWrite();
+        try {
+            evict();
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Sweeps the CLOCK hand to the first unreferenced entry and removes it.
+     */
+    private void evict() {
+        while (true) {
+            final int entry = _hand;
+            _hand = (_hand + 1) % _size;
+            if (!_used[entry]) {
+                continue;
+            }
+            if (!_referenced[entry]) {
+                remove(entry);
+                _evictionCount++;
+                return;
+            }
+            _referenced[entry] = false;
+        }
+    }
+
+    /**
+     * Takes entry out of the table, shifting later entries of its probe sequence back
+     * so that lookups never need tombstones.
+     */
+    private void remove(final int entry) {
+        final int base = entry * STRIDE;
+        int hole = spread(_meta.get(base + HASH)) & _mask;
+        while (_table.get(hole) != entry + 1) {
+            hole = (hole + 1) & _mask;
+        }
+        int bucket = hole;
+        while (true) {
+            bucket = (bucket + 1) & _mask;
+            final int moved = _table.get(bucket) - 1;
+            if (moved < 0) {
+                break;
+            }
+            final int home = spread(_meta.get(moved * STRIDE + HASH)) & _mask;
+            // moved may fill the hole unless its home lies cyclically within (hole, bucket]
+            final boolean homeBetween = hole <= bucket
+                    ? hole < home && home <= bucket
+                    : hole < home || home <= bucket;
+            if (!homeBetween) {
+                _table.set(hole, moved + 1);
+                hole = bucket;
+            }
+        }
+        _table.set(hole, 0);
+
+        _liveBytes -= _meta.get(base + KEY_LENGTH) + _meta.get(base + VALUE_LENGTH);
+        _used[entry] = false;
+        _referenced[entry] = false;
+        _freeSlots[_numFree++] = entry;
+    }
+
+    /**
+     * @return copies of the resident entries, in eviction order like ClockEvictionPolicy.
+     */
+    @Override
+    Collection<KVCache.CacheEntry> getCacheEntries() {
+        final byte[] slab = _slab;
+        final List<KVCache.CacheEntry> entries = new ArrayList<KVCache.CacheEntry>(_size - _numFree);
+        final List<KVCache.CacheEntry> referenced = new ArrayList<KVCache.CacheEntry>();
+        for (int i = 0; i < _size; ++i) {
+            final int entry = (_hand + i) % _size;
+            if (_used[entry]) {
+                (_referenced[entry] ? referenced : entries).add(
+                        new KVCache.CacheEntry(_referenced[entry], true, keyOf(entry, slab), valueOf(entry, slab)));
+            }
+        }
+        entries.addAll(referenced);
+        return entries;
+    }
+
+    @Override
+    int getEntryCount() {
+        return _size - _numFree;
+    }
+
+    /**
+     * @return the size of the slab, in bytes.
+     */
+    int getSlabCapacity() {
+        return _slab.length;
+    }
+}
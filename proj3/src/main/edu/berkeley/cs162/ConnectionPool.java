@@ -0,0 +1,125 @@
+/**
+ * A bounded pool of framed connections to one Key-Value server
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Up to maxConnections framed connections to server:port, shared by the threads using
+ * one KVClient. A thread borrows a connection for one exchange of requests and gives it
+ * back; when all of them are in use, the next thread waits. Idle connections are kept
+ * open, most recently used first, and a connection that fails is thrown away. The server
+ * closes connections that stay idle too long, so an exchange that fails on an idle
+ * connection is tried once more on a new one; every request is safe to repeat.
+ */
+final class ConnectionPool {
+    private final String server;
+    private final int port;
+    private final KVMessage.WireFormat format;
+    private final int maxConnections;
+
+    /** One permit per connection that may still be borrowed or opened. */
+    private final Semaphore available;
+    private final ConcurrentLinkedDeque<FramedConnection> idle = new ConcurrentLinkedDeque<FramedConnection>();
+
+    ConnectionPool(final String server, final int port, final KVMessage.WireFormat format, final int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.server = server;
+        this.port = port;
+        this.format = format;
+        this.maxConnections = maxConnections;
+        this.available = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Sends reqs over a pooled connection, opening one if none is idle.
+     * @return one response per request, in the same order.
+     */
+    List<KVMessage> exchange(final List<KVMessage> reqs) throws KVException {
+        try {
+            available.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.CONNECT_ERROR));
+        }
+        FramedConnection conn = null;
+        try {
+            conn = idle.pollFirst();
+            List<KVMessage> resps = null;
+            if (conn != null) {
+                try {
+                    resps = conn.exchange(reqs);
+                } catch (final IOException e) {
+                    // most likely closed by the server while idle
+                    conn.close();
+                }
+            }
+            if (resps == null) {
+                conn = new FramedConnection(server, port, format);
+                resps = conn.exchange(reqs);
+            }
+            idle.addFirst(conn);
+            conn = null;
+            return resps;
+        } catch (final IOException e) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DATA_RECEIVE_ERROR));
+        } finally {
+            // still set if the exchange failed, in which case the stream is out of step
+            if (conn != null) {
+                conn.close();
+            }
+            available.release();
+        }
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the number of open connections nobody is using.
+     */
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Closes the idle connections. Borrowed ones are returned to the pool as usual.
+     */
+    void close() {
+        FramedConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Counting Bloom filter over the keys of a KVStore.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter with 8-bit counters instead of bits, so that keys can be removed as
+ * well as added. mightContain never answers false for a key that was added and not
+ * removed; it answers true for an absent key with about the false positive rate the
+ * filter was sized for, as long as it holds no more keys than expected.
+ *
+ * Counters are packed four to an int and updated with compare-and-set, so any number
+ * of threads may add, remove and check at once. A counter that reaches 255 stays there,
+ * which can only cause false positives. Adds and removes of the same key must not race
+ * with each other; KVServer serializes them with the key's set lock.
+ */
+final class CountingBloomFilter {
+    private static final int COUNTERS_PER_INT = 4;
+    private static final int MAX_COUNT = 0xff;
+
+    private final AtomicIntegerArray _counters;
+    private final int _numCounters;
+    private final int _numHashes;
+    private final int _expectedKeys;
+    private final double _expectedFalsePositiveRate;
+
+    private final LongAdder _checks = new LongAdder();
+    private final LongAdder _negatives = new LongAdder();
+    private final LongAdder _falsePositives = new LongAdder();
+
+    /**
+     * @param expectedKeys how many keys the filter will hold at most.
+     * @param falsePositiveRate the chance of mightContain being true for an absent key
+     *                          when the filter holds expectedKeys keys.
+     */
+    CountingBloomFilter(final int expectedKeys, final double falsePositiveRate) {
+        if (expectedKeys < 1 || !(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("Bad filter size: " + expectedKeys + " keys at " + falsePositiveRate);
+        }
+        final double ln2 = Math.log(2);
+        final long counters = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        _numCounters = (int) Math.min(Integer.MAX_VALUE - COUNTERS_PER_INT, Math.max(64, counters));
+        _numHashes = Math.max(1, (int) Math.round((double) _numCounters / expectedKeys * ln2));
+        _counters = new AtomicIntegerArray((_numCounters + COUNTERS_PER_INT - 1) / COUNTERS_PER_INT);
+        _expectedKeys = expectedKeys;
+        _expectedFalsePositiveRate = falsePositiveRate;
+    }
+
+    void add(final String key) {
+        final long hash = hash(key);
+        for (int i = 0; i < _numHashes; ++i) {
+            update(index(hash, i), 1);
+        }
+    }
+
+    void remove(final String key) {
+        final long hash = hash(key);
+        for (int i = 0; i < _numHashes; ++i) {
+            update(index(hash, i), -1);
+        }
+    }
+
+    /**
+     * @return false if key is certainly not in the filter, true if it may be.
+     */
+    boolean mightContain(final String key) {
+        _checks.increment();
+        final long hash = hash(key);
+        for (int i = 0; i < _numHashes; ++i) {
+            if (count(index(hash, i)) == 0) {
+                _negatives.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that mightContain answered true for a key that turned out to be absent.
+     */
+    void recordFalsePositive() {
+        _falsePositives.increment();
+    }
+
+    long getCheckCount() {
+        return _checks.sum();
+    }
+
+    long getNegativeCount() {
+        return _negatives.sum();
+    }
+
+    long getFalsePositiveCount() {
+        return _falsePositives.sum();
+    }
+
+    /**
+     * @return the share of checks of absent keys that the filter could not rule out, so far.
+     */
+    double getFalsePositiveRate() {
+        final long falsePositives = _falsePositives.sum();
+        final long absent = falsePositives + _negatives.sum();
+        return absent == 0 ? 0.0 : (double) falsePositives / absent;
+    }
+
+    double getExpectedFalsePositiveRate() {
+        return _expectedFalsePositiveRate;
+    }
+
+    int getExpectedKeys() {
+        return _expectedKeys;
+    }
+
+    /**
+     * 64-bit FNV-1a over the key's characters, finished with the MurmurHash3 mixer so
+     * that keys differing in their last character still spread over the whole table.
+     */
+    private static long hash(final String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the i-th counter of a key, by double hashing from the two halves of its hash.
+     */
+    private int index(final long hash, final int i) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % _numCounters;
+    }
+
+    private int count(final int index) {
+        final int shift = (index % COUNTERS_PER_INT) * 8;
+        return (_counters.get(index / COUNTERS_PER_INT) >>> shift) & MAX_COUNT;
+    }
+
+    private void update(final int index, final int delta) {
+        final int slot = index / COUNTERS_PER_INT;
+        final int shift = (index % COUNTERS_PER_INT) * 8;
+        while (true) {
+            final int word = _counters.get(slot);
+            final int count = (word >>> shift) & MAX_COUNT;
+            // a saturated counter has lost track of how many keys share it, and an
+            // empty one has nothing to remove
+            if (count == MAX_COUNT || (count == 0 && delta < 0)) {
+                return;
+            }
+            if (_counters.compareAndSet(slot, word, word + (delta << shift))) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Eviction policy abstraction for the set-associative cache.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Collection;
+
+/**
+ * Decides which entry of a KVCache.CacheSet to drop when the set is full.
+ * One instance is created per CacheSet, and every method is called with that
+ * set's write lock held, so implementations need no synchronization of their own.
+ */
+interface EvictionPolicy {
+
+    /**
+     * @return true if this policy wants to be told about cache hits through onAccess.
+     * Hits happen without the write lock, so the CacheSet buffers them and replays
+     * them on the next write. CLOCK only needs the entry's reference bit and returns false.
+     */
+    boolean recordsAccesses();
+
+    /**
+     * Called for a hit on an entry that is resident in the set.
+     */
+    void onAccess(KVCache.CacheEntry entry);
+
+    /**
+     * Called after a new entry has been added to the set. The set is guaranteed to have room.
+     */
+    void onInsert(KVCache.CacheEntry entry);
+
+    /**
+     * Called after an entry has left the set, whether it was evicted or deleted.
+     */
+    void onRemove(KVCache.CacheEntry entry);
+
+    /**
+     * Picks the entry to evict to make room for candidateKey. Only called on a full set.
+     * @param candidateKey the key about to be inserted.
+     * @return a resident entry. The caller removes it and then calls onRemove.
+     */
+    KVCache.CacheEntry selectVictim(String candidateKey);
+
+    /**
+     * @return the resident entries, in the order this policy would evict them.
+     */
+    Collection<KVCache.CacheEntry> entries();
+}
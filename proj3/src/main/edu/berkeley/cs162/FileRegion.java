@@ -0,0 +1,91 @@
+/**
+ * A byte range of a file, sent without being read onto the heap.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A byte range of a file that is sent with FileChannel.transferTo, so the kernel copies
+ * it straight from the page cache to the socket and the heap never holds the bytes.
+ * Whoever ends up holding a region must close it once it has been sent or abandoned;
+ * until then the file it points into stays open.
+ */
+final class FileRegion implements Closeable {
+    private final FileChannel channel;
+    private final Closeable owner;
+    private long position;
+    private long remaining;
+    private boolean closed = false;
+
+    /**
+     * @param owner closed along with the region, to release whatever keeps channel open.
+     */
+    FileRegion(final FileChannel channel, final long position, final long count, final Closeable owner) {
+        this.channel = channel;
+        this.owner = owner;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    /**
+     * @return the number of bytes not sent yet.
+     */
+    long remaining() {
+        return remaining;
+    }
+
+    /**
+     * Sends as much of the rest of the region as target takes without blocking, or
+     * all of it if target is blocking.
+     * @return the number of bytes sent.
+     */
+    long transferTo(final WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (remaining > 0) {
+            final long n = channel.transferTo(position, remaining, target);
+            if (n <= 0) {
+                break;
+            }
+            position += n;
+            remaining -= n;
+            sent += n;
+        }
+        return sent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            owner.close();
+        }
+    }
+}
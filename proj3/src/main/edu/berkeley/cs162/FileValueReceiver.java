@@ -0,0 +1,149 @@
+/**
+ * Streams a value from the server into a file.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Gets one value over a BINARY framed connection of its own and writes it into a file
+ * with FileChannel.transferFrom, so that the value never has to fit on the heap. The
+ * fixed-size fields around it are picked up with scattering reads, one for the fields
+ * before the key and one for the key and the value length after it.
+ */
+final class FileValueReceiver {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private FileValueReceiver() {
+    }
+
+    /**
+     * Writes key's value into out from its current position, and moves the position past it.
+     * @return the length of the value in bytes.
+     * @throws KVException with the server's response if it did not return a value.
+     */
+    static long receive(final String server, final int port, final String key, final FileChannel out)
+            throws KVException {
+        final KVMessage req = new KVMessage(KVMessage.MessageType.GETREQ.toString());
+        req.setKey(key);
+        final byte[] body = KVMessage.WireFormat.BINARY.encode(req);
+
+        final SocketChannel channel;
+        try {
+            channel = SocketChannel.open(new InetSocketAddress(server, port));
+        } catch (final IOException e) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.SOCKET_ERROR));
+        }
+        try {
+            final ByteBuffer request = ByteBuffer.allocate(8 + body.length);
+            request.putInt(KVMessage.WireFormat.BINARY.preamble).putInt(body.length).put(body).flip();
+            try {
+                while (request.hasRemaining()) {
+                    channel.write(request);
+                }
+            } catch (final IOException e) {
+                throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DATA_SEND_ERROR));
+            }
+            return readResponse(channel, out);
+        } catch (final IOException e) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DATA_RECEIVE_ERROR));
+        } finally {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                // nothing left to clean up
+            }
+        }
+    }
+
+    /**
+     * Reads a get response laid out as KVMessage.toBinaryFrameAround describes.
+     */
+    private static long readResponse(final SocketChannel channel, final FileChannel out)
+            throws IOException, KVException {
+        final ByteBuffer frameLength = ByteBuffer.allocate(4);
+        final ByteBuffer type = ByteBuffer.allocate(1);
+        final ByteBuffer keyLength = ByteBuffer.allocate(4);
+        readFully(channel, frameLength, type, keyLength);
+        final int keyBytes = keyLength.getInt(0);
+        if (frameLength.getInt(0) > KVMessage.MAX_FRAME_BYTES || keyBytes > KVMessage.MAX_FRAME_BYTES) {
+            throw new IOException("Invalid response");
+        }
+
+        final ByteBuffer valueLength = ByteBuffer.allocate(4);
+        readFully(channel, ByteBuffer.allocate(Math.max(keyBytes, 0)), valueLength);
+        final int length = valueLength.getInt(0);
+        if (length < 0) {
+            // no value, so an error; the message says which
+            throw new KVException(new KVMessage(KVMessage.MessageType.RESP.toString(), readString(channel)));
+        }
+
+        final long start = out.position();
+        long received = 0;
+        while (received < length) {
+            final long n = out.transferFrom(channel, start + received, length - received);
+            if (n <= 0) {
+                throw new EOFException("Response ends early");
+            }
+            received += n;
+        }
+        out.position(start + length);
+        readString(channel);
+        return length;
+    }
+
+    private static String readString(final SocketChannel channel) throws IOException {
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length);
+        final int n = length.getInt(0);
+        if (n < 0) {
+            return null;
+        }
+        if (n > KVMessage.MAX_FRAME_BYTES) {
+            throw new IOException("Invalid response");
+        }
+        final ByteBuffer bytes = ByteBuffer.allocate(n);
+        readFully(channel, bytes);
+        return new String(bytes.array(), UTF8);
+    }
+
+    private static void readFully(final ScatteringByteChannel channel, final ByteBuffer... buffers)
+            throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            if (channel.read(buffers) < 0) {
+                throw new EOFException("Response ends early");
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * A blocking framed connection from a client to a Key-Value server
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One framed connection in a given KVMessage.WireFormat, used by one thread at a time.
+ * Requests are pipelined: up to MAX_IN_FLIGHT_REQUESTS, or MAX_IN_FLIGHT_BYTES of them,
+ * are written before their responses are read.
+ */
+final class FramedConnection {
+
+    /**
+     * A pipeline stops to read responses after this many requests, or before a request
+     * would take it past this many bytes; a larger request goes in a pipeline of its own.
+     * Small pipelines usually fit in the socket buffers, which makes it unlikely that
+     * both sides block writing at once, though small enough buffers can still do that.
+     */
+    static final int MAX_IN_FLIGHT_REQUESTS = 32;
+    static final int MAX_IN_FLIGHT_BYTES = 32 * 1024;
+
+    private final KVMessage.WireFormat format;
+    private final Socket sock;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /**
+     * Connects and sends the preamble of format.
+     * @throws KVException "Network Error: Could not create socket" if the server cannot be reached.
+     */
+    FramedConnection(final String server, final int port, final KVMessage.WireFormat format)
+            throws KVException, IOException {
+        this.format = format;
+        try {
+            sock = new Socket(server, port);
+        } catch (IOException e) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.SOCKET_ERROR));
+        }
+        try {
+            sock.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            out.writeInt(format.preamble);
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends reqs and returns their responses in the same order. After an exception the
+     * stream may be out of step with the requests, so the connection must be closed.
+     */
+    List<KVMessage> exchange(final List<KVMessage> reqs) throws KVException, IOException {
+        final List<KVMessage> resps = new ArrayList<KVMessage>(reqs.size());
+        int next = 0;
+        // the next request, encoded first so its size counts before it joins a pipeline
+        byte[] held = null;
+        while (next < reqs.size()) {
+            final int start = next;
+            int bytes = 0;
+            while (next < reqs.size() && next - start < MAX_IN_FLIGHT_REQUESTS) {
+                if (held == null) {
+                    held = format.encode(reqs.get(next));
+                }
+                if (next > start && bytes + 4 + held.length > MAX_IN_FLIGHT_BYTES) {
+                    break;
+                }
+                out.writeInt(held.length);
+                out.write(held);
+                bytes += 4 + held.length;
+                held = null;
+                ++next;
+            }
+            out.flush();
+            for (int i = start; i < next; ++i) {
+                final byte[] frame = KVMessage.receiveFrame(in);
+                if (frame == null) {
+                    throw new IOException("Connection closed by server");
+                }
+                resps.add(format.decode(frame));
+            }
+        }
+        return resps;
+    }
+
+    void close() {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // nothing left to clean up
+        }
+    }
+}
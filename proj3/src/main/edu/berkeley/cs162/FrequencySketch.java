@@ -0,0 +1,101 @@
+/**
+ * Approximate frequency counter used for cache admission.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * A count-min sketch of 4-bit counters that estimates how often a key has been seen.
+ * When the number of increments reaches the sample size, every counter is halved so
+ * that the sketch follows changes in popularity instead of remembering forever.
+ * Not thread safe; callers hold the owning CacheSet's write lock.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb8b2b3a5, 0x85ebca6b, 0xc2b2ae35};
+
+    private final byte[][] _table;
+    private final int _mask;
+    private final int _sampleSize;
+    private int _additions = 0;
+
+    /**
+     * @param expectedEntries the number of entries the cache can hold.
+     */
+    FrequencySketch(final int expectedEntries) {
+        final int width = nextPowerOfTwo(Math.max(16, expectedEntries * 4));
+        _table = new byte[DEPTH][width];
+        _mask = width - 1;
+        _sampleSize = Math.max(32, expectedEntries * 10);
+    }
+
+    /**
+     * @return the estimated number of times key has been incremented, at most 15.
+     */
+    int frequency(final String key) {
+        final int hash = key.hashCode();
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; ++row) {
+            min = Math.min(min, _table[row][index(hash, row)]);
+        }
+        return min;
+    }
+
+    void increment(final String key) {
+        final int hash = key.hashCode();
+        boolean added = false;
+        for (int row = 0; row < DEPTH; ++row) {
+            final int i = index(hash, row);
+            if (_table[row][i] < MAX_COUNT) {
+                ++_table[row][i];
+                added = true;
+            }
+        }
+        if (added && ++_additions >= _sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (final byte[] row : _table) {
+            for (int i = 0; i < row.length; ++i) {
+                row[i] >>= 1;
+            }
+        }
+        _additions /= 2;
+    }
+
+    private int index(final int hash, final int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return h & _mask;
+    }
+
+    private static int nextPowerOfTwo(final int n) {
+        return Integer.highestOneBit(n - 1) << 1;
+    }
+}
@@ -30,22 +30,17 @@
  */
 package edu.berkeley.cs162;
 
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Result;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import java.io.StringWriter;
-import java.io.Writer;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -54,40 +49,176 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 
 /**
- * A set-associate cache which has a fixed maximum number of sets (numSets).
+ * A set-associate cache which starts with numSets sets.
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on the eviction policy.
+ *
+ * The cache can be resized while it serves. split and merge add or remove one set at a
+ * time by linear hashing, so only the keys of the set being split or merged move, and
+ * setMaxElemsPerSet rebuilds the sets one by one. Only the sets being changed are locked.
+ * A key may therefore change sets: whoever locks a set for a key must check afterwards
+ * that getWriteLock(key) still returns that lock, and retry otherwise.
  */
 public class KVCache implements KeyValueInterface {
-    private int numSets = 100;
-    private int maxElemsPerSet = 10;
-    private final List<CacheSet> _sets;
+    /** The set count this cache was created with, and the fewest sets merge leaves. */
+    private final int baseSets;
+    /** The size of sets created from now on. */
+    private volatile int maxElemsPerSet;
+    private final EvictionPolicyType policyType;
+    private final EntryLayout layout;
+
+    /** The current sets. Replaced, never modified, by the resize methods. */
+    private volatile Table _table;
+
+    /**
+     * Counts of the sets that merge and setMaxElemsPerSet dropped, so that the cache's
+     * totals never go backwards. Only written while holding this cache's monitor.
+     */
+    private volatile long _retiredHits;
+    private volatile long _retiredMisses;
+    private volatile long _retiredEvictions;
+
+    /**
+     * The value of a negative entry, which records that the store does not have its key.
+     * Compared by identity; lookup returns this very instance.
+     */
+    static final String ABSENT = new String("");
 
     /**
-     * Creates a new LRU cache.
-     * @param cacheSize the maximum number of entries that will be kept in this cache.
+     * The eviction policies a KVCache can be built with. Each set gets its own policy instance.
+     */
+    public enum EvictionPolicyType {
+        /** Second-chance eviction. The default. */
+        CLOCK {
+            EvictionPolicy create(final int size) { return new ClockEvictionPolicy(size); }
+        },
+        /** Least recently used. */
+        LRU {
+            EvictionPolicy create(final int size) { return new LRUEvictionPolicy(); }
+        },
+        /** 2Q: a FIFO probation queue in front of an LRU, with a ghost list of recently evicted keys. */
+        TWO_QUEUE {
+            EvictionPolicy create(final int size) { return new TwoQueueEvictionPolicy(size); }
+        },
+        /** W-TinyLFU: an LRU window in front of a segmented LRU with frequency-based admission. */
+        W_TINY_LFU {
+            EvictionPolicy create(final int size) { return new TinyLFUEvictionPolicy(size); }
+        };
+
+        abstract EvictionPolicy create(int size);
+    }
+
+    /**
+     * How a KVCache keeps its entries in memory.
+     */
+    public enum EntryLayout {
+        /** A CacheEntry per entry, holding its key and value as Strings. Works with every policy. */
+        OBJECTS,
+        /**
+         * Keys and values as UTF-8 in one byte array per set, found through an open-addressing
+         * table; see CompactCacheSet. Much less memory per entry, but CLOCK eviction only.
+         */
+        COMPACT
+    }
+
+    /**
+     * Creates a new cache with CLOCK eviction.
+     * @param numSets the number of sets in this cache.
+     * @param maxElemsPerSet the maximum number of entries in each set.
      */
     public KVCache(int numSets, int maxElemsPerSet) {
-        this.numSets = numSets;
+        this(numSets, maxElemsPerSet, EvictionPolicyType.CLOCK);
+    }
+
+    /**
+     * Creates a new cache.
+     * @param numSets the number of sets in this cache.
+     * @param maxElemsPerSet the maximum number of entries in each set.
+     * @param policyType the eviction policy each set uses.
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicyType policyType) {
+        this(numSets, maxElemsPerSet, policyType, EntryLayout.OBJECTS);
+    }
+
+    /**
+     * Creates a new cache.
+     * @param numSets the number of sets in this cache.
+     * @param maxElemsPerSet the maximum number of entries in each set.
+     * @param policyType the eviction policy each set uses.
+     * @param layout how the sets keep their entries. COMPACT requires CLOCK.
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicyType policyType, EntryLayout layout) {
+        if (layout == EntryLayout.COMPACT && policyType != EvictionPolicyType.CLOCK) {
+            throw new IllegalArgumentException("The compact layout only supports CLOCK eviction");
+        }
+        if (numSets < 1 || maxElemsPerSet < 1) {
+            throw new IllegalArgumentException("A cache needs at least one set of at least one entry");
+        }
+        this.baseSets = numSets;
         this.maxElemsPerSet = maxElemsPerSet;
-        this._sets = new ArrayList<CacheSet>();
+        this.policyType = policyType;
+        this.layout = layout;
+        final CacheSet[] sets = new CacheSet[numSets];
         for (int i = 0; i < numSets; ++i) {
-            this._sets.add(new CacheSet(i, this.maxElemsPerSet));
+            sets[i] = newSet(i, maxElemsPerSet);
+        }
+        this._table = new Table(sets, baseSets);
+    }
+
+    private CacheSet newSet(final int id, final int size) {
+        return layout == EntryLayout.COMPACT
+                ? new CompactCacheSet(id, size)
+                : new CacheSet(id, size, policyType);
+    }
+
+    /**
+     * The sets of a KVCache at one point in time, and how keys map to them, by linear
+     * hashing. With n sets, and round the largest numSets * 2^k that is at most n, a key
+     * goes to set hash % (2 * round), or to hash % round if that set does not exist yet.
+     * Sets below n - round have been split in this round; set n - round is split next.
+     */
+    private static final class Table {
+        final CacheSet[] sets;
+        final int round;
+
+        Table(final CacheSet[] sets, final int baseSets) {
+            this.sets = sets;
+            int round = baseSets;
+            while (sets.length / 2 >= round) {
+                round *= 2;
+            }
+            this.round = round;
+        }
+
+        int indexFor(final int hash) {
+            final int index = (int) (hash % (2L * round));
+            return index < sets.length ? index : index - round;
         }
     }
 
     /**
      * Retrieves an entry from the cache.
-     * Assumes the corresponding set has already been locked for writing.
+     * Does not require the corresponding set to be locked; readers validate against the set's
+     * sequence counter and only fall back to the set's read lock under heavy write traffic.
      * @param key the key whose associated value is to be returned.
      * @return the value associated to this key, or null if no value with this key exists in the cache.
      */
     public String get(String key) {
+        final String value = lookup(key);
+        return value != ABSENT ? value : null;
+    }
+
+    /**
+     * Same as get, except that a key with a negative entry returns ABSENT. A negative
+     * entry counts as a hit.
+     * @return the value associated to this key, ABSENT, or null if the cache does not know.
+     */
+    String lookup(String key) {
         // Must be called before anything else
         AutoGrader.agCacheGetStarted(key);
         AutoGrader.agCacheGetDelay();
 
-        final String toReturn = _sets.get(this.getSetId(key)).get(key);
+        final String toReturn = setFor(key).get(key);
 
         // Must be called before returning
         AutoGrader.agCacheGetFinished(key);
@@ -109,13 +240,23 @@ public class KVCache implements KeyValueInterface {
         AutoGrader.agCachePutStarted(key, value);
         AutoGrader.agCachePutDelay();
 
-        _sets.get(this.getSetId(key)).put(key, value);
+        setFor(key).put(key, value);
 
         // Must be called before returning
         AutoGrader.agCachePutFinished(key, value);
         return false;
     }
 
+    /**
+     * Adds a negative entry for key, recording that the store does not have it, so that
+     * lookups of key stop going to the store. It takes a slot like any other entry and is
+     * replaced by the next put of key. Negative entries are left out of toXML.
+     * Assumes the corresponding set has already been locked for writing.
+     */
+    void putAbsent(String key) {
+        setFor(key).put(key, ABSENT);
+    }
+
     /**
      * Removes an entry from this cache.
      * Assumes the corresponding set has already been locked for writing.
@@ -126,7 +267,7 @@ public class KVCache implements KeyValueInterface {
         AutoGrader.agCacheDelStarted(key);
         AutoGrader.agCacheDelDelay();
 
-        _sets.get(this.getSetId(key)).del(key);
+        setFor(key).del(key);
 
         // Must be called before returning
         AutoGrader.agCacheDelFinished(key);
@@ -137,7 +278,12 @@ public class KVCache implements KeyValueInterface {
      * @return  the write lock of the set that contains key.
      */
     public WriteLock getWriteLock(String key) {
-        return _sets.get(this.getSetId(key)).getWriteLock();
+        return setFor(key).getWriteLock();
+    }
+
+    private CacheSet setFor(final String key) {
+        final Table table = _table;
+        return table.sets[table.indexFor(hash(key))];
     }
 
     /**
@@ -145,103 +291,325 @@ public class KVCache implements KeyValueInterface {
      * @param key
      * @return set of the key
      */
-    private int getSetId(String key) {
-        return Math.abs(key.hashCode() % numSets);
+    int getSetId(String key) {
+        return _table.indexFor(hash(key));
     }
 
-    public String toXML() throws KVException {
-        try {
-            final DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-            final DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
+    /**
+     * Maps key to one of numSets sets. KVStore stripes its data with the same function,
+     * so until the cache is resized, the set lock of a key also covers the store stripe
+     * that holds it.
+     * @param key
+     * @param numSets
+     * @return set of the key
+     */
+    static int setIndexFor(final String key, final int numSets) {
+        return hash(key) % numSets;
+    }
 
-            final Document doc = docBuilder.newDocument();
+    /**
+     * Scrambles the String hash code of key with the finalizer of MurmurHash3. The hash
+     * codes of keys that differ only in their last characters, such as sequential ids,
+     * are close together and step by multiples of 31, so taken modulo the set count they
+     * pile up in some sets and leave others empty.
+     * @return a non-negative hash of key.
+     */
+    static int hash(final String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & Integer.MAX_VALUE;
+    }
 
-            // The tokens we will be using.
-            final String KV_CACHE = "KVCache";
-            final String SET = "Set";
-            final String ID = "Id";
-            final String CACHE_ENTRY = "CacheEntry";
-            final String IS_REFERENCED = "isReferenced";
-            final String IS_VALID = "isValid";
-            final String KEY = "Key";
-            final String VALUE = "Value";
+    /**
+     * @return the number of sets in this cache.
+     */
+    int getNumSets() {
+        return _table.sets.length;
+    }
 
-            final Element rootElement = doc.createElement(KV_CACHE);
-            doc.appendChild(rootElement);
+    /**
+     * @return the number of entries new sets hold.
+     */
+    int getMaxElemsPerSet() {
+        return maxElemsPerSet;
+    }
 
-            for (final CacheSet curSet : _sets) {
-                Element curSetNode = doc.createElement(SET);
-                rootElement.appendChild(curSetNode);
+    CacheSet getSet(final int id) {
+        return _table.sets[id];
+    }
 
-                Attr curSetId = doc.createAttribute(ID);
-                curSetId.setValue(Integer.toString(curSet.getId()));
-                curSetNode.setAttributeNode(curSetId);
+    /**
+     * @return the sets of this cache, as of now.
+     */
+    List<CacheSet> getSets() {
+        return Collections.unmodifiableList(Arrays.asList(_table.sets));
+    }
 
-                for (final CacheEntry curEntry : curSet.getCacheEntries()) {
-                    Element curEntryNode = doc.createElement(CACHE_ENTRY);
-                    curSetNode.appendChild(curEntryNode);
+    /**
+     * @return the number of entries in this cache, negative ones included. Approximate
+     * while the cache is being written.
+     */
+    public int getEntryCount() {
+        int count = 0;
+        for (final CacheSet set : _table.sets) {
+            count += set.getEntryCount();
+        }
+        return count;
+    }
 
-                    Attr curEntryIsReferenced = doc.createAttribute(IS_REFERENCED);
-                    curEntryIsReferenced.setValue(Boolean.toString(curEntry.getIsReferenced()));
-                    curEntryNode.setAttributeNode(curEntryIsReferenced);
+    /**
+     * @return the most entries this cache holds at its current size.
+     */
+    public int getCapacity() {
+        int capacity = 0;
+        for (final CacheSet set : _table.sets) {
+            capacity += set._size;
+        }
+        return capacity;
+    }
 
-                    Attr curEntryIsValid = doc.createAttribute(IS_VALID);
-                    curEntryIsValid.setValue(Boolean.toString(curEntry.getIsValid()));
-                    curEntryNode.setAttributeNode(curEntryIsValid);
+    /**
+     * Adds a set, which takes about half of the keys of the next set in line to be split.
+     * Only that set is locked meanwhile.
+     * @return the number of sets now.
+     */
+    public synchronized int split() {
+        final Table old = _table;
+        final int n = old.sets.length;
+        final CacheSet source = old.sets[n - old.round];
+        final CacheSet target = newSet(n, maxElemsPerSet);
+        final CacheSet[] sets = Arrays.copyOf(old.sets, n + 1);
+        sets[n] = target;
+        final Table grown = new Table(sets, baseSets);
+
+        final WriteLock sourceLock = source.getWriteLock();
+        final WriteLock targetLock = target.getWriteLock();
+        sourceLock.lock();
+        targetLock.lock();
+        try {
+            final List<String> moved = new ArrayList<String>();
+            for (final CacheEntry entry : source.getCacheEntries()) {
+                if (grown.indexFor(hash(entry.getKey())) == n) {
+                    target.put(entry.getKey(), entry.getValue());
+                    moved.add(entry.getKey());
+                }
+            }
+            _table = grown;
+            // readers that still use the old table find the moved entries until now
+            for (final String key : moved) {
+                source.del(key);
+            }
+        } finally {
+            targetLock.unlock();
+            sourceLock.unlock();
+        }
+        return n + 1;
+    }
 
-                    Element curEntryKey = doc.createElement(KEY);
-                    Element curEntryValue = doc.createElement(VALUE);
-                    curEntryNode.appendChild(curEntryKey);
-                    curEntryNode.appendChild(curEntryValue);
+    /**
+     * Folds the set added last back into the set it was split from. The merged set keeps
+     * its size, so its policy evicts what does not fit. Does nothing once the cache is
+     * back to the number of sets it was created with.
+     * @return the number of sets now.
+     */
+    public synchronized int merge() {
+        final Table old = _table;
+        final int n = old.sets.length;
+        if (n <= baseSets) {
+            return n;
+        }
+        final Table shrunk = new Table(Arrays.copyOf(old.sets, n - 1), baseSets);
+        final CacheSet source = old.sets[n - 1];
+        final CacheSet target = shrunk.sets[n - 1 - shrunk.round];
+
+        // the lower set first; nothing else holds two set locks
+        final WriteLock targetLock = target.getWriteLock();
+        final WriteLock sourceLock = source.getWriteLock();
+        targetLock.lock();
+        sourceLock.lock();
+        try {
+            for (final CacheEntry entry : source.getCacheEntries()) {
+                target.put(entry.getKey(), entry.getValue());
+            }
+            _table = shrunk;
+            retire(source);
+        } finally {
+            sourceLock.unlock();
+            targetLock.unlock();
+        }
+        return n - 1;
+    }
 
-                    curEntryKey.appendChild(doc.createTextNode(curEntry.getKey()));
-                    curEntryValue.appendChild(doc.createTextNode(curEntry.getValue()));
+    /**
+     * Changes the number of entries each set holds, rebuilding one set at a time. A set
+     * that shrinks keeps the entries its policy would evict last. Only the set being
+     * rebuilt is locked meanwhile.
+     */
+    public synchronized void setMaxElemsPerSet(final int maxElemsPerSet) {
+        if (maxElemsPerSet < 1) {
+            throw new IllegalArgumentException("A set needs room for at least one entry");
+        }
+        this.maxElemsPerSet = maxElemsPerSet;
+        for (int i = 0; i < _table.sets.length; ++i) {
+            final Table old = _table;
+            final CacheSet source = old.sets[i];
+            if (source._size == maxElemsPerSet) {
+                continue;
+            }
+            final CacheSet target = newSet(i, maxElemsPerSet);
+            final WriteLock sourceLock = source.getWriteLock();
+            final WriteLock targetLock = target.getWriteLock();
+            sourceLock.lock();
+            targetLock.lock();
+            try {
+                // in eviction order, so if the set shrinks, the entries its policy would
+                // evict first are put first and evicted again; reference bits start clear
+                for (final CacheEntry entry : source.getCacheEntries()) {
+                    target.put(entry.getKey(), entry.getValue());
                 }
-                // Handle invalid entries
-                for (int i = curSet.getCacheEntries().size(); i < this.maxElemsPerSet; ++i) {
-                    Element curInvalidNode = doc.createElement(CACHE_ENTRY);
-                    curSetNode.appendChild(curInvalidNode);
+                final CacheSet[] sets = old.sets.clone();
+                sets[i] = target;
+                _table = new Table(sets, baseSets);
+                retire(source);
+            } finally {
+                targetLock.unlock();
+                sourceLock.unlock();
+            }
+        }
+    }
 
-                    Attr curEntryIsReferenced = doc.createAttribute(IS_REFERENCED);
-                    curEntryIsReferenced.setValue(Boolean.toString(false));
-                    curInvalidNode.setAttributeNode(curEntryIsReferenced);
+    private void retire(final CacheSet set) {
+        _retiredHits += set.getHitCount();
+        _retiredMisses += set.getMissCount();
+        _retiredEvictions += set.getEvictionCount();
+    }
 
-                    Attr curEntryIsValid = doc.createAttribute(IS_VALID);
-                    curEntryIsValid.setValue(Boolean.toString(false));
-                    curInvalidNode.setAttributeNode(curEntryIsValid);
+    /**
+     * @return the number of gets that found their key since this cache was created.
+     */
+    public long getHitCount() {
+        long count = _retiredHits;
+        for (final CacheSet set : _table.sets) {
+            count += set.getHitCount();
+        }
+        return count;
+    }
 
-                    Element curEntryKey = doc.createElement(KEY);
-                    Element curEntryValue = doc.createElement(VALUE);
-                    curInvalidNode.appendChild(curEntryKey);
-                    curInvalidNode.appendChild(curEntryValue);
+    /**
+     * @return the number of gets that did not find their key since this cache was created.
+     */
+    public long getMissCount() {
+        long count = _retiredMisses;
+        for (final CacheSet set : _table.sets) {
+            count += set.getMissCount();
+        }
+        return count;
+    }
 
+    /**
+     * @return the number of entries evicted to make room for others since this cache was created.
+     */
+    public long getEvictionCount() {
+        long count = _retiredEvictions;
+        for (final CacheSet set : _table.sets) {
+            count += set.getEvictionCount();
+        }
+        return count;
+    }
 
-                }
-            }
+    public String toXML() throws KVException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeXML(out);
+        try {
+            return out.toString("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new KVException(KVMessage.unknownError("Could not generate XML"));
+        }
+    }
 
-            final TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            final Transformer transformer = transformerFactory.newTransformer();
-            final DOMSource domSource = new DOMSource(doc);
-            final Writer sw = new StringWriter();
-            final Result streamResult = new StreamResult(sw);
+    /**
+     * Streams the same document as toXML to out, one set at a time.
+     * out is flushed but not closed.
+     */
+    public void writeXML(final OutputStream out) throws KVException {
+        // The tokens we will be using.
+        final String KV_CACHE = "KVCache";
+        final String SET = "Set";
+        final String ID = "Id";
+        final String CACHE_ENTRY = "CacheEntry";
+        final String IS_REFERENCED = "isReferenced";
+        final String IS_VALID = "isValid";
+        final String KEY = "Key";
+        final String VALUE = "Value";
 
-            transformer.transform(domSource, streamResult);
+        try {
+            final XMLStreamWriter writer = Snapshots.startXml(out);
+            writer.writeStartElement(KV_CACHE);
 
-            return sw.toString();
+            for (final CacheSet curSet : _table.sets) {
+                writer.writeStartElement(SET);
+                writer.writeAttribute(ID, Integer.toString(curSet.getId()));
 
-        } catch (final ParserConfigurationException e) {
-            throw new KVException(KVMessage.unknownError("Could not create an XML parser"));
-        } catch (final TransformerException e) {
+                int written = 0;
+                for (final CacheEntry curEntry : curSet.getCacheEntries()) {
+                    if (curEntry.getValue() == ABSENT) continue;
+                    ++written;
+                    writer.writeStartElement(CACHE_ENTRY);
+                    writer.writeAttribute(IS_REFERENCED, Boolean.toString(curEntry.getIsReferenced()));
+                    writer.writeAttribute(IS_VALID, Boolean.toString(curEntry.getIsValid()));
+                    Snapshots.writeTextElement(writer, KEY, curEntry.getKey());
+                    Snapshots.writeTextElement(writer, VALUE, curEntry.getValue());
+                    writer.writeEndElement();
+                }
+                // Handle invalid entries
+                for (int i = written; i < curSet._size; ++i) {
+                    writer.writeStartElement(CACHE_ENTRY);
+                    writer.writeAttribute(IS_REFERENCED, Boolean.toString(false));
+                    writer.writeAttribute(IS_VALID, Boolean.toString(false));
+                    writer.writeEmptyElement(KEY);
+                    writer.writeEmptyElement(VALUE);
+                    writer.writeEndElement();
+                }
+                writer.writeEndElement();
+            }
+
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (final IOException e) {
+            throw new KVException(KVMessage.unknownError("Could not generate XML"));
+        } catch (final XMLStreamException e) {
             throw new KVException(KVMessage.unknownError("Could not generate XML"));
         }
-
     }
 
     static class CacheEntry {
-        boolean _isReferenced;
+        /**
+         * Volatile so that lock-free readers can set the reference bit without holding the write lock.
+         */
+        volatile boolean _isReferenced;
         boolean _isValid;
         final String _key;
-        String _value;
+        volatile String _value;
+
+        /**
+         * When this entry stops being served, as a System.nanoTime() value. Only used by
+         * sets with a time to live.
+         */
+        volatile long _expiresAt;
+
+        /**
+         * Bookkeeping owned by the set's EvictionPolicy: the slot used by CLOCK,
+         * and the links used by the list-based policies.
+         */
+        int _slot;
+        CacheEntry _prev;
+        CacheEntry _next;
+        CacheEntryList _list;
 
         CacheEntry(final boolean isReferenced,
                    final boolean isValid,
@@ -258,6 +626,12 @@ public class KVCache implements KeyValueInterface {
         boolean getIsReferenced() { return _isReferenced; }
         CacheEntry setIsReferenced(final boolean isReferenced) { _isReferenced = isReferenced; return this; }
 
+        /**
+         * Sets the reference bit, skipping the write if it is already set so that
+         * concurrent readers of a hot entry do not keep invalidating its cache line.
+         */
+        void markReferenced() { if (!_isReferenced) _isReferenced = true; }
+
         String getKey() { return _key; }
 
         String getValue() { return _value; }
@@ -269,6 +643,16 @@ public class KVCache implements KeyValueInterface {
      * Encapsulates a cache set of this KVCache.
      */
     static class CacheSet {
+        /**
+         * How many times a reader retries an optimistic read before taking the read lock.
+         */
+        static final int MAX_OPTIMISTIC_READS = 8;
+
+        /**
+         * Number of hits buffered for the eviction policy between writes. Must be a power of two.
+         */
+        static final int READ_BUFFER_SIZE = 16;
+
         /**
          * The id of this Set. Somewhere in the range of 0 to numSets - 1.
          */
@@ -280,32 +664,91 @@ public class KVCache implements KeyValueInterface {
         final int _size;
 
         /**
-         * This Queue holds the Cache entries ordered by time of insertion.
+         * Decides which entry to drop when this set is full.
          */
-        final Queue<CacheEntry> _queue;
+        final EvictionPolicy _policy;
 
         /**
-         * The lock used to synchronize access to this CacheSet.
+         * Hits recorded by lock-free readers, replayed into the policy on the next write.
+         * Lossy: a new hit overwrites whatever is in its slot. Null if the policy does not
+         * record accesses.
+         */
+        final AtomicReferenceArray<CacheEntry> _readBuffer;
+        final AtomicInteger _readBufferIndex;
+
+        /**
+         * The lock used to synchronize writers of this CacheSet.
          */
         final ReentrantReadWriteLock _lock;
 
+        /**
+         * Sequence counter for optimistic readers. Writers bump it before and after every
+         * mutation, so it is odd while a mutation is in progress. A reader that sees the same
+         * even value before and after its lookup has read a consistent snapshot.
+         */
+        volatile long _seq;
+
         /**
          * This map provides quick checking of whether an entry is present in the cache.
-         * Not necessary for correctness, but provides efficiency gains at the cost
-         * of increased memory usage.
+         * It is concurrent so that optimistic readers never observe a half-resized table.
          */
         final Map<String, CacheEntry> _lookupTable;
 
         /**
-         * Default constructor.
+         * How long an entry is served after it was last written, or 0 to serve it until
+         * it is evicted.
+         */
+        final long _ttlNanos;
+
+        /**
+         * Number of entries dropped to make room for others. Only written with the write lock held.
+         */
+        volatile long _evictionCount;
+
+        /**
+         * Lookups that found, or did not find, a live entry.
+         */
+        final LongAdder _hits = new LongAdder();
+        final LongAdder _misses = new LongAdder();
+
+        /**
+         * Default constructor. Uses CLOCK eviction.
          * @param id  The id of this CacheSet.
          * @param size The size of this CacheSet.
          */
         CacheSet(final int id, final int size) {
+            this(id, size, EvictionPolicyType.CLOCK);
+        }
+
+        /**
+         * @param id  The id of this CacheSet.
+         * @param size The size of this CacheSet.
+         * @param policyType The eviction policy to use.
+         */
+        CacheSet(final int id, final int size, final EvictionPolicyType policyType) {
+            this(id, size, policyType, 0);
+        }
+
+        /**
+         * @param id  The id of this CacheSet.
+         * @param size The size of this CacheSet.
+         * @param policyType The eviction policy to use, or null for a subclass that keeps
+         *                   its entries itself and overrides every method that touches them.
+         * @param ttlNanos How long entries are served after they were written, or 0 for no limit.
+         */
+        CacheSet(final int id, final int size, final EvictionPolicyType policyType, final long ttlNanos) {
             _id = id;
+            _ttlNanos = ttlNanos;
             _size = size;
-            _queue = new LinkedList<CacheEntry>();
-            _lookupTable = new HashMap<String, CacheEntry>();
+            _policy = policyType != null ? policyType.create(size) : null;
+            if (_policy != null && _policy.recordsAccesses()) {
+                _readBuffer = new AtomicReferenceArray<CacheEntry>(READ_BUFFER_SIZE);
+                _readBufferIndex = new AtomicInteger();
+            } else {
+                _readBuffer = null;
+                _readBufferIndex = null;
+            }
+            _lookupTable = _policy != null ? new ConcurrentHashMap<String, CacheEntry>() : null;
             _lock = new ReentrantReadWriteLock();
         }
 
@@ -313,8 +756,26 @@ public class KVCache implements KeyValueInterface {
             return _lock.writeLock();
         }
 
+        /**
+         * Marks the start of a mutation. Must be called with the write lock held.
+         */
+        void beginWrite() {
+            _seq++;
+        }
+
+        /**
+         * Marks the end of a mutation. Must be called with the write lock held.
+         */
+        void endWrite() {
+            _seq++;
+        }
+
+        /**
+         * @return the valid entries of this set, in the order the policy would evict them
+         * if nothing were read meanwhile.
+         */
         Collection<CacheEntry> getCacheEntries() {
-            return _queue;
+            return _policy.entries();
         }
 
         int getId() {
@@ -328,61 +789,150 @@ public class KVCache implements KeyValueInterface {
          */
         void put(final String key, final String value) {
             assert _lock.isWriteLockedByCurrentThread();
-            if (_lookupTable.containsKey(key)) {
-                // we already have an entry for this key, so we update the cache entry with the new value,
-                // and set the refBit to true
-                _lookupTable.get(key).setIsReferenced(true).setValue(value);
-
-            } else {
+            beginWrite();
+            try {
+                drainReadBuffer();
+                final CacheEntry existing = _lookupTable.get(key);
+                if (existing != null) {
+                    // we already have an entry for this key, so we update the cache entry with the new value,
+                    // and set the refBit to true
+                    existing.setIsReferenced(true).setValue(value);
+                    if (_ttlNanos > 0) existing._expiresAt = System.nanoTime() + _ttlNanos;
+                    _policy.onAccess(existing);
+
+                } else {
+
+                    if (_lookupTable.size() >= _size) {
+                        performEviction(key);
+                    }
 
-                if (_queue.size() == _size) {
-                    performEviction();
+                    final CacheEntry newEntry = new CacheEntry(false, true, key, value);
+                    if (_ttlNanos > 0) newEntry._expiresAt = System.nanoTime() + _ttlNanos;
+                    _lookupTable.put(key, newEntry);
+                    _policy.onInsert(newEntry);
                 }
-
-                assert _queue.size() < _size;
-                // we have room in the cache so we simply add a new entry to the queue
-                final CacheEntry newEntry = new CacheEntry(false, true, key, value);
-                _lookupTable.put(key, newEntry);
-                _queue.add(newEntry);
+            } finally {
+                endWrite();
             }
         }
 
+        /**
+         * Looks up key without taking the write lock. The lookup is retried if a writer
+         * was active during it, and falls back to the read lock after MAX_OPTIMISTIC_READS attempts.
+         * @param key The key to look up.
+         * @return the cached value, or null if key is not in this CacheSet or has expired.
+         */
         String get(final String key) {
-            assert _lock.isWriteLockedByCurrentThread();
-            if (_lookupTable.containsKey(key)) {
-                return _lookupTable.get(key).setIsReferenced(true).getValue();
-            } else {
-                return null;
+            for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; ++attempt) {
+                final long seq = _seq;
+                if ((seq & 1L) != 0) {
+                    // a writer is in the middle of a mutation
+                    Thread.yield();
+                    continue;
+                }
+                final CacheEntry entry = _lookupTable.get(key);
+                final String value = (entry == null || isExpired(entry)) ? null : entry.getValue();
+                if (seq == _seq) {
+                    if (value != null) recordAccess(entry);
+                    else _misses.increment();
+                    return value;
+                }
             }
 
+            final Lock readLock = _lock.readLock();
+            readLock.lock();
+            try {
+                final CacheEntry entry = _lookupTable.get(key);
+                if (entry == null || isExpired(entry)) {
+                    _misses.increment();
+                    return null;
+                }
+                recordAccess(entry);
+                return entry.getValue();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        private boolean isExpired(final CacheEntry entry) {
+            return _ttlNanos > 0 && System.nanoTime() - entry._expiresAt >= 0;
+        }
+
+        long getEvictionCount() {
+            return _evictionCount;
+        }
 
+        /**
+         * @return the number of entries in this set. Approximate without the lock.
+         */
+        int getEntryCount() {
+            return _lookupTable.size();
+        }
+
+        long getHitCount() {
+            return _hits.sum();
+        }
+
+        long getMissCount() {
+            return _misses.sum();
         }
 
         String del(final String key) {
             assert _lock.isWriteLockedByCurrentThread();
-            if (_lookupTable.containsKey(key)) {
-                final CacheEntry toRemove = _lookupTable.remove(key);
-                _queue.remove(toRemove);
+            beginWrite();
+            try {
+                drainReadBuffer();
+                return removeEntry(key);
+            } finally {
+                endWrite();
+            }
+        }
+
+        private String removeEntry(final String key) {
+            final CacheEntry toRemove = _lookupTable.remove(key);
+            if (toRemove != null) {
+                _policy.onRemove(toRemove);
                 return toRemove.getValue();
             } else {
                 return null;
             }
         }
 
-        void performEviction() {
+        /**
+         * Evicts the entry chosen by the eviction policy to make room for candidateKey.
+         */
+        void performEviction(final String candidateKey) {
             assert _lock.isWriteLockedByCurrentThread();
-            CacheEntry toRemove = null;
-            while (toRemove == null) {
-                for (final CacheEntry cacheEntry : _queue) {
-                    if (!cacheEntry.getIsReferenced()) {
-                        toRemove = cacheEntry;
-                        break;
-                    } else {
-                        cacheEntry.setIsReferenced(false);
-                    }
+            if (_lookupTable.isEmpty()) return;
+            final CacheEntry toRemove = _policy.selectVictim(candidateKey);
+            this.removeEntry(toRemove.getKey());
+            _evictionCount++;
+        }
+
+        /**
+         * Called by readers, without the write lock.
+         */
+        private void recordAccess(final CacheEntry entry) {
+            _hits.increment();
+            entry.markReferenced();
+            if (_readBuffer != null) {
+                final int index = _readBufferIndex.getAndIncrement() & (READ_BUFFER_SIZE - 1);
+                _readBuffer.lazySet(index, entry);
+            }
+        }
+
+        /**
+         * Replays buffered hits into the eviction policy. Must be called with the write lock held.
+         */
+        private void drainReadBuffer() {
+            if (_readBuffer == null) return;
+            for (int i = 0; i < READ_BUFFER_SIZE; ++i) {
+                final CacheEntry entry = _readBuffer.getAndSet(i, null);
+                // skip entries that were evicted or deleted since the hit
+                if (entry != null && _lookupTable.get(entry.getKey()) == entry) {
+                    _policy.onAccess(entry);
                 }
             }
-            this.del(toRemove.getKey());
         }
     }
 
@@ -32,33 +32,135 @@
 package edu.berkeley.cs162;
 
 import java.net.Socket;
-import java.net.ServerSocket;
-import java.io.IOException;
 import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * This class is used to communicate with (appropriately marshalling and unmarshalling)
  * objects implementing the {@link KeyValueInterface}.
  *
+ * By default every operation opens its own connection. A persistent client instead
+ * keeps one framed connection open, in the KVMessage.WireFormat it was created with,
+ * and sends all of its requests over it, reconnecting if it breaks; its
+ * {@link #pipeline()} sends several requests before waiting for any of the responses.
+ * A pooled client keeps up to a given number of such connections, so that threads
+ * sharing it do not queue behind each other's round trips.
+ *
+ * The *Async methods return straight away. Their requests share one more framed
+ * connection, in the client's format or BINARY for a client that is not persistent,
+ * run by an event loop of its own; see AsyncConnection.
+ *
+ * {@link #enableNearCache} keeps recently used values in the client as well.
+ *
  * @param <K> Java Generic type for the Key
  * @param <V> Java Generic type for the Value
  */
 public class KVClient implements KeyValueInterface {
 
+    /** Async requests that fail to get an answer in this long fail instead. */
+    static final long DEFAULT_ASYNC_TIMEOUT_MILLIS = 5000;
+
     private String server = null;
     private int port = 0;
-    private Socket sock = null;
-    private BufferedInputStream in = null;
-    private Socket host = null;
+    /** Encoding of the persistent connection, or null for one connection per request. */
+    private final KVMessage.WireFormat format;
+    /** The framed connections of a persistent client, or null. */
+    private final ConnectionPool pool;
+
+    /** Guards creating the async connection; separate so async calls never wait for blocking ones. */
+    private final ReentrantLock asyncLock = new ReentrantLock();
+    private AsyncConnection asyncConn = null;
+    private volatile long asyncTimeoutMillis = DEFAULT_ASYNC_TIMEOUT_MILLIS;
+
+    private volatile NearCache nearCache = null;
 
     /**
      * @param server is the DNS reference to the Key-Value server
      * @param port   is the port on which the Key-Value server is listening
      */
     public KVClient(String server, int port) {
+        this(server, port, false);
+    }
+
+    /**
+     * @param server     is the DNS reference to the Key-Value server
+     * @param port       is the port on which the Key-Value server is listening
+     * @param persistent whether to keep one connection open for all requests
+     */
+    public KVClient(String server, int port, boolean persistent) {
+        this(server, port, persistent ? KVMessage.WireFormat.XML : null);
+    }
+
+    /**
+     * Creates a persistent client.
+     * @param server is the DNS reference to the Key-Value server
+     * @param port   is the port on which the Key-Value server is listening
+     * @param format how to encode messages on the connection
+     */
+    public KVClient(String server, int port, KVMessage.WireFormat format) {
+        this(server, port, format, 1);
+    }
+
+    /**
+     * Creates a pooled client.
+     * @param server         is the DNS reference to the Key-Value server
+     * @param port           is the port on which the Key-Value server is listening
+     * @param format         how to encode messages on the connections
+     * @param maxConnections how many connections to keep open at most
+     */
+    public KVClient(String server, int port, KVMessage.WireFormat format, int maxConnections) {
         this.server = server;
         this.port = port;
+        this.format = format;
+        this.pool = format != null ? new ConnectionPool(server, port, format, maxConnections) : null;
+    }
+
+    /**
+     * Caches values this client reads and writes locally, in numSets sets of
+     * maxElemsPerSet entries. A cached value is served for up to ttlMillis after it was
+     * read or written here, so it may miss other clients' writes for that long.
+     */
+    public void enableNearCache(int numSets, int maxElemsPerSet, long ttlMillis) {
+        nearCache = new NearCache(numSets, maxElemsPerSet, ttlMillis);
+    }
+
+    /**
+     * @return the number of gets answered from the near cache.
+     */
+    public long getNearCacheHitCount() {
+        final NearCache cache = nearCache;
+        return cache != null ? cache.getHitCount() : 0;
+    }
+
+    /**
+     * @return the number of gets the near cache could not answer.
+     */
+    public long getNearCacheMissCount() {
+        final NearCache cache = nearCache;
+        return cache != null ? cache.getMissCount() : 0;
+    }
+
+    /**
+     * @return the number of values the near cache dropped to make room for others.
+     */
+    public long getNearCacheEvictionCount() {
+        final NearCache cache = nearCache;
+        return cache != null ? cache.getEvictionCount() : 0;
+    }
+
+    /**
+     * @return the near cache, if key can be cached.
+     */
+    private NearCache nearCacheFor(final String key) {
+        return key != null ? nearCache : null;
     }
 
     private Socket connectHost() throws KVException {
@@ -78,61 +180,437 @@ public class KVClient implements KeyValueInterface {
     }
 
     public boolean put(String key, String value) throws KVException {
-        host = connectHost();
-        KVMessage obj = new KVMessage(KVMessage.MessageType.PUTREQ.toString());
+        final KVMessage obj = new KVMessage(KVMessage.MessageType.PUTREQ.toString());
         obj.setKey(key);
         obj.setValue(value);
-        obj.sendMessage(host);
+        final NearCache cache = nearCacheFor(key);
+        final long ticket = cache != null ? cache.startWrite(key) : 0;
+        boolean stored = false;
         try {
-            in = new BufferedInputStream(host.getInputStream());
-            KVMessage inmsg = new KVMessage(in);
-            if (!KVMessage.ResponseType.SUCCESS.toString().equals(inmsg.getMessage())) {
-                throw new KVException(inmsg);
-            } else {
-                closeHost(host);
-                return true;
-            }
-        } catch (IOException e) {
-            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.CONNECT_ERROR));
+            checkSuccess(send(obj));
+            stored = true;
+        } finally {
+            if (cache != null) cache.finishWrite(key, stored ? value : null, ticket);
         }
+        return true;
     }
 
 
     public String get(String key) throws KVException {
-        host = connectHost();
-        KVMessage obj = new KVMessage(KVMessage.MessageType.GETREQ.toString());
+        final NearCache cache = nearCacheFor(key);
+        if (cache != null) {
+            final String cached = cache.get(key);
+            if (cached != null) return cached;
+        }
+        final long ticket = cache != null ? cache.startRead(key) : 0;
+        final KVMessage obj = new KVMessage(KVMessage.MessageType.GETREQ.toString());
         obj.setKey(key);
-        obj.sendMessage(host);
-        KVMessage kv = null;
+        final String value = checkSuccess(send(obj)).getValue();
+        if (cache != null) cache.fill(key, value, ticket);
+        return value;
+    }
+
+    /**
+     * Writes key's value, as UTF-8, into out from its current position, and moves the
+     * position past it. The value comes over a BINARY connection of its own, straight
+     * from the socket into the file; when the server sends it from its files too (see
+     * KVServer.LARGE_VALUE_SIZE) neither end ever holds the whole value on the heap.
+     * Bypasses the near cache.
+     * @return the length of the value in bytes.
+     */
+    public long getToFile(String key, FileChannel out) throws KVException {
+        return FileValueReceiver.receive(server, port, key, out);
+    }
+
+    public void del(String key) throws KVException {
+        final KVMessage obj = new KVMessage(KVMessage.MessageType.DELREQ.toString());
+        obj.setKey(key);
+        final NearCache cache = nearCacheFor(key);
+        final long ticket = cache != null ? cache.startWrite(key) : 0;
         try {
-            kv = new KVMessage(host.getInputStream());
-        } catch (Exception e) {
-            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DATA_RECEIVE_ERROR));
+            checkSuccess(send(obj));
+        } finally {
+            if (cache != null) cache.finishWrite(key, null, ticket);
+        }
+    }
+
+    /**
+     * Looks up all of keys in one request.
+     * @return one pair per key, in order, with the value found and the key's status as
+     * its message. A key that failed does not fail the others.
+     */
+    @Override
+    public List<KVMessage.KVPair> mget(List<String> keys) throws KVException {
+        return sendBatch(KVMessage.MessageType.MGETREQ, pairsFor(keys));
+    }
+
+    /**
+     * Inserts all of pairs in one request.
+     * @return one pair per entry, in order, with the key's status as its message.
+     */
+    @Override
+    public List<KVMessage.KVPair> mput(List<KVMessage.KVPair> pairs) throws KVException {
+        final List<String> keys = new ArrayList<String>(pairs.size());
+        for (final KVMessage.KVPair pair : pairs) {
+            keys.add(pair.getKey());
         }
-        closeHost(host);
-        if (KVMessage.ResponseType.SUCCESS.toString().equals(kv.getMessage())) {
-            return kv.getValue();
-        } else {
-            throw new KVException(kv);
+        final long[] tickets = startWrites(keys);
+        try {
+            return sendBatch(KVMessage.MessageType.MPUTREQ, pairs);
+        } finally {
+            finishWrites(keys, tickets);
         }
     }
 
-    public void del(String key) throws KVException {
-        host = connectHost();
-        KVMessage kv = new KVMessage(KVMessage.MessageType.DELREQ.toString());
-        kv.setKey(key);
-        kv.sendMessage(host);
+    /**
+     * Deletes all of keys in one request.
+     * @return one pair per key, in order, with the key's status as its message.
+     */
+    @Override
+    public List<KVMessage.KVPair> mdel(List<String> keys) throws KVException {
+        final long[] tickets = startWrites(keys);
+        try {
+            return sendBatch(KVMessage.MessageType.MDELREQ, pairsFor(keys));
+        } finally {
+            finishWrites(keys, tickets);
+        }
+    }
+
+    /**
+     * Fetches the pairs with startKey &lt;= key &lt; endKey in ascending key order, a page
+     * at a time, until limit pairs have come back or the range is exhausted. The server
+     * must have an ORDERED store. Pages are read independently, so writes made during
+     * the scan may or may not show up.
+     * @param startKey the first key, or null for the lowest.
+     * @param endKey the key to stop before, or null for no end.
+     */
+    public List<KVMessage.KVPair> scan(String startKey, String endKey, int limit) throws KVException {
+        final List<KVMessage.KVPair> results = new ArrayList<KVMessage.KVPair>();
+        String from = startKey;
+        while (results.size() < limit) {
+            final KVMessage.ScanPage page = scanPage(from, endKey, limit - results.size());
+            results.addAll(page.getPairs());
+            from = page.getNextKey();
+            if (from == null) break;
+        }
+        return results;
+    }
+
+    /**
+     * Fetches up to limit of the pairs whose key starts with prefix, in key order; see scan.
+     */
+    public List<KVMessage.KVPair> prefix(String prefix, int limit) throws KVException {
+        return scan(prefix, KVServer.prefixEnd(prefix), limit);
+    }
+
+    /**
+     * Fetches one page of a scan, of at most limit (and at most KVServer.MAX_SCAN_LIMIT)
+     * pairs. Pass the page's next key as startKey to read the following page.
+     */
+    public KVMessage.ScanPage scanPage(String startKey, String endKey, int limit) throws KVException {
+        final KVMessage obj = new KVMessage(KVMessage.MessageType.SCANREQ.toString());
+        obj.setKey(startKey);
+        obj.setValue(endKey);
+        obj.setMessage(Integer.toString(limit));
+        final KVMessage resp = checkSuccess(send(obj));
+        // an empty page comes back without any entries in XML
+        final List<KVMessage.KVPair> pairs = resp.getPairs() != null ? resp.getPairs() : new ArrayList<KVMessage.KVPair>();
+        return new KVMessage.ScanPage(pairs, resp.getKey());
+    }
+
+    /**
+     * @return a snapshot of the server's metrics by name: latency counts, means and
+     * percentiles in nanoseconds per operation and for lock waits, and cache hit, miss
+     * and eviction counts overall and per cache set.
+     */
+    public Map<String, String> getServerMetrics() throws KVException {
+        final KVMessage obj = new KVMessage(KVMessage.MessageType.ADMINREQ.toString());
+        obj.setKey(KVMessage.ADMIN_METRICS);
+        final Map<String, String> metrics = new LinkedHashMap<String, String>();
+        final List<KVMessage.KVPair> pairs = checkSuccess(send(obj)).getPairs();
+        if (pairs != null) {
+            for (final KVMessage.KVPair pair : pairs) {
+                metrics.put(pair.getKey(), pair.getValue());
+            }
+        }
+        return metrics;
+    }
 
+    /**
+     * Sets how long later async requests wait for their response before failing with
+     * "Network Error: Could not receive data".
+     */
+    public void setAsyncTimeout(final long timeoutMillis) {
+        asyncTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the value of key, or a KVException such as "Does not exist".
+     */
+    public CompletableFuture<String> getAsync(String key) throws KVException {
+        final NearCache cache = nearCacheFor(key);
+        if (cache != null) {
+            final String cached = cache.get(key);
+            if (cached != null) return CompletableFuture.completedFuture(cached);
+        }
+        final long ticket = cache != null ? cache.startRead(key) : 0;
+        final KVMessage obj = new KVMessage(KVMessage.MessageType.GETREQ.toString());
+        obj.setKey(key);
+        return sendAsync(obj).thenApply(resp -> {
+            if (cache != null) cache.fill(key, resp.getValue(), ticket);
+            return resp.getValue();
+        });
+    }
+
+    public CompletableFuture<Boolean> putAsync(String key, String value) throws KVException {
+        final KVMessage obj = new KVMessage(KVMessage.MessageType.PUTREQ.toString());
+        obj.setKey(key);
+        obj.setValue(value);
+        return trackWrite(key, value, obj).thenApply(resp -> true);
+    }
+
+    public CompletableFuture<Void> delAsync(String key) throws KVException {
+        final KVMessage obj = new KVMessage(KVMessage.MessageType.DELREQ.toString());
+        obj.setKey(key);
+        return trackWrite(key, null, obj).thenApply(resp -> null);
+    }
+
+    /**
+     * @return the response to req, completed exceptionally with a KVException unless
+     * it reports success.
+     */
+    private CompletableFuture<KVMessage> sendAsync(final KVMessage req) throws KVException {
+        final CompletableFuture<KVMessage> result = new CompletableFuture<KVMessage>();
+        asyncConnection().send(req, asyncTimeoutMillis).whenComplete((resp, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (!KVMessage.ResponseType.SUCCESS.toString().equals(resp.getMessage())) {
+                result.completeExceptionally(new KVException(resp));
+            } else {
+                result.complete(resp);
+            }
+        });
+        return result;
+    }
+
+    private AsyncConnection asyncConnection() throws KVException {
+        asyncLock.lock();
         try {
-            kv = new KVMessage(host.getInputStream());
-        } catch (Exception e) {
-            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DATA_RECEIVE_ERROR));
+            if (asyncConn == null || !asyncConn.isOpen()) {
+                asyncConn = new AsyncConnection(server, port, format != null ? format : KVMessage.WireFormat.BINARY,
+                        FramedConnection.MAX_IN_FLIGHT_REQUESTS);
+            }
+            return asyncConn;
+        } finally {
+            asyncLock.unlock();
+        }
+    }
+
+    /**
+     * Sends req, a write of key, with the near cache told when it starts and finishes.
+     * @param value the value req puts, or null for a delete.
+     */
+    private CompletableFuture<KVMessage> trackWrite(final String key, final String value, final KVMessage req)
+            throws KVException {
+        final NearCache cache = nearCacheFor(key);
+        if (cache == null) return sendAsync(req);
+        final long ticket = cache.startWrite(key);
+        final CompletableFuture<KVMessage> resp;
+        try {
+            resp = sendAsync(req);
+        } catch (final KVException e) {
+            cache.finishWrite(key, null, ticket);
+            throw e;
+        }
+        return resp.whenComplete((r, error) -> cache.finishWrite(key, error == null ? value : null, ticket));
+    }
+
+    /**
+     * Drops keys from the near cache ahead of a batch write of them.
+     * @return their tickets, for finishWrites.
+     */
+    private long[] startWrites(final List<String> keys) {
+        final long[] tickets = new long[keys.size()];
+        for (int i = 0; i < tickets.length; ++i) {
+            final NearCache cache = nearCacheFor(keys.get(i));
+            if (cache != null) tickets[i] = cache.startWrite(keys.get(i));
         }
-        if (!KVMessage.ResponseType.SUCCESS.toString().equals(kv.getMessage())) {
-            throw new KVException(kv);
+        return tickets;
+    }
+
+    /**
+     * Records the end of a batch write, leaving its keys out of the near cache.
+     */
+    private void finishWrites(final List<String> keys, final long[] tickets) {
+        for (int i = 0; i < tickets.length; ++i) {
+            final NearCache cache = nearCacheFor(keys.get(i));
+            if (cache != null) cache.finishWrite(keys.get(i), null, tickets[i]);
         }
+    }
 
-        closeHost(host);
+    private static List<KVMessage.KVPair> pairsFor(final List<String> keys) {
+        final List<KVMessage.KVPair> pairs = new ArrayList<KVMessage.KVPair>(keys.size());
+        for (final String key : keys) {
+            pairs.add(new KVMessage.KVPair(key, null));
+        }
+        return pairs;
+    }
+
+    /**
+     * A framed connection drops frames over KVMessage.MAX_FRAME_BYTES, so keep the keys
+     * and values of one batch well below that.
+     */
+    private List<KVMessage.KVPair> sendBatch(final KVMessage.MessageType type, final List<KVMessage.KVPair> pairs)
+            throws KVException {
+        final KVMessage obj = new KVMessage(type.toString());
+        obj.setPairs(pairs);
+        final List<KVMessage.KVPair> results = checkSuccess(send(obj)).getPairs();
+        // an empty batch comes back without any entries in XML
+        return results != null ? results : new ArrayList<KVMessage.KVPair>();
+    }
+
+    private static KVMessage checkSuccess(final KVMessage resp) throws KVException {
+        if (!KVMessage.ResponseType.SUCCESS.toString().equals(resp.getMessage())) {
+            throw new KVException(resp);
+        }
+        return resp;
+    }
+
+    private KVMessage send(final KVMessage req) throws KVException {
+        if (format != null) {
+            final List<KVMessage> reqs = new ArrayList<KVMessage>(1);
+            reqs.add(req);
+            return sendFramed(reqs).get(0);
+        }
+
+        final Socket host = connectHost();
+        try {
+            req.sendMessage(host);
+            final KVMessage resp;
+            try {
+                resp = new KVMessage(new BufferedInputStream(host.getInputStream()));
+            } catch (IOException e) {
+                throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DATA_RECEIVE_ERROR));
+            }
+            return resp;
+        } finally {
+            closeHost(host);
+        }
+    }
+
+    /**
+     * Sends reqs over a connection of the pool and returns their responses in the
+     * same order.
+     */
+    private List<KVMessage> sendFramed(final List<KVMessage> reqs) throws KVException {
+        return pool.exchange(reqs);
+    }
+
+    /**
+     * Closes the idle persistent connections and the async connection, if there are any.
+     * Async requests still outstanding fail. The client can still be used afterwards;
+     * it will reconnect.
+     */
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+        asyncLock.lock();
+        try {
+            if (asyncConn != null) {
+                asyncConn.close();
+                asyncConn = null;
+            }
+        } finally {
+            asyncLock.unlock();
+        }
+    }
+
+    /**
+     * @return a new pipeline of requests to send together. On a client that is not
+     * persistent the requests are still sent one connection at a time.
+     */
+    public Pipeline pipeline() {
+        return new Pipeline();
+    }
+
+    /**
+     * Collects requests and sends them in one go with {@link #sync()}.
+     */
+    public class Pipeline {
+        private final List<KVMessage> reqs = new ArrayList<KVMessage>();
+        /** The keys of the queued writes, and their near cache tickets. */
+        private final List<String> writtenKeys = new ArrayList<String>();
+        private final List<Long> writeTickets = new ArrayList<Long>();
+
+        private Pipeline() {
+        }
+
+        public Pipeline put(String key, String value) throws KVException {
+            startWrite(key);
+            final KVMessage obj = new KVMessage(KVMessage.MessageType.PUTREQ.toString());
+            obj.setKey(key);
+            obj.setValue(value);
+            reqs.add(obj);
+            return this;
+        }
+
+        public Pipeline get(String key) throws KVException {
+            final KVMessage obj = new KVMessage(KVMessage.MessageType.GETREQ.toString());
+            obj.setKey(key);
+            reqs.add(obj);
+            return this;
+        }
+
+        public Pipeline del(String key) throws KVException {
+            startWrite(key);
+            final KVMessage obj = new KVMessage(KVMessage.MessageType.DELREQ.toString());
+            obj.setKey(key);
+            reqs.add(obj);
+            return this;
+        }
+
+        /**
+         * Sends the queued requests and empties the pipeline.
+         *
+         * @return one response per request, in the order the requests were added. A failed
+         * request gets its error response rather than aborting the others.
+         * @throws KVException if the connection fails.
+         */
+        public List<KVMessage> sync() throws KVException {
+            final List<KVMessage> batch = new ArrayList<KVMessage>(reqs);
+            final List<String> keys = new ArrayList<String>(writtenKeys);
+            final List<Long> tickets = new ArrayList<Long>(writeTickets);
+            reqs.clear();
+            writtenKeys.clear();
+            writeTickets.clear();
+            try {
+                if (format != null) {
+                    return sendFramed(batch);
+                }
+                final List<KVMessage> resps = new ArrayList<KVMessage>(batch.size());
+                for (final KVMessage req : batch) {
+                    resps.add(send(req));
+                }
+                return resps;
+            } finally {
+                for (int i = 0; i < keys.size(); ++i) {
+                    final NearCache cache = nearCacheFor(keys.get(i));
+                    if (cache != null) cache.finishWrite(keys.get(i), null, tickets.get(i));
+                }
+            }
+        }
+
+        /**
+         * Drops key from the near cache, which stays out of it until the pipeline is sent.
+         */
+        private void startWrite(final String key) {
+            final NearCache cache = nearCacheFor(key);
+            if (cache != null) {
+                writtenKeys.add(key);
+                writeTickets.add(cache.startWrite(key));
+            }
+        }
     }
 
     public String getServer() {
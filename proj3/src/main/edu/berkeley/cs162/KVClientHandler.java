@@ -31,70 +31,337 @@
 package edu.berkeley.cs162;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.io.ObjectInputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadpool to ensure that none of it's methods are blocking.
+ *
+ * In VIRTUAL_THREADS mode there is no pool: every connection, or every request read
+ * by the selector loop, gets a new virtual thread, so the number of clients served at
+ * once is not capped by a pool size and a thread blocked on a socket or a lock only
+ * parks. On JVMs without virtual threads, including the JDK 8 this project runs on for
+ * JAXB, a thread per connection would mean one OS thread, stack and set of KVMessage
+ * thread-local buffers per client, so the handler runs on a ThreadPool of FALLBACK_THREADS
+ * threads instead, answering "Server busy" beyond its queue like POOLED; usesVirtualThreads
+ * tells which it got.
  */
-public class KVClientHandler implements NetworkHandler {
+public class KVClientHandler implements NetworkHandler, RequestHandler {
+
+    public enum ExecutionMode {
+        /**
+         * Run requests on a bounded ThreadPool. With the blocking SocketServer, a framed
+         * connection holds its pool thread until the client disconnects or leaves it idle
+         * for IDLE_TIMEOUT_MILLIS, so a pool of n threads serves at most n persistent
+         * clients at once and the rest wait in the queue or are told "Server busy". The
+         * selector loop (SocketServer.addRequestHandler) only takes a thread per request.
+         */
+        POOLED,
+        /**
+         * Run each connection on a virtual thread of its own. Where virtual threads are
+         * not supported, run on a bounded pool of FALLBACK_THREADS platform threads.
+         */
+        VIRTUAL_THREADS
+    }
+
     private KVServer kv_Server = null;
     private ThreadPool threadpool = null;
+    /** Answers the clients threadpool had no room for, off the accepting thread. */
+    private ThreadPool busyPool = null;
+    /** Set in VIRTUAL_THREADS mode, instead of threadpool. */
+    private ThreadFactory threadFactory = null;
 
     public KVClientHandler(KVServer kvServer) {
-        initialize(kvServer, 10);
+        initialize(kvServer, 10, ThreadPool.DEFAULT_QUEUE_CAPACITY);
     }
 
     public KVClientHandler(KVServer kvServer, int connections) {
-        initialize(kvServer, connections);
+        initialize(kvServer, connections, ThreadPool.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param connections number of requests to process at once.
+     * @param queueCapacity number of requests that may wait for a thread. Beyond that,
+     *                      clients are answered "Server busy" straight away.
+     */
+    public KVClientHandler(KVServer kvServer, int connections, int queueCapacity) {
+        initialize(kvServer, connections, queueCapacity);
+    }
+
+    /**
+     * @param mode POOLED uses a pool of the default size; VIRTUAL_THREADS uses no pool.
+     */
+    public KVClientHandler(KVServer kvServer, ExecutionMode mode) {
+        if (mode == ExecutionMode.VIRTUAL_THREADS && VirtualThreads.isSupported()) {
+            this.kv_Server = kvServer;
+            this.threadFactory = VirtualThreads.newFactory("kv-client");
+        } else if (mode == ExecutionMode.VIRTUAL_THREADS) {
+            initialize(kvServer, FALLBACK_THREADS, ThreadPool.DEFAULT_QUEUE_CAPACITY);
+        } else {
+            initialize(kvServer, 10, ThreadPool.DEFAULT_QUEUE_CAPACITY);
+        }
+    }
+
+    /** Pool size of VIRTUAL_THREADS mode on JVMs without virtual threads. */
+    static final int FALLBACK_THREADS = 256;
+
+    /**
+     * @return whether clients are served on virtual threads, rather than on a pool of
+     * platform threads.
+     */
+    public boolean usesVirtualThreads() {
+        return threadFactory != null;
     }
 
-    private void initialize(KVServer kvServer, int connections) {
+    private void initialize(KVServer kvServer, int connections, int queueCapacity) {
         this.kv_Server = kvServer;
-        threadpool = new ThreadPool(connections);
+        threadpool = new ThreadPool(connections, queueCapacity, ThreadPool.RejectionPolicy.REJECT);
+        busyPool = new ThreadPool(BUSY_THREADS, BUSY_QUEUE_CAPACITY, ThreadPool.RejectionPolicy.REJECT);
     }
 
+    /**
+     * @return the pool requests run on, or null when running on virtual threads.
+     */
+    ThreadPool getThreadPool() {
+        return threadpool;
+    }
+
+    /**
+     * Runs r on the pool, or on a virtual thread of its own.
+     */
+    private void dispatch(final Runnable r) throws InterruptedException {
+        if (threadFactory != null) {
+            threadFactory.newThread(r).start();
+        } else {
+            threadpool.addToQueue(r);
+        }
+    }
+
+
+    /**
+     * Runs one request against the server.
+     * @return the response to send back.
+     */
+    private KVMessage process(final KVMessage inMsg) throws KVException {
+        final KVMessage respMsg;
+        if (KVMessage.MessageType.PUTREQ.toString().equals(inMsg.getMsgType())) {
+            kv_Server.put(inMsg.getKey(), inMsg.getValue());
+            respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+        } else if (KVMessage.MessageType.GETREQ.toString().equals(inMsg.getMsgType())) {
+            final String value = kv_Server.getIfPresent(inMsg.getKey());
+            if (value == null) {
+                return KVMessage.makeResponse(KVMessage.ResponseType.DNE_ERROR);
+            }
+            respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+            respMsg.setKey(inMsg.getKey());
+            respMsg.setValue(value);
+        } else if (KVMessage.MessageType.DELREQ.toString().equals(inMsg.getMsgType())) {
+            kv_Server.del(inMsg.getKey());
+            respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+        } else if (KVMessage.MessageType.MGETREQ.toString().equals(inMsg.getMsgType())) {
+            respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+            respMsg.setPairs(kv_Server.mget(keysOf(inMsg)));
+        } else if (KVMessage.MessageType.MPUTREQ.toString().equals(inMsg.getMsgType())) {
+            respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+            respMsg.setPairs(kv_Server.mput(inMsg.getPairs()));
+        } else if (KVMessage.MessageType.MDELREQ.toString().equals(inMsg.getMsgType())) {
+            respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+            respMsg.setPairs(kv_Server.mdel(keysOf(inMsg)));
+        } else if (KVMessage.MessageType.SCANREQ.toString().equals(inMsg.getMsgType())) {
+            final KVMessage.ScanPage page = kv_Server.scan(inMsg.getKey(), inMsg.getValue(), scanLimit(inMsg));
+            respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+            respMsg.setPairs(page.getPairs());
+            respMsg.setKey(page.getNextKey());
+        } else if (KVMessage.MessageType.ADMINREQ.toString().equals(inMsg.getMsgType())) {
+            if (!KVMessage.ADMIN_METRICS.equals(inMsg.getKey())) {
+                throw new KVException(KVMessage.unknownError("Unknown admin command"));
+            }
+            respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+            final List<KVMessage.KVPair> metrics = new ArrayList<KVMessage.KVPair>();
+            for (final Map.Entry<String, String> metric : KVMetrics.snapshot(kv_Server).entrySet()) {
+                metrics.add(new KVMessage.KVPair(metric.getKey(), metric.getValue()));
+            }
+            respMsg.setPairs(metrics);
+        } else {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.MESSAGE_ERROR));
+        }
+        return respMsg;
+    }
 
+    /**
+     * Runs one request from a framed connection. A get over BINARY of a value the server
+     * keeps in its files rather than its cache is answered by opening the value's region
+     * into region[0], to be sent with transferTo; the returned response then lacks the
+     * value. Everything else goes through process.
+     */
+    private KVMessage processFramed(final KVMessage.WireFormat format, final byte[] frame,
+                                    final FileRegion[] region) throws KVException {
+        final KVMessage inMsg = format.decode(frame);
+        if (format != KVMessage.WireFormat.BINARY
+                || !KVMessage.MessageType.GETREQ.toString().equals(inMsg.getMsgType())) {
+            return process(inMsg);
+        }
+        final KVServer.StoredValue stored = kv_Server.getForTransfer(inMsg.getKey());
+        if (stored.value == null && stored.region == null) {
+            return KVMessage.makeResponse(KVMessage.ResponseType.DNE_ERROR);
+        }
+        final KVMessage respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+        respMsg.setKey(inMsg.getKey());
+        respMsg.setValue(stored.value);
+        region[0] = stored.region;
+        return respMsg;
+    }
+
+    /**
+     * @return the page size a scan request carries as its message.
+     */
+    private static int scanLimit(final KVMessage scan) throws KVException {
+        try {
+            return Integer.parseInt(scan.getMessage());
+        } catch (final NumberFormatException e) {
+            throw new KVException(KVMessage.unknownError("Invalid scan limit"));
+        }
+    }
+
+    private static List<String> keysOf(final KVMessage batch) {
+        final List<String> keys = new ArrayList<String>(batch.getPairs().size());
+        for (final KVMessage.KVPair pair : batch.getPairs()) {
+            keys.add(pair.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Handles one connection. A connection that opens with the preamble of a
+     * KVMessage.WireFormat stays open and carries any number of length-prefixed requests, answered in order;
+     * otherwise it carries a single XML request terminated by the client shutting down
+     * its output, as before. A framed connection keeps its pool thread until the client
+     * disconnects, or is closed once idle for idleTimeoutMillis; a pooled KVClient
+     * reconnects on its next request.
+     */
     private class ClientHandler implements Runnable {
         private KVServer kvServer = null;
         private Socket client = null;
-        private InputStream input = null;
-        private KVMessage inMsg = null;
-        private KVMessage respMsg = null;
 
         @Override
         public void run() {
             try {
-                input = new BufferedInputStream(client.getInputStream());
-                inMsg = new KVMessage(input);
-                //respMsg = new KVMessage(KVMessage.MessageType.RESP.toString());
-                if (KVMessage.MessageType.PUTREQ.toString().equals(inMsg.getMsgType())) {
-                    kvServer.put(inMsg.getKey(), inMsg.getValue());
-                    respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
-                } else if (KVMessage.MessageType.GETREQ.toString().equals(inMsg.getMsgType())) {
-                    final String value = kvServer.get(inMsg.getKey());
-                    respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
-                    respMsg.setKey(inMsg.getKey());
-                    respMsg.setValue(value);
-                } else if (KVMessage.MessageType.DELREQ.toString().equals(inMsg.getMsgType())) {
-                    kvServer.del(inMsg.getKey());
-                    respMsg = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+                final BufferedInputStream input = new BufferedInputStream(client.getInputStream());
+                input.mark(4);
+                final DataInputStream dataInput = new DataInputStream(input);
+                final KVMessage.WireFormat format;
+                try {
+                    format = KVMessage.WireFormat.forPreamble(dataInput.readInt());
+                } catch (final EOFException e) {
+                    client.close();
+                    return;
+                }
+                if (format != null) {
+                    serveFrames(dataInput, format);
                 } else {
-                    throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.MESSAGE_ERROR));
+                    input.reset();
+                    serveSingle(input);
                 }
-                respMsg.sendMessage(client);
             } catch (IOException e) {
                 // Drop message since we can't do anything.
             }
-            catch (KVException e) {
-                try {
-                    e.getMsg().sendMessage(client);
-                } catch (final KVException e2) {
-                    // Can't really do anything here, so we just drop the message.
+        }
+
+        private void serveSingle(final InputStream input) {
+            KVMessage respMsg;
+            try {
+                respMsg = process(new KVMessage(input));
+            } catch (KVException e) {
+                respMsg = e.getMsg();
+            }
+            try {
+                respMsg.sendMessage(client);
+            } catch (final KVException e) {
+                // Can't really do anything here, so we just drop the message.
+            }
+        }
+
+        private void serveFrames(final DataInputStream input, final KVMessage.WireFormat format) throws IOException {
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+            final FileRegion[] region = new FileRegion[1];
+            client.setSoTimeout(idleTimeoutMillis);
+            try {
+                byte[] frame;
+                while ((frame = receiveFrame(input)) != null) {
+                    KVMessage respMsg;
+                    region[0] = null;
+                    try {
+                        respMsg = processFramed(format, frame, region);
+                    } catch (KVException e) {
+                        respMsg = e.getMsg();
+                    }
+                    try {
+                        if (region[0] != null) {
+                            sendRegion(output, respMsg, region[0]);
+                        } else {
+                            respMsg.sendFrame(output, format);
+                        }
+                    } catch (final KVException e) {
+                        return;
+                    }
+                    // hold responses back while more pipelined requests are already waiting
+                    if (input.available() == 0) {
+                        output.flush();
+                    }
+                }
+            } finally {
+                client.close();
+            }
+        }
+
+        /**
+         * @return the next frame, or null once the client has disconnected or been idle
+         * too long.
+         */
+        private byte[] receiveFrame(final DataInputStream input) throws IOException {
+            try {
+                return KVMessage.receiveFrame(input);
+            } catch (final SocketTimeoutException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Sends respMsg as a BINARY frame with region as its value, copied by transferTo
+         * from the file to the socket. Closes region.
+         */
+        private void sendRegion(final DataOutputStream output, final KVMessage respMsg,
+                                final FileRegion region) throws IOException, KVException {
+            try {
+                final ByteBuffer[] frame = respMsg.toBinaryFrameAround(region.remaining());
+                output.write(frame[0].array());
+                output.flush();
+                // sockets from a plain ServerSocket have no channel; transferTo then
+                // copies through a small buffer rather than the whole value
+                final WritableByteChannel target = client.getChannel() != null
+                        ? client.getChannel() : Channels.newChannel(client.getOutputStream());
+                region.transferTo(target);
+                if (region.remaining() > 0) {
+                    throw new EOFException("Value ends early");
                 }
+                output.write(frame[1].array());
+            } finally {
+                region.close();
             }
         }
 
@@ -111,9 +378,158 @@ public class KVClientHandler implements NetworkHandler {
     public void handle(Socket client) throws IOException {
         Runnable r = new ClientHandler(kv_Server, client);
         try {
-            threadpool.addToQueue(r);
+            dispatch(r);
         } catch (InterruptedException e) {
             // Ignore this error
+        } catch (RejectedExecutionException e) {
+            rejectBusy(client);
+        }
+    }
+
+    /** Threads that answer rejected clients, and how many rejected clients may wait for them. */
+    private static final int BUSY_THREADS = 2;
+    private static final int BUSY_QUEUE_CAPACITY = 256;
+
+    /** How long a framed connection may wait for its next request before it is closed. */
+    static final int IDLE_TIMEOUT_MILLIS = 30000;
+
+    private volatile int idleTimeoutMillis = IDLE_TIMEOUT_MILLIS;
+
+    /**
+     * Changes how long a framed connection may stay idle, from IDLE_TIMEOUT_MILLIS.
+     */
+    void setIdleTimeout(final int millis) {
+        idleTimeoutMillis = millis;
+    }
+
+    /** How long a busy thread waits for a rejected client's preamble. */
+    private static final int BUSY_READ_TIMEOUT_MILLIS = 100;
+
+    /**
+     * Hands a connection the pool had no room for to busyPool, which answers it "Server
+     * busy" in the client's wire format. The accepting thread never reads from the
+     * client: if busyPool is full as well, the client is answered in XML at once.
+     */
+    private void rejectBusy(final Socket client) {
+        try {
+            busyPool.addToQueue(new Runnable() {
+                @Override
+                public void run() {
+                    answerBusy(client);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            answerBusyInXml(client);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            answerBusyInXml(client);
+        }
+    }
+
+    private static void answerBusyInXml(final Socket client) {
+        try {
+            KVMessage.makeResponse(KVMessage.ResponseType.SERVER_BUSY).sendMessage(client);
+        } catch (final KVException e) {
+            // Drop message since we can't do anything.
+        } finally {
+            try {
+                client.close();
+            } catch (final IOException e) {
+                // nothing left to clean up
+            }
+        }
+    }
+
+    /**
+     * Answers a connection the pool had no room for with "Server busy", in whichever
+     * wire format the client is speaking, and closes it.
+     */
+    private static void answerBusy(final Socket client) {
+        final KVMessage busy = KVMessage.makeResponse(KVMessage.ResponseType.SERVER_BUSY);
+        try {
+            client.setSoTimeout(BUSY_READ_TIMEOUT_MILLIS);
+            final BufferedInputStream input = new BufferedInputStream(client.getInputStream());
+            KVMessage.WireFormat format = null;
+            try {
+                format = KVMessage.WireFormat.forPreamble(new DataInputStream(input).readInt());
+            } catch (final IOException e) {
+                // nothing sent yet; answer in XML
+            }
+            if (format != null) {
+                final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+                busy.sendFrame(output, format);
+                output.flush();
+                client.shutdownOutput();
+            } else {
+                busy.sendMessage(client);
+            }
+            // discard what the client already sent, so closing does not reset the connection
+            input.skip(input.available());
+        } catch (final IOException e) {
+            // Drop message since we can't do anything.
+        } catch (final KVException e) {
+            // Drop message since we can't do anything.
+        } finally {
+            try {
+                client.close();
+            } catch (final IOException e) {
+                // nothing left to clean up
+            }
+        }
+    }
+
+    /**
+     * Parses and runs a request read by a SocketServer's selector loop on the thread pool,
+     * then hands the encoded response back to the selector loop to send.
+     */
+    @Override
+    public void handleRequest(final KVMessage.WireFormat format, final byte[] request,
+                              final RequestHandler.Responder responder) {
+        try {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    KVMessage respMsg;
+                    final FileRegion[] region = new FileRegion[1];
+                    try {
+                        respMsg = processFramed(format, request, region);
+                    } catch (KVException e) {
+                        respMsg = e.getMsg();
+                    }
+                    if (region[0] != null) {
+                        try {
+                            final ByteBuffer[] frame = respMsg.toBinaryFrameAround(region[0].remaining());
+                            responder.respond(frame[0], region[0], frame[1]);
+                            return;
+                        } catch (final KVException e) {
+                            try {
+                                region[0].close();
+                            } catch (final IOException e2) {
+                                // nothing left to clean up
+                            }
+                            respMsg = e.getMsg();
+                        }
+                    }
+                    byte[] response = null;
+                    try {
+                        response = format.encode(respMsg);
+                    } catch (final KVException e) {
+                        // can't describe the failure to the client; hang up instead
+                    }
+                    responder.respond(response);
+                }
+            });
+        } catch (InterruptedException e) {
+            // can't happen with the REJECT policy, or without a pool
+            responder.respond(null);
+        } catch (RejectedExecutionException e) {
+            byte[] response = null;
+            try {
+                response = format.encode(KVMessage.makeResponse(KVMessage.ResponseType.SERVER_BUSY));
+            } catch (final KVException e2) {
+                // hang up instead
+            }
+            responder.respond(response);
         }
     }
 }
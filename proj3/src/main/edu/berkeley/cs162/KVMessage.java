@@ -40,6 +40,9 @@ import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.JAXBException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.bind.UnmarshalException;
 import javax.xml.bind.MarshalException;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -56,7 +59,7 @@ public class KVMessage {
     /** default noarg constructor required by JAXB */
     public KVMessage() {}
 
-    /** The type of this message. Can be one of either "getreq", "putreq", "delreq", or "resp" */
+    /** The type of this message. Can be one of either "getreq", "putreq", "delreq", "mgetreq", "mputreq", "mdelreq", "adminreq", "scanreq" or "resp" */
     private String msgType = null;
 
     /** The key of this message. Can be up to 256 bytes. */
@@ -68,6 +71,55 @@ public class KVMessage {
     /** The contents of this message. */
     private String message = null;
 
+    /** The entries of a batch request or response or of a scan response, or null. */
+    private List<KVPair> pairs = null;
+
+    /**
+     * One entry of a batch. In a request it holds a key, and for "mputreq" its value;
+     * in the response it also holds that key's status as its message, e.g. "Success"
+     * or "Does not exist", and for "mgetreq" the value found.
+     */
+    public static class KVPair {
+        private String key = null;
+        private String value = null;
+        private String message = null;
+
+        /** default noarg constructor required by JAXB */
+        public KVPair() {}
+
+        public KVPair(final String key, final String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public final String getKey() {
+            return key;
+        }
+
+        @XmlElement(name = "Key")
+        public final void setKey(String key) {
+            this.key = key;
+        }
+
+        public final String getValue() {
+            return value;
+        }
+
+        @XmlElement(name = "Value")
+        public final void setValue(String value) {
+            this.value = value;
+        }
+
+        public final String getMessage() {
+            return message;
+        }
+
+        @XmlElement(name = "Message")
+        public final void setMessage(String message) {
+            this.message = message;
+        }
+    }
+
     enum MessageType {
         GETREQ {
             public String toString() {
@@ -88,9 +140,69 @@ public class KVMessage {
             public String toString() {
                 return "resp";
             }
+        },
+        MGETREQ {
+            public String toString() {
+                return "mgetreq";
+            }
+        },
+        MPUTREQ {
+            public String toString() {
+                return "mputreq";
+            }
+        },
+        MDELREQ {
+            public String toString() {
+                return "mdelreq";
+            }
+        },
+        /** An administrative command, named by the key. */
+        ADMINREQ {
+            public String toString() {
+                return "adminreq";
+            }
+        },
+        /**
+         * One page of the keys from the key (inclusive) to the value (exclusive, or no
+         * end if null), in order, at most as many as the message says. The response
+         * carries the page as its pairs and, if the range goes on, the key to start the
+         * next page at as its key.
+         */
+        SCANREQ {
+            public String toString() {
+                return "scanreq";
+            }
         }
     }
 
+    /**
+     * A page of a scan: the pairs found and, if there are more, the key to start the
+     * next page at.
+     */
+    public static final class ScanPage {
+        private final List<KVPair> pairs;
+        private final String nextKey;
+
+        public ScanPage(final List<KVPair> pairs, final String nextKey) {
+            this.pairs = pairs;
+            this.nextKey = nextKey;
+        }
+
+        public List<KVPair> getPairs() {
+            return pairs;
+        }
+
+        /**
+         * @return the first key after this page, or null if the range is exhausted.
+         */
+        public String getNextKey() {
+            return nextKey;
+        }
+    }
+
+    /** The admin command that returns a snapshot of the server's KVMetrics, one pair per metric. */
+    static final String ADMIN_METRICS = "metrics";
+
     public final String getKey() {
         return key;
     }
@@ -118,6 +230,15 @@ public class KVMessage {
         this.message = message;
     }
 
+    public final List<KVPair> getPairs() {
+        return pairs;
+    }
+
+    @XmlElement(name = "KVPair")
+    public final void setPairs(List<KVPair> pairs) {
+        this.pairs = pairs;
+    }
+
     @XmlAttribute(name = "type")
     public void setMsgType(String type) {
         this.msgType = type;
@@ -170,7 +291,7 @@ public class KVMessage {
      */
     public KVMessage(InputStream input) throws KVException {
         try {
-            final KVMessage kvTemp = (KVMessage) _jaxbCtx.createUnmarshaller().unmarshal(new NoCloseInputStream(input));
+            final KVMessage kvTemp = (KVMessage) UNMARSHALLER.get().unmarshal(new NoCloseInputStream(input));
             this.setMsgType(kvTemp.getMsgType());
 
             switch (parseMessageType(this.msgType)) {
@@ -180,14 +301,27 @@ public class KVMessage {
                     break;
                 case GETREQ:
                 case DELREQ:
+                case ADMINREQ:
+                    this.setKey(kvTemp.getKey());
+                    break;
+                case MGETREQ:
+                case MPUTREQ:
+                case MDELREQ:
+                    this.setPairs(batchPairs(kvTemp.getPairs()));
+                    break;
+                case SCANREQ:
                     this.setKey(kvTemp.getKey());
+                    this.setValue(kvTemp.getValue());
+                    this.setMessage(kvTemp.getMessage());
                     break;
                 case RESP:
                     this.setMessage(kvTemp.getMessage());
-                    if (kvTemp.getKey() != null && kvTemp.getValue() != null) {
+                    // a key alone is where the next page of a scan starts
+                    if (kvTemp.getKey() != null) {
                         this.setKey(kvTemp.getKey());
                         this.setValue(kvTemp.getValue());
                     }
+                    this.setPairs(kvTemp.getPairs());
                     break;
                 default:
                     throw new KVException(makeResponse(ResponseType.MESSAGE_ERROR));
@@ -211,7 +345,7 @@ public class KVMessage {
         Writer sw = new StringWriter();
 
         try {
-            _jaxbCtx.createMarshaller().marshal(this, sw);
+            MARSHALLER.get().marshal(this, sw);
         } catch (final JAXBException je) {
             throw new KVException(makeResponse(ResponseType.UNKNOWN_ERROR));
         }
@@ -219,19 +353,296 @@ public class KVMessage {
         return sw.toString();
     }
 
+    /**
+     * Marshals the XML representation of this message straight into out, in UTF-8,
+     * without building it as a String first. Does not flush or close out.
+     */
+    public void writeXML(OutputStream out) throws KVException {
+        try {
+            MARSHALLER.get().marshal(this, out);
+        } catch (final JAXBException je) {
+            throw new KVException(makeResponse(ResponseType.UNKNOWN_ERROR));
+        }
+    }
+
     public void sendMessage(Socket sock) throws KVException {
 
-        OutputStream out = null;
+        final SocketOutputBuffer out = SOCKET_BUFFER.get();
         try {
-            out = new BufferedOutputStream(sock.getOutputStream());
-            String xml = this.toXML();
-            out.write(xml.getBytes(), 0, xml.length());
+            out.attach(sock.getOutputStream());
+            this.writeXML(out);
             out.flush();
             sock.shutdownOutput();
         } catch (final IOException e) {
             throw new KVException(KVMessage.makeResponse(ResponseType.DATA_SEND_ERROR));
+        } finally {
+            out.detach();
+        }
+
+    }
+
+    /**
+     * Sent once by a client, before its first frame, to switch a connection from one
+     * XML document per connection to a stream of length-prefixed frames. XML documents
+     * always start with '<', so the server can tell the two apart from the first bytes.
+     * The preamble also picks the encoding of the frames; see WireFormat.
+     */
+    static final int FRAMED_PREAMBLE = 0x4B564631; // "KVF1"
+    static final int BINARY_PREAMBLE = 0x4B564231; // "KVB1"
+
+    /**
+     * How messages are encoded inside frames.
+     */
+    public enum WireFormat {
+        /** The same XML documents that unframed connections carry. */
+        XML(FRAMED_PREAMBLE) {
+            void write(final KVMessage msg, final OutputStream out) throws KVException {
+                msg.writeXML(out);
+            }
+
+            KVMessage decode(final byte[] frame) throws KVException {
+                return new KVMessage(new ByteArrayInputStream(frame));
+            }
+        },
+        /**
+         * A type byte followed by the key, value and message, each as an int length
+         * (-1 for null) and that many bytes of UTF-8. No parser, no escaping. Batches
+         * then add an int count and that many key, value and message triples.
+         */
+        BINARY(BINARY_PREAMBLE) {
+            void write(final KVMessage msg, final OutputStream out) throws KVException {
+                msg.writeBinary(out);
+            }
+
+            KVMessage decode(final byte[] frame) throws KVException {
+                return fromBinary(frame);
+            }
+        };
+
+        final int preamble;
+
+        WireFormat(final int preamble) {
+            this.preamble = preamble;
         }
 
+        /**
+         * Writes msg to out in this format. Does not flush or close out.
+         */
+        abstract void write(KVMessage msg, OutputStream out) throws KVException;
+
+        byte[] encode(final KVMessage msg) throws KVException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(msg, out);
+            return out.toByteArray();
+        }
+
+        abstract KVMessage decode(byte[] frame) throws KVException;
+
+        /**
+         * @return the format a connection opening with preamble uses, or null if it is
+         * not a framed connection.
+         */
+        static WireFormat forPreamble(final int preamble) {
+            for (final WireFormat format : values()) {
+                if (format.preamble == preamble) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return this message in the BINARY wire format.
+     */
+    byte[] toBinary() throws KVException {
+        return WireFormat.BINARY.encode(this);
+    }
+
+    /**
+     * Encodes this message as a BINARY frame, length prefix included, except for the
+     * bytes of its value: the caller sends valueLength bytes of UTF-8 itself between the
+     * two returned buffers, so a large value can go straight from a file to the socket.
+     * The message's own value is ignored; it must not be a batch.
+     */
+    ByteBuffer[] toBinaryFrameAround(final long valueLength) throws KVException {
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        final ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        try {
+            final DataOutputStream out = new DataOutputStream(head);
+            out.writeInt(0);
+            out.writeByte(parseMessageType(msgType).ordinal());
+            writeBinaryString(out, key);
+            out.writeInt((int) valueLength);
+            writeBinaryString(new DataOutputStream(tail), message);
+        } catch (final IOException e) {
+            throw new KVException(makeResponse(ResponseType.UNKNOWN_ERROR));
+        }
+        final ByteBuffer headBuffer = ByteBuffer.wrap(head.toByteArray());
+        headBuffer.putInt(0, (int) (head.size() - 4 + valueLength + tail.size()));
+        return new ByteBuffer[] {headBuffer, ByteBuffer.wrap(tail.toByteArray())};
+    }
+
+    private void writeBinary(final OutputStream stream) throws KVException {
+        final MessageType type = parseMessageType(msgType);
+        final DataOutputStream out = new DataOutputStream(stream);
+        try {
+            out.writeByte(type.ordinal());
+            writeBinaryString(out, key);
+            writeBinaryString(out, value);
+            writeBinaryString(out, message);
+            // batches only, so single-key messages keep their old encoding
+            if (pairs != null) {
+                out.writeInt(pairs.size());
+                for (final KVPair pair : pairs) {
+                    writeBinaryString(out, pair.key);
+                    writeBinaryString(out, pair.value);
+                    writeBinaryString(out, pair.message);
+                }
+            }
+        } catch (final IOException e) {
+            throw new KVException(makeResponse(ResponseType.UNKNOWN_ERROR));
+        }
+    }
+
+    /**
+     * Parses a message in the BINARY wire format, applying the same checks as
+     * {@link #KVMessage(InputStream)}.
+     */
+    static KVMessage fromBinary(final byte[] frame) throws KVException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        final KVMessage msg = new KVMessage();
+        try {
+            final int type = in.readUnsignedByte();
+            if (type >= MessageType.values().length) {
+                throw new KVException(makeResponse(ResponseType.MESSAGE_ERROR));
+            }
+            msg.msgType = MessageType.values()[type].toString();
+            final String key = readBinaryString(in);
+            final String value = readBinaryString(in);
+            final String message = readBinaryString(in);
+            List<KVPair> pairs = null;
+            if (in.available() > 0) {
+                final int count = in.readInt();
+                // every entry takes at least three lengths
+                if (count < 0 || count > in.available() / 12) {
+                    throw new EOFException("Batch runs past the end of the message");
+                }
+                pairs = new ArrayList<KVPair>(count);
+                for (int i = 0; i < count; ++i) {
+                    final KVPair pair = new KVPair(readBinaryString(in), readBinaryString(in));
+                    pair.message = readBinaryString(in);
+                    pairs.add(pair);
+                }
+            }
+            switch (MessageType.values()[type]) {
+                case PUTREQ:
+                    msg.key = key;
+                    msg.value = value;
+                    break;
+                case GETREQ:
+                case DELREQ:
+                case ADMINREQ:
+                    msg.key = key;
+                    break;
+                case MGETREQ:
+                case MPUTREQ:
+                case MDELREQ:
+                    msg.pairs = batchPairs(pairs);
+                    break;
+                case SCANREQ:
+                    msg.key = key;
+                    msg.value = value;
+                    msg.message = message;
+                    break;
+                case RESP:
+                    msg.message = message;
+                    if (key != null) {
+                        msg.key = key;
+                        msg.value = value;
+                    }
+                    msg.pairs = pairs;
+                    break;
+            }
+        } catch (final IOException e) {
+            throw new KVException(makeResponse(ResponseType.MESSAGE_ERROR));
+        }
+        return msg;
+    }
+
+    /**
+     * @return the entries of a batch request, with an empty batch as an empty list: XML
+     * does not tell an empty list from a missing one.
+     */
+    private static List<KVPair> batchPairs(final List<KVPair> pairs) {
+        return pairs == null ? new ArrayList<KVPair>() : pairs;
+    }
+
+    private static void writeBinaryString(final DataOutputStream out, final String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readBinaryString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new EOFException("String runs past the end of the message");
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /** Frames longer than this are treated as corrupt: a maximal value, fully escaped, fits well within it. */
+    static final int MAX_FRAME_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Writes this message as one frame: its length in bytes, then the message in format.
+     * Does not flush, so that several frames can go out in one packet.
+     */
+    public void sendFrame(DataOutputStream out, WireFormat format) throws KVException {
+        // the length has to go first, so encode into a per-thread scratch buffer
+        final ScratchBuffer scratch = FRAME_SCRATCH.get();
+        scratch.reset();
+        try {
+            format.write(this, scratch);
+            out.writeInt(scratch.size());
+            scratch.writeTo(out);
+        } catch (final IOException e) {
+            throw new KVException(KVMessage.makeResponse(ResponseType.DATA_SEND_ERROR));
+        } finally {
+            scratch.shrink();
+        }
+    }
+
+    /**
+     * Reads the payload of one frame written by sendFrame. Parse it with the
+     * connection's WireFormat.decode.
+     *
+     * @return the frame's bytes, or null if the stream ended cleanly between frames.
+     * @throws IOException if the stream ended mid-frame or the frame length is invalid.
+     */
+    static byte[] receiveFrame(DataInputStream in) throws IOException {
+        final int length;
+        try {
+            length = in.readInt();
+        } catch (final EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        final byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
     }
 
     private MessageType parseMessageType(final String msgType) throws KVException {
@@ -294,6 +705,11 @@ public class KVMessage {
                 return "Does not exist";
             }
         },
+        SERVER_BUSY {
+            public String toString() {
+                return "Server busy";
+            }
+        },
         UNKNOWN_ERROR {
             public String toString() {
                 return "Unknown Error";
@@ -316,6 +732,83 @@ public class KVMessage {
 
     }
 
+    /**
+     * A BufferedOutputStream whose buffer is kept between messages and pointed at
+     * whichever socket is being written to.
+     */
+    private static final class SocketOutputBuffer extends BufferedOutputStream {
+        SocketOutputBuffer() {
+            super(null, 64 * 1024);
+        }
+
+        void attach(final OutputStream target) {
+            this.out = target;
+        }
+
+        void detach() {
+            this.count = 0;
+            this.out = null;
+        }
+    }
+
+    /**
+     * A reusable ByteArrayOutputStream that gives back its memory after an unusually large message.
+     */
+    private static final class ScratchBuffer extends ByteArrayOutputStream {
+        private static final int RETAINED_BYTES = 512 * 1024;
+
+        ScratchBuffer() {
+            super(4 * 1024);
+        }
+
+        void shrink() {
+            if (buf.length > RETAINED_BYTES) {
+                buf = new byte[4 * 1024];
+            }
+            reset();
+        }
+    }
+
+    /*
+     * JAXBContext is thread safe but Marshaller and Unmarshaller are not, and creating
+     * them is a large part of the cost of a small message, so each thread keeps its own.
+     */
+    private static final ThreadLocal<Marshaller> MARSHALLER = new ThreadLocal<Marshaller>() {
+        @Override
+        protected Marshaller initialValue() {
+            try {
+                return _jaxbCtx.createMarshaller();
+            } catch (final JAXBException e) {
+                throw new IllegalStateException("Unable to create a JAXB marshaller", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<Unmarshaller> UNMARSHALLER = new ThreadLocal<Unmarshaller>() {
+        @Override
+        protected Unmarshaller initialValue() {
+            try {
+                return _jaxbCtx.createUnmarshaller();
+            } catch (final JAXBException e) {
+                throw new IllegalStateException("Unable to create a JAXB unmarshaller", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<SocketOutputBuffer> SOCKET_BUFFER = new ThreadLocal<SocketOutputBuffer>() {
+        @Override
+        protected SocketOutputBuffer initialValue() {
+            return new SocketOutputBuffer();
+        }
+    };
+
+    private static final ThreadLocal<ScratchBuffer> FRAME_SCRATCH = new ThreadLocal<ScratchBuffer>() {
+        @Override
+        protected ScratchBuffer initialValue() {
+            return new ScratchBuffer();
+        }
+    };
+
     private static JAXBContext _jaxbCtx = null;
     static {
         try {
@@ -0,0 +1,193 @@
+/**
+ * Latency and cache metrics for the Key-Value server
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latency histograms for every operation of KVServer, KVCache and KVStore, fed by the
+ * AutoGrader's Started and Finished hooks, and for the time KVServer waits for cache
+ * set locks. Like the hooks, they are shared by every server in the JVM.
+ *
+ * A snapshot is served to clients as the "metrics" admin request; see
+ * {@link KVClient#getServerMetrics()}.
+ */
+final class KVMetrics {
+
+    enum Op {
+        SERVER_GET("server.get"), SERVER_PUT("server.put"), SERVER_DEL("server.del"),
+        CACHE_GET("cache.get"), CACHE_PUT("cache.put"), CACHE_DEL("cache.del"),
+        STORE_GET("store.get"), STORE_PUT("store.put"), STORE_DEL("store.del");
+
+        final String metricName;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        Op(final String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private static final LatencyHistogram LOCK_WAIT = new LatencyHistogram();
+
+    private static volatile boolean enabled = true;
+
+    /** When each Op last started on this thread. */
+    private static final ThreadLocal<long[]> STARTED = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[Op.values().length];
+        }
+    };
+
+    private KVMetrics() {
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns recording on or off. Off, the hooks cost one volatile read each.
+     */
+    static void setEnabled(final boolean on) {
+        enabled = on;
+    }
+
+    static void started(final Op op) {
+        if (enabled) {
+            STARTED.get()[op.ordinal()] = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records the time since op last started on this thread, once: a batch calls every
+     * Started hook of its keys before any Finished hook, and is recorded as one sample
+     * of the whole batch rather than one such sample per key.
+     */
+    static void finished(final Op op) {
+        if (enabled) {
+            final long[] started = STARTED.get();
+            final long start = started[op.ordinal()];
+            if (start != 0) {
+                started[op.ordinal()] = 0;
+                op.histogram.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    static void recordLockWait(final long nanos) {
+        LOCK_WAIT.record(nanos);
+    }
+
+    static void reset() {
+        for (final Op op : Op.values()) {
+            op.histogram.reset();
+        }
+        LOCK_WAIT.reset();
+    }
+
+    /**
+     * @return every metric by name: count, mean and percentiles in nanoseconds for each
+     * histogram, then cache hits, misses and evictions overall, the cache's current numbers
+     * of sets and entries, and hits, misses and evictions for each set.
+     */
+    static Map<String, String> snapshot(final KVCache cache) {
+        final Map<String, String> metrics = new LinkedHashMap<String, String>();
+        for (final Op op : Op.values()) {
+            addHistogram(metrics, op.metricName, op.histogram);
+        }
+        addHistogram(metrics, "lock.wait", LOCK_WAIT);
+
+        final long hits = cache.getHitCount();
+        final long misses = cache.getMissCount();
+        metrics.put("cache.hits", Long.toString(hits));
+        metrics.put("cache.misses", Long.toString(misses));
+        metrics.put("cache.evictions", Long.toString(cache.getEvictionCount()));
+        metrics.put("cache.hit_ratio", Double.toString(hits + misses == 0 ? 0.0 : (double) hits / (hits + misses)));
+        final List<KVCache.CacheSet> sets = cache.getSets();
+        metrics.put("cache.sets", Integer.toString(sets.size()));
+        metrics.put("cache.entries", Integer.toString(cache.getEntryCount()));
+        for (int i = 0; i < sets.size(); ++i) {
+            final KVCache.CacheSet set = sets.get(i);
+            metrics.put("cache.set." + i + ".hits", Long.toString(set.getHitCount()));
+            metrics.put("cache.set." + i + ".misses", Long.toString(set.getMissCount()));
+            metrics.put("cache.set." + i + ".evictions", Long.toString(set.getEvictionCount()));
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of snapshot(cache), then those of store's Bloom filter if it has one:
+     * checks, keys ruled out, false positives, and the observed and configured false positive rates;
+     * and, if store keeps its values in files, its failed compactions and the bytes of torn
+     * records it cut off when opened.
+     */
+    static Map<String, String> snapshot(final KVCache cache, final KVStore store) {
+        final Map<String, String> metrics = snapshot(cache);
+        final CountingBloomFilter filter = store.getFilter();
+        if (filter != null) {
+            metrics.put("store.filter.checks", Long.toString(filter.getCheckCount()));
+            metrics.put("store.filter.negatives", Long.toString(filter.getNegativeCount()));
+            metrics.put("store.filter.false_positives", Long.toString(filter.getFalsePositiveCount()));
+            metrics.put("store.filter.false_positive_rate", Double.toString(filter.getFalsePositiveRate()));
+            metrics.put("store.filter.expected_false_positive_rate",
+                    Double.toString(filter.getExpectedFalsePositiveRate()));
+        }
+        if (store.isPersistent()) {
+            metrics.put("store.compaction.failures", Long.toString(store.getCompactionFailureCount()));
+            metrics.put("store.recovery.truncated_bytes", Long.toString(store.getTruncatedBytes()));
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of snapshot(cache, store) for server's cache and store, then the
+     * writes server has queued for its store and how many times the store failed one; both
+     * are 0 unless server is write-behind.
+     */
+    static Map<String, String> snapshot(final KVServer server) {
+        final Map<String, String> metrics = snapshot(server.getDataCache(), server.getDataStore());
+        metrics.put("server.write_behind.pending", Integer.toString(server.getPendingWriteCount()));
+        metrics.put("server.write_behind.failures", Long.toString(server.getFailedWriteCount()));
+        return metrics;
+    }
+
+    private static void addHistogram(final Map<String, String> metrics, final String name,
+                                     final LatencyHistogram histogram) {
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        metrics.put(name + ".count", Long.toString(snapshot.getCount()));
+        metrics.put(name + ".mean_ns", Long.toString(snapshot.getMean()));
+        metrics.put(name + ".p50_ns", Long.toString(snapshot.getPercentile(0.5)));
+        metrics.put(name + ".p90_ns", Long.toString(snapshot.getPercentile(0.9)));
+        metrics.put(name + ".p99_ns", Long.toString(snapshot.getPercentile(0.99)));
+        metrics.put(name + ".p999_ns", Long.toString(snapshot.getPercentile(0.999)));
+        metrics.put(name + ".max_ns", Long.toString(snapshot.getMax()));
+    }
+}
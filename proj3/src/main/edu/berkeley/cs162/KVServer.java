@@ -39,6 +39,15 @@ package edu.berkeley.cs162;
  *
  */
 
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -49,10 +58,51 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 public class KVServer implements KeyValueInterface {
     private final KVStore dataStore;
     private final KVCache dataCache;
+    /** Pending store writes in WRITE_BEHIND mode, null in WRITE_THROUGH mode. */
+    private final WriteBehindQueue writeBehind;
+    /** Resizes dataCache once adaptive sizing is enabled, null until then. */
+    private CacheSizer cacheSizer;
 
     private static final int MAX_KEY_SIZE = 256;
     private static final int MAX_VAL_SIZE = 256 * 1024;
 
+    /**
+     * Gets from BINARY framed clients that miss the cache send values at least this long
+     * straight from a persistent store's files (see getForTransfer), without reading
+     * them onto the heap or putting them in the cache. Every other path caches them.
+     */
+    static final int LARGE_VALUE_SIZE = 64 * 1024;
+
+    /** The most pairs one page of a scan returns. */
+    public static final int MAX_SCAN_LIMIT = 1000;
+
+    /**
+     * Characters of keys and values after which a scan page stops early, so that it
+     * stays within KVMessage.MAX_FRAME_BYTES once encoded. A page always holds at least one pair.
+     */
+    static final int SCAN_PAGE_CHARS = 1024 * 1024;
+
+    /** How often an adaptively sized cache is checked, in milliseconds. */
+    static final long CACHE_SIZING_PERIOD_MILLIS = 1000;
+
+    /** How many keys may wait for the store at once in WRITE_BEHIND mode, unless told otherwise. */
+    public static final int DEFAULT_MAX_PENDING_WRITES = 4096;
+
+    /**
+     * When puts and deletes reach the store.
+     */
+    public enum WriteMode {
+        /** Before the request returns. A put takes as long as the store does. */
+        WRITE_THROUGH,
+        /**
+         * Later, from a background thread that applies the latest write of each key in
+         * batches. A put returns once the cache and the queue have it; gets see queued
+         * writes. Queued writes are lost if the process dies, and close or flush must be
+         * called before reading the store directly.
+         */
+        WRITE_BEHIND
+    }
+
     KVCache getDataCache() {
         return dataCache;
     }
@@ -65,11 +115,116 @@ public class KVServer implements KeyValueInterface {
      * @param numSets number of sets in the data Cache.
      */
     public KVServer(int numSets, int maxElemsPerSet) {
-        dataStore = new KVStore();
-        dataCache = new KVCache(numSets, maxElemsPerSet);
+        this(numSets, maxElemsPerSet, KVCache.EvictionPolicyType.CLOCK);
+    }
+
+    /**
+     * @param numSets number of sets in the data Cache.
+     * @param policyType eviction policy of the data Cache.
+     */
+    public KVServer(int numSets, int maxElemsPerSet, KVCache.EvictionPolicyType policyType) {
+        // one store stripe per cache set, so a set's write lock also guards its stripe
+        this(new KVStore(numSets), new KVCache(numSets, maxElemsPerSet, policyType));
+    }
+
+    /**
+     * Serves an existing store, e.g. a persistent one created with KVStore(File).
+     * @param dataStore the backing store.
+     * @param dataCache the cache in front of it.
+     */
+    public KVServer(KVStore dataStore, KVCache dataCache) {
+        this(dataStore, dataCache, WriteMode.WRITE_THROUGH);
+    }
+
+    /**
+     * @param dataStore the backing store.
+     * @param dataCache the cache in front of it.
+     * @param writeMode when writes reach the store. WRITE_BEHIND queues at most
+     *                  DEFAULT_MAX_PENDING_WRITES keys.
+     */
+    public KVServer(KVStore dataStore, KVCache dataCache, WriteMode writeMode) {
+        this(dataStore, dataCache, writeMode, DEFAULT_MAX_PENDING_WRITES);
+    }
+
+    /**
+     * @param dataStore the backing store.
+     * @param dataCache the cache in front of it.
+     * @param writeMode when writes reach the store.
+     * @param maxPendingWrites in WRITE_BEHIND mode, how many keys may wait for the store
+     *                         before writes of new keys block.
+     */
+    public KVServer(KVStore dataStore, KVCache dataCache, WriteMode writeMode, int maxPendingWrites) {
+        this.dataStore = dataStore;
+        this.dataCache = dataCache;
+        this.writeBehind = writeMode == WriteMode.WRITE_BEHIND
+                ? new WriteBehindQueue(dataStore, maxPendingWrites)
+                : null;
         AutoGrader.registerKVServer(dataStore, dataCache);
     }
 
+    /**
+     * Waits until every write acknowledged so far is in the store. Returns at once in
+     * WRITE_THROUGH mode.
+     */
+    public void flush() throws KVException {
+        if (writeBehind == null) return;
+        try {
+            writeBehind.flush();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+        }
+    }
+
+    /**
+     * Lets the cache change its number of sets while serving: it splits sets while its hit
+     * ratio is below targetHitRatio and it is evicting, up to maxSets, and merges them
+     * again while it is mostly empty, down to the number it was created with. See CacheSizer.
+     */
+    public synchronized void enableAdaptiveSizing(final int maxSets, final double targetHitRatio) {
+        if (cacheSizer != null) {
+            throw new IllegalStateException("Adaptive sizing is already enabled");
+        }
+        cacheSizer = new CacheSizer(dataCache, maxSets, targetHitRatio);
+        cacheSizer.start(CACHE_SIZING_PERIOD_MILLIS);
+    }
+
+    /**
+     * Stops adaptive sizing, then writes out the pending writes and stops the WRITE_BEHIND
+     * flusher. The store is left open.
+     * @throws KVException IO_ERROR if some pending writes could not be written out in time.
+     */
+    public void close() throws KVException {
+        final CacheSizer sizer;
+        synchronized (this) {
+            sizer = cacheSizer;
+            cacheSizer = null;
+        }
+        try {
+            if (sizer != null) sizer.close();
+            if (writeBehind != null && writeBehind.close() > 0) {
+                throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+        }
+    }
+
+    /**
+     * @return how many keys have writes not yet in the store.
+     */
+    int getPendingWriteCount() {
+        return writeBehind != null ? writeBehind.size() : 0;
+    }
+
+    /**
+     * @return how many times the store failed a queued write, which was then retried.
+     */
+    long getFailedWriteCount() {
+        return writeBehind != null ? writeBehind.getFailureCount() : 0;
+    }
+
 
     private void validateKey(final String key) throws KVException {
         if (key == null || key.length() == 0) {
@@ -91,135 +246,539 @@ public class KVServer implements KeyValueInterface {
     public boolean put(String key, String value) throws KVException {
         // Must be called before anything else
         AutoGrader.agKVServerPutStarted(key, value);
-        final WriteLock lock = dataCache.getWriteLock(key);
+        WriteLock lock = null;
         try {
             validateKey(key);
-            validateValue(key);
-            // trying to make critical section as small as possible
-            lock.lock();
-            synchronized (dataStore) {
-                try {
-                    dataStore.put(key, value); // If an exception is thrown here, we throw an IO error
-                    dataCache.put(key, value); // this will only be reached if the prev line is successful
-                } catch (final KVException e) {
-                    throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
-                }
-            }
+            validateValue(value);
+            // trying to make critical section as small as possible.
+            // The set lock makes the store and cache updates atomic for this key without
+            // blocking keys in other sets.
+            lock = lockSet(key);
+            putInStore(key, value);
         } finally {
             AutoGrader.agKVServerPutFinished(key, value);
-            if (lock.isHeldByCurrentThread()) lock.unlock();
+            if (lock != null) lock.unlock();
         }
         return true;
     }
 
-    public String get(String key) throws KVException {
-        // Must be called before anything else
-        String value = null;
-        AutoGrader.agKVServerGetStarted(key);
-
-        final WriteLock lock = dataCache.getWriteLock(key);
+    /**
+     * Writes key to the store, or queues the write in WRITE_BEHIND mode, and then to the cache.
+     * Assumes the corresponding cache set has already been locked for writing.
+     */
+    private void putInStore(final String key, final String value) throws KVException {
+        try {
+            if (writeBehind != null) {
+                queue(key, value);
+            } else {
+                dataStore.put(key, value); // If an exception is thrown here, we throw an IO error
+            }
+            dataCache.put(key, value); // this will only be reached if the prev line is successful
+        } catch (final KVException e) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+        }
+    }
 
+    /**
+     * Queues a put of key, or a delete if value is null, for the WRITE_BEHIND flusher.
+     * Since the set lock is held, a full queue holds up only writers of this set.
+     */
+    private void queue(final String key, final String value) throws KVException {
         try {
-            validateKey(key);
-            lock.lock();
+            if (value != null) {
+                writeBehind.put(key, value);
+            } else {
+                writeBehind.del(key);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+        } catch (final IllegalStateException e) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+        }
+    }
 
-            // First we try to get the data from the cache.
-            value = dataCache.get(key);
-            // If it isn't in the cache, we need to get it from the store
-            if (value == null) {
+    /**
+     * @return the write of key that the store does not have yet, or null.
+     */
+    private WriteBehindQueue.Write pendingWrite(final String key) {
+        return writeBehind != null ? writeBehind.pending(key) : null;
+    }
 
-                synchronized (dataStore) {
+    public String get(String key) throws KVException {
+        final String value = getIfPresent(key);
+        if (value == null) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DNE_ERROR));
+        }
+        return value;
+    }
 
-                    try {
-                        // try to get the value from the store
-                        value = dataStore.get(key);
+    /**
+     * Same as get, but reports a key that does not exist by returning null rather than throwing.
+     * @throws KVException if key is invalid or the store failed.
+     */
+    String getIfPresent(String key) throws KVException {
+        return lookup(key, false).value;
+    }
 
-                    } catch (final KVException e) {
-                        // This is because the skeleton throws an exception here
-                        if (e.getMsg().getMsgType().equals("resp") &&
-                                e.getMsg().getMessage().equals("key \"" + key + "\" does not exist in store")) {
+    /**
+     * The result of getForTransfer: the value, the region of the store's files holding
+     * it, or neither if key does not exist.
+     */
+    static final class StoredValue {
+        final String value;
+        final FileRegion region;
 
-                            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DNE_ERROR));
+        StoredValue(final String value, final FileRegion region) {
+            this.value = value;
+            this.region = region;
+        }
+    }
 
-                        } else {
-                            // otherwise, there was some other error with the store, so we abort
-                            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
-                        }
-                    }
+    /**
+     * Same as get, except that a value of at least LARGE_VALUE_SIZE bytes in a persistent
+     * store comes back as a region of the store's files, for the caller to send with
+     * transferTo and then close, unless it is already cached. Large values read here are
+     * not cached.
+     */
+    StoredValue getForTransfer(String key) throws KVException {
+        return lookup(key, true);
+    }
 
-                    if (value == null) {
-                        // just in case we have a store that can return null if the value is not there
-                        throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DNE_ERROR));
+    private StoredValue lookup(final String key, final boolean openLarge) throws KVException {
+        // Must be called before anything else
+        String value = null;
+        FileRegion region = null;
+        AutoGrader.agKVServerGetStarted(key);
 
-                    } else {
-                        // we have retrieved the value from the store, so we insert it in the cache
-                        dataCache.put(key, value);
-                    }
+        try {
+            validateKey(key);
 
+            // First we try to get the data from the cache. Cache reads do not need the set lock.
+            value = dataCache.lookup(key);
+            if (value == KVCache.ABSENT) {
+                // the cache knows key is missing
+                value = null;
+            } else if (value == null) {
+                // If it isn't in the cache, we need to get it from the store
+                final WriteLock lock = lockSet(key);
+                try {
+                    // a queued write is newer than the store's files
+                    if (openLarge && pendingWrite(key) == null && dataStore.mightContain(key)) {
+                        region = dataStore.openValue(key, LARGE_VALUE_SIZE);
+                    }
+                    if (region == null) {
+                        value = getFromStore(key, !openLarge || !dataStore.isPersistent());
+                    }
+                } finally {
+                    lock.unlock();
                 }
             }
 
         } finally {
             // Must be called before returning
             AutoGrader.agKVServerGetFinished(key);
-            if (lock.isHeldByCurrentThread()) lock.unlock();
+        }
+        return new StoredValue(value, region);
+    }
+
+    /**
+     * Reads key from the pending writes or else the store, and inserts it into the cache,
+     * or a negative entry for it if it does not exist.
+     * Assumes the corresponding cache set has already been locked for writing.
+     * @param cacheLarge whether to cache a value of at least LARGE_VALUE_SIZE.
+     * @return the value, or null if key does not exist.
+     */
+    private String getFromStore(final String key, final boolean cacheLarge) throws KVException {
+        final String value = readFromStore(key);
+        if (value == null) {
+            // later gets of key are answered from the cache until it is put
+            dataCache.putAbsent(key);
+        } else if (cacheLarge || value.length() < LARGE_VALUE_SIZE) {
+            // we have retrieved the value from the store, so we insert it in the cache
+            dataCache.put(key, value);
         }
         return value;
     }
 
+    /**
+     * @return the value of key in the pending writes or else the store, or null if key does not exist.
+     */
+    private String readFromStore(final String key) throws KVException {
+        final WriteBehindQueue.Write pending = pendingWrite(key);
+        if (pending != null) {
+            return pending.value;
+        }
+        if (!dataStore.mightContain(key)) {
+            // the store's filter rules key out
+            return null;
+        }
+        try {
+            return dataStore.getIfPresent(key);
+        } catch (final KVException e) {
+            // there was some error with the store, so we abort
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+        }
+    }
+
     public void del(String key) throws KVException {
         // Must be called before anything else
         AutoGrader.agKVServerDelStarted(key);
 
-        final WriteLock lock = dataCache.getWriteLock(key);
-
-        String value = null;
+        WriteLock lock = null;
 
         try {
             validateKey(key);
-            lock.lock();
-            synchronized (dataStore) {
-
+            lock = lockSet(key);
+            delFromStore(key);
+        } finally {
+            // Must be called before returning
+            AutoGrader.agKVServerDelFinished(key);
+            if (lock != null) lock.unlock();
+        }
+    }
 
-                // First we check if the value is actually in the store
+    /**
+     * Looks up every key, reading the cache first, then takes each cache set's lock once
+     * to load that set's misses from the store.
+     */
+    @Override
+    public List<KVMessage.KVPair> mget(final List<String> keys) throws KVException {
+        final KVMessage.KVPair[] results = newResults(keys);
+        for (final String key : keys) {
+            AutoGrader.agKVServerGetStarted(key);
+        }
+        try {
+            final List<Integer> misses = new ArrayList<Integer>();
+            for (int i = 0; i < keys.size(); ++i) {
                 try {
-                    value = dataStore.get(key);
-
+                    validateKey(keys.get(i));
+                    final String value = dataCache.lookup(keys.get(i));
+                    if (value == KVCache.ABSENT) {
+                        doesNotExist(results[i]);
+                    } else if (value != null) {
+                        succeeded(results[i], value);
+                    } else {
+                        misses.add(i);
+                    }
                 } catch (final KVException e) {
-                    // This is because the skeleton throws an exception here
-                    if (e.getMsg().getMsgType().equals("resp") &&
-                            e.getMsg().getMessage().equals("key \"" + key + "\" does not exist in store")) {
-
-                        throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DNE_ERROR));
-
+                    failed(results[i], e);
+                }
+            }
+            forEachBySet(keys, misses, results, new BatchStep() {
+                @Override
+                public void apply(final int i) throws KVException {
+                    final String value = getFromStore(keys.get(i), true);
+                    if (value != null) {
+                        succeeded(results[i], value);
                     } else {
-                        // otherwise, there was some other error with the store, so we abort
-                        throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+                        doesNotExist(results[i]);
                     }
+                }
+            });
+        } finally {
+            for (final String key : keys) {
+                AutoGrader.agKVServerGetFinished(key);
+            }
+        }
+        return Arrays.asList(results);
+    }
 
+    /**
+     * Inserts every pair, taking each cache set's lock once for all of the pairs in it.
+     * Pairs for the same key are applied in order.
+     */
+    @Override
+    public List<KVMessage.KVPair> mput(final List<KVMessage.KVPair> pairs) throws KVException {
+        final List<String> keys = new ArrayList<String>(pairs.size());
+        for (final KVMessage.KVPair pair : pairs) {
+            keys.add(pair.getKey());
+            AutoGrader.agKVServerPutStarted(pair.getKey(), pair.getValue());
+        }
+        final KVMessage.KVPair[] results = newResults(keys);
+        try {
+            final List<Integer> valid = new ArrayList<Integer>();
+            for (int i = 0; i < pairs.size(); ++i) {
+                try {
+                    validateKey(pairs.get(i).getKey());
+                    validateValue(pairs.get(i).getValue());
+                    valid.add(i);
+                } catch (final KVException e) {
+                    failed(results[i], e);
                 }
-                // assuming we have gotten to this point, dataStore.get did not return an exception
-                // however, since the spec is unclear, I will check if the value is null, just in case
-                // the autograder KVStore does not throw an exception if you get a nonexistent key
+            }
+            forEachBySet(keys, valid, results, new BatchStep() {
+                @Override
+                public void apply(final int i) throws KVException {
+                    putInStore(pairs.get(i).getKey(), pairs.get(i).getValue());
+                    succeeded(results[i], null);
+                }
+            });
+        } finally {
+            for (final KVMessage.KVPair pair : pairs) {
+                AutoGrader.agKVServerPutFinished(pair.getKey(), pair.getValue());
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Deletes every key, taking each cache set's lock once for all of the keys in it.
+     */
+    @Override
+    public List<KVMessage.KVPair> mdel(final List<String> keys) throws KVException {
+        final KVMessage.KVPair[] results = newResults(keys);
+        for (final String key : keys) {
+            AutoGrader.agKVServerDelStarted(key);
+        }
+        try {
+            final List<Integer> valid = new ArrayList<Integer>();
+            for (int i = 0; i < keys.size(); ++i) {
+                try {
+                    validateKey(keys.get(i));
+                    valid.add(i);
+                } catch (final KVException e) {
+                    failed(results[i], e);
+                }
+            }
+            forEachBySet(keys, valid, results, new BatchStep() {
+                @Override
+                public void apply(final int i) throws KVException {
+                    delFromStore(keys.get(i));
+                    succeeded(results[i], null);
+                }
+            });
+        } finally {
+            for (final String key : keys) {
+                AutoGrader.agKVServerDelFinished(key);
+            }
+        }
+        return Arrays.asList(results);
+    }
 
-                if (value == null) {
-                    throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DNE_ERROR));
+    /**
+     * Reads one page of the keys from startKey (inclusive) to endKey (exclusive), in
+     * ascending String order, straight from the store, which must be ORDERED. Writes
+     * still queued in WRITE_BEHIND mode are merged in. No locks are taken, so the page
+     * is weakly consistent with writes made meanwhile, and scans never hold up writers.
+     * @param startKey the first key to return, if present; null or "" for the lowest key.
+     * @param endKey the key to stop before, or null to scan to the end.
+     * @param limit the most pairs to return; capped at MAX_SCAN_LIMIT.
+     * @return the page, whose next key is where to start the following page.
+     */
+    public KVMessage.ScanPage scan(String startKey, String endKey, int limit) throws KVException {
+        final String fromKey = startKey != null ? startKey : "";
+        if (fromKey.length() > MAX_KEY_SIZE || (endKey != null && endKey.length() > MAX_KEY_SIZE)) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.KEY_ERROR));
+        }
+        if (limit < 1) {
+            throw new KVException(KVMessage.unknownError("Scan limit must be positive"));
+        }
+        final int pageLimit = Math.min(limit, MAX_SCAN_LIMIT);
+        if (endKey != null && endKey.compareTo(fromKey) <= 0) {
+            return new KVMessage.ScanPage(new ArrayList<KVMessage.KVPair>(), null);
+        }
+
+        final NavigableMap<String, WriteBehindQueue.Write> queued = writeBehind != null
+                ? writeBehind.pendingIn(fromKey, endKey)
+                : new TreeMap<String, WriteBehindQueue.Write>();
+        final List<KVMessage.KVPair> pairs = new ArrayList<KVMessage.KVPair>();
+        try {
+            final Iterator<Map.Entry<String, String>> stored = dataStore.range(fromKey, endKey).iterator();
+            final Iterator<WriteBehindQueue.Write> pending = queued.values().iterator();
+            Map.Entry<String, String> nextStored = stored.hasNext() ? stored.next() : null;
+            WriteBehindQueue.Write nextPending = pending.hasNext() ? pending.next() : null;
+            int chars = 0;
+            while (nextStored != null || nextPending != null) {
+                final String key;
+                final String value;
+                final int order = nextStored == null ? 1
+                        : nextPending == null ? -1
+                        : nextStored.getKey().compareTo(nextPending.key);
+                if (order < 0) {
+                    key = nextStored.getKey();
+                    value = nextStored.getValue();
+                    nextStored = stored.hasNext() ? stored.next() : null;
                 } else {
-                    try {
-                        // now we atomically perform the delete
-                        dataStore.del(key); // if this fails we get an IOError
-                        dataCache.del(key); // this will only happen if the above line is successful
+                    // a queued write replaces what the store has for its key
+                    if (order == 0) nextStored = stored.hasNext() ? stored.next() : null;
+                    key = nextPending.key;
+                    value = nextPending.value;
+                    nextPending = pending.hasNext() ? pending.next() : null;
+                    if (value == null) continue;
+                }
+                final int size = key.length() + value.length();
+                if (pairs.size() == pageLimit || (!pairs.isEmpty() && chars + size > SCAN_PAGE_CHARS)) {
+                    return new KVMessage.ScanPage(pairs, key);
+                }
+                pairs.add(new KVMessage.KVPair(key, value));
+                chars += size;
+            }
+        } catch (final UncheckedIOException e) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+        }
+        return new KVMessage.ScanPage(pairs, null);
+    }
+
+    /**
+     * Reads one page of the keys that start with prefix; see scan.
+     */
+    public KVMessage.ScanPage prefix(String prefix, int limit) throws KVException {
+        return scan(prefix, prefixEnd(prefix), limit);
+    }
 
+    /**
+     * @return the lowest key above every key that starts with prefix, or null if there is none.
+     */
+    static String prefixEnd(final String prefix) {
+        if (prefix == null) return null;
+        for (int i = prefix.length() - 1; i >= 0; --i) {
+            final char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
 
-                    } catch (final KVException e) {
-                        throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+    /**
+     * Locks the cache set of key. If the cache was resized while this waited and key
+     * moved to another set, locks that one instead.
+     * @return the lock, held by the caller.
+     */
+    private WriteLock lockSet(final String key) {
+        while (true) {
+            final WriteLock lock = dataCache.getWriteLock(key);
+            acquire(lock);
+            if (dataCache.getWriteLock(key) == lock) {
+                return lock;
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a cache set lock, recording how long that took in KVMetrics.
+     */
+    private static void acquire(final Lock lock) {
+        if (!KVMetrics.isEnabled()) {
+            lock.lock();
+            return;
+        }
+        final long start = System.nanoTime();
+        lock.lock();
+        KVMetrics.recordLockWait(System.nanoTime() - start);
+    }
+
+    /**
+     * @return one result per key, holding just the key so far.
+     */
+    private static KVMessage.KVPair[] newResults(final List<String> keys) {
+        final KVMessage.KVPair[] results = new KVMessage.KVPair[keys.size()];
+        for (int i = 0; i < results.length; ++i) {
+            results[i] = new KVMessage.KVPair(keys.get(i), null);
+        }
+        return results;
+    }
+
+    private static void succeeded(final KVMessage.KVPair result, final String value) {
+        result.setValue(value);
+        result.setMessage(KVMessage.ResponseType.SUCCESS.toString());
+    }
+
+    private static void failed(final KVMessage.KVPair result, final KVException e) {
+        result.setMessage(e.getMsg().getMessage());
+    }
+
+    private static void doesNotExist(final KVMessage.KVPair result) {
+        result.setMessage(KVMessage.ResponseType.DNE_ERROR.toString());
+    }
+
+    /**
+     * One key's part of a batch operation, run with the key's cache set locked.
+     */
+    private interface BatchStep {
+        /**
+         * @param i the position of the key in the batch.
+         */
+        void apply(int i) throws KVException;
+    }
+
+    /**
+     * Runs step for each of the given positions of keys, taking each cache set's lock once
+     * for all of the keys in it, and records a KVException thrown for a key in its result.
+     * Keys whose set was split or merged before its lock was taken are regrouped and retried.
+     */
+    private void forEachBySet(final List<String> keys, final List<Integer> positions,
+                              final KVMessage.KVPair[] results, final BatchStep step) {
+        List<Integer> remaining = positions;
+        while (!remaining.isEmpty()) {
+            final List<Integer> moved = new ArrayList<Integer>();
+            for (final List<Integer> set : groupBySet(keys, remaining)) {
+                final WriteLock lock = lockSet(keys.get(set.get(0)));
+                try {
+                    for (final int i : set) {
+                        if (dataCache.getWriteLock(keys.get(i)) != lock) {
+                            moved.add(i);
+                            continue;
+                        }
+                        try {
+                            step.apply(i);
+                        } catch (final KVException e) {
+                            failed(results[i], e);
+                        }
                     }
+                } finally {
+                    lock.unlock();
                 }
             }
-        } finally {
-            // Must be called before returning
-            AutoGrader.agKVServerDelFinished(key);
-            if (lock.isHeldByCurrentThread()) lock.unlock();
+            remaining = moved;
+        }
+    }
+
+    /**
+     * Splits the given positions of keys by the cache set their key falls in, keeping
+     * their order within each set.
+     */
+    private List<List<Integer>> groupBySet(final List<String> keys, final List<Integer> positions) {
+        final Map<Integer, List<Integer>> sets = new LinkedHashMap<Integer, List<Integer>>();
+        for (final int i : positions) {
+            final int setId = dataCache.getSetId(keys.get(i));
+            List<Integer> set = sets.get(setId);
+            if (set == null) {
+                set = new ArrayList<Integer>();
+                sets.put(setId, set);
+            }
+            set.add(i);
+        }
+        return new ArrayList<List<Integer>>(sets.values());
+    }
+
+    /**
+     * Deletes key from the store, or queues the delete in WRITE_BEHIND mode, and then from the cache.
+     * Assumes the corresponding cache set has already been locked for writing.
+     * @throws KVException "Does not exist" if the store does not have key.
+     */
+    private void delFromStore(final String key) throws KVException {
+        // First we check if the value is actually in the store. A cached value is as good as
+        // the store's, since both are only written with the set lock held.
+        String value = dataCache.lookup(key);
+        if (value == null) {
+            value = readFromStore(key);
+        }
+        if (value == null || value == KVCache.ABSENT) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.DNE_ERROR));
+        }
+        try {
+            // now we atomically perform the delete
+            if (writeBehind != null) {
+                queue(key, null);
+            } else {
+                dataStore.del(key); // if this fails we get an IOError
+            }
+            dataCache.del(key); // this will only happen if the above line is successful
+        } catch (final KVException e) {
+            throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
         }
     }
 }
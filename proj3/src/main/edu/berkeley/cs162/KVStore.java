@@ -31,46 +31,100 @@
  */
 package edu.berkeley.cs162;
 
-import java.util.Dictionary;
-import java.util.Hashtable;
-import java.util.Enumeration;
+import java.util.Map;
 import java.io.*;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.Result;
-
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 
 /**
  * This is a dummy KeyValue Store. Ideally this would go to disk,
  * or some other backing store. For this project, we simulate the disk like
  * system using a manual delay.
+ *
+ * The actual storage is delegated to a StoreEngine: by default a striped
+ * in-memory map (see MemoryStoreEngine), or, when the store is given a data
+ * directory, an append-only log on disk that survives restarts (see
+ * LogStructuredEngine). The AutoGrader hooks and delays fire the same either way.
  */
 public class KVStore implements KeyValueInterface {
-    private Dictionary<String, String> store = null;
+    private final StoreEngine engine;
+
+    /** Tells which keys are certainly absent, or null if the filter is not enabled. */
+    private volatile CountingBloomFilter filter = null;
+    /** While the filter is being rebuilt, its replacement, which writers add new keys to as well. */
+    private volatile CountingBloomFilter nextFilter = null;
+
+    /**
+     * How the store indexes its keys.
+     */
+    public enum IndexType {
+        /** Hash maps: the fastest point lookups, no order. The default. */
+        HASH,
+        /** A concurrent skip list: point lookups in O(log n), plus range and prefix scans. */
+        ORDERED
+    }
 
     public KVStore() {
-        resetStore();
+        this(1);
+    }
+
+    /**
+     * Creates an in-memory store.
+     * @param numStripes number of stripes to split the data into.
+     */
+    public KVStore(int numStripes) {
+        this(numStripes, IndexType.HASH);
+    }
+
+    /**
+     * Creates an in-memory store.
+     * @param numStripes number of stripes to split the data into. An ORDERED store has one.
+     * @param indexType how to index the keys.
+     */
+    public KVStore(int numStripes, IndexType indexType) {
+        this.engine = indexType == IndexType.ORDERED ? new MemoryStoreEngine() : new MemoryStoreEngine(numStripes);
+    }
+
+    /**
+     * Creates a persistent store, recovering whatever was already written to dataDir.
+     * @param dataDir directory holding the store's log segments.
+     * @throws KVException if the directory cannot be created or read.
+     */
+    public KVStore(File dataDir) throws KVException {
+        this(dataDir, IndexType.HASH);
     }
 
-    private void resetStore() {
-        store = new Hashtable<String, String>();
+    /**
+     * Creates a persistent store, recovering whatever was already written to dataDir.
+     * @param dataDir directory holding the store's log segments.
+     * @param indexType how to index the keys in memory.
+     * @throws KVException if the directory cannot be created or read.
+     */
+    public KVStore(File dataDir, IndexType indexType) throws KVException {
+        try {
+            this.engine = new LogStructuredEngine(dataDir, indexType == IndexType.ORDERED);
+        } catch (final IOException e) {
+            throw ioError();
+        }
     }
 
-    public Dictionary<String, String> getStore() {
-        return this.store;
+    private static KVException ioError() {
+        return new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+    }
+
+    /**
+     * Flushes and releases the files and threads held by the store.
+     */
+    public void close() throws KVException {
+        try {
+            engine.close();
+        } catch (final IOException e) {
+            throw ioError();
+        }
     }
 
     public boolean put(String key, String value) throws KVException {
@@ -78,145 +132,408 @@ public class KVStore implements KeyValueInterface {
 
         try {
             putDelay();
-            store.put(key, value);
+            if (engine.put(key, value)) {
+                added(key);
+            }
             return false;
+        } catch (final IOException e) {
+            throw ioError();
         } finally {
             AutoGrader.agStorePutFinished(key, value);
         }
     }
 
     public String get(String key) throws KVException {
+        String retVal = getIfPresent(key);
+        if (retVal == null) {
+            KVMessage msg = new KVMessage("resp", "key \"" + key + "\" does not exist in store");
+            throw new KVException(msg);
+        }
+        return retVal;
+    }
+
+    /**
+     * Same as get, but reports a missing key by returning null rather than throwing.
+     * @throws KVException only if the store failed.
+     */
+    String getIfPresent(String key) throws KVException {
         AutoGrader.agStoreGetStarted(key);
 
         try {
             getDelay();
-            String retVal = this.store.get(key);
-            if (retVal == null) {
-                KVMessage msg = new KVMessage("resp", "key \"" + key + "\" does not exist in store");
-                throw new KVException(msg);
+            final String value = engine.get(key);
+            if (value == null) {
+                // mightContain let key through, or we would not be here
+                final CountingBloomFilter f = filter;
+                if (f != null) f.recordFalsePositive();
             }
-            return retVal;
+            return value;
+        } catch (final IOException e) {
+            throw ioError();
         } finally {
             AutoGrader.agStoreGetFinished(key);
         }
     }
 
+    /**
+     * Keeps a counting Bloom filter of the store's keys from now on, starting with the
+     * keys already stored, so that mightContain can rule out absent keys without a
+     * lookup. restoreFromFile rebuilds it, growing it if the store has outgrown expectedKeys.
+     * @param expectedKeys how many keys the store is expected to hold.
+     * @param falsePositiveRate the share of absent keys the filter may fail to rule out
+     *                          at expectedKeys keys.
+     */
+    public void enableFilter(int expectedKeys, double falsePositiveRate) throws KVException {
+        rebuildFilter(new CountingBloomFilter(expectedKeys, falsePositiveRate));
+    }
+
+    /**
+     * @return the filter enabled by enableFilter, or null.
+     */
+    CountingBloomFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Checks key against the filter, without touching the store or counting as a get.
+     * @return false if key is certainly not stored, true if it may be or there is no filter.
+     */
+    boolean mightContain(String key) {
+        final CountingBloomFilter f = filter;
+        return f == null || f.mightContain(key);
+    }
+
+    private void added(final String key) {
+        final CountingBloomFilter f = filter;
+        if (f != null) f.add(key);
+        final CountingBloomFilter next = nextFilter;
+        if (next != null) next.add(key);
+    }
+
+    /**
+     * Fills replacement with every stored key and puts it in place of the current filter.
+     * Writers add new keys to replacement while this runs, and the engine is written
+     * before nextFilter is read, so every key ends up in it. A key removed meanwhile may
+     * stay counted, which only costs a false positive.
+     */
+    private void rebuildFilter(final CountingBloomFilter replacement) throws KVException {
+        nextFilter = replacement;
+        try {
+            for (final Map.Entry<String, String> entry : engine.entries()) {
+                replacement.add(entry.getKey());
+            }
+            filter = replacement;
+        } catch (final IOException e) {
+            throw ioError();
+        } catch (final UncheckedIOException e) {
+            throw ioError();
+        } finally {
+            nextFilter = null;
+        }
+    }
+
+    /**
+     * Rebuilds the filter, if there is one, at the same false positive rate and a size
+     * that fits the keys stored now.
+     */
+    private void refreshFilter() throws KVException {
+        final CountingBloomFilter current = filter;
+        if (current == null) return;
+        int keys = 0;
+        try {
+            for (final Map.Entry<String, String> entry : engine.entries()) {
+                ++keys;
+            }
+        } catch (final IOException e) {
+            throw ioError();
+        } catch (final UncheckedIOException e) {
+            throw ioError();
+        }
+        rebuildFilter(new CountingBloomFilter(Math.max(current.getExpectedKeys(), keys),
+                current.getExpectedFalsePositiveRate()));
+    }
+
+    /**
+     * @return whether the store has an ORDERED index, which range needs.
+     */
+    public boolean isOrdered() {
+        return engine.isOrdered();
+    }
+
+    /**
+     * Reads the pairs with fromKey &lt;= key &lt; toKey in ascending key order, or every
+     * key from fromKey on if toKey is null. The view is weakly consistent: writes made
+     * while it is iterated may or may not show up, and it never holds up writers.
+     * Simulates one store access, however many pairs are read.
+     * @throws KVException if the store is not ordered, or, when the view is iterated
+     * as UncheckedIOException, if the store fails.
+     */
+    Iterable<Map.Entry<String, String>> range(String fromKey, String toKey) throws KVException {
+        if (!isOrdered()) {
+            throw new KVException(KVMessage.unknownError("The store has no ordered index"));
+        }
+        try {
+            getDelay();
+            return engine.range(fromKey, toKey);
+        } catch (final IOException e) {
+            throw ioError();
+        }
+    }
+
+    /**
+     * @return whether values live in files, which openValue can send from.
+     */
+    boolean isPersistent() {
+        return engine instanceof LogStructuredEngine;
+    }
+
+    /**
+     * @return how many background compactions of the store's files failed, or 0 if not persistent.
+     */
+    long getCompactionFailureCount() {
+        return isPersistent() ? ((LogStructuredEngine) engine).getCompactionFailureCount() : 0;
+    }
+
+    /**
+     * @return how many bytes of torn records were cut off the store's files when it was
+     * opened, or 0 if not persistent.
+     */
+    long getTruncatedBytes() {
+        return isPersistent() ? ((LogStructuredEngine) engine).getTruncatedBytes() : 0;
+    }
+
+    /**
+     * Opens the bytes of key's value in the store's files, so that a value too large to
+     * be worth reading onto the heap can be sent from there with transferTo. Counts as a
+     * get of key only when a region is returned.
+     * @param minLength values shorter than this many bytes are left to get.
+     * @return the region, which the caller must close, or null if the store is not
+     * persistent, key is not present, or its value is shorter than minLength.
+     */
+    FileRegion openValue(String key, int minLength) throws KVException {
+        if (!isPersistent()) {
+            return null;
+        }
+        FileRegion region = null;
+        try {
+            region = ((LogStructuredEngine) engine).openValue(key, minLength);
+            if (region == null) {
+                return null;
+            }
+            AutoGrader.agStoreGetStarted(key);
+            try {
+                getDelay();
+            } finally {
+                AutoGrader.agStoreGetFinished(key);
+            }
+            return region;
+        } catch (final IOException e) {
+            if (region != null) {
+                try {
+                    region.close();
+                } catch (final IOException e2) {
+                    // reporting the first failure
+                }
+            }
+            throw ioError();
+        }
+    }
+
     public void del(String key) throws KVException {
         AutoGrader.agStoreDelStarted(key);
 
         try {
             delDelay();
-            if(key != null)
-                this.store.remove(key);
+            if (key != null && engine.remove(key)) {
+                final CountingBloomFilter f = filter;
+                if (f != null) f.remove(key);
+            }
+        } catch (final IOException e) {
+            throw ioError();
         } finally {
             AutoGrader.agStoreDelFinished(key);
         }
     }
 
-    private void getDelay() {
+    private void getDelay() throws IOException {
         AutoGrader.agStoreDelay();
     }
 
-    private void putDelay() {
+    private void putDelay() throws IOException {
         AutoGrader.agStoreDelay();
     }
 
-    private void delDelay() {
+    private void delDelay() throws IOException {
         AutoGrader.agStoreDelay();
     }
 
+    /**
+     * Formats understood by writeSnapshot. XML is the format the AutoGrader expects
+     * from toXML; BINARY is a sequence of length-prefixed UTF-8 key/value pairs that
+     * restores without any parsing.
+     */
+    public enum SnapshotFormat {
+        XML,
+        BINARY
+    }
+
     public String toXML() throws KVException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            final DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-            final DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-            final Document doc = docBuilder.newDocument();
-
-            // The tokens we will be using.
-            final String KVSTORE = "KVStore";
-            final String KVPAIR = "KVPair";
-            final String KEY = "Key";
-            final String VALUE = "Value";
-
-            final Element rootElement = doc.createElement(KVSTORE);
-            doc.appendChild(rootElement);
-
-            Enumeration<String> enumKey = store.keys();
-
-            while (enumKey.hasMoreElements()) {
-                String key = enumKey.nextElement();
-                String value = store.get(key);
-                Element kvPairNode = doc.createElement(KVPAIR);
-                rootElement.appendChild(kvPairNode);
-                Element keyNode = doc.createElement(KEY);
-                keyNode.appendChild(doc.createTextNode(key));
-                kvPairNode.appendChild(keyNode);
-                Element valueNode = doc.createElement(VALUE);
-                valueNode.appendChild(doc.createTextNode(value));
-                kvPairNode.appendChild(valueNode);
-            }
+            writeXml(out);
+            return out.toString("UTF-8");
+        } catch (final IOException e) {
+            throw new KVException(KVMessage.unknownError("Could not generate XML"));
+        } catch (final XMLStreamException e) {
+            throw new KVException(KVMessage.unknownError("Could not generate XML"));
+        }
+    }
 
-            final TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            final Transformer transformer = transformerFactory.newTransformer();
-            final DOMSource domSource = new DOMSource(doc);
-            final Writer sw = new StringWriter();
-            final Result streamResult = new StreamResult(sw);
+    /**
+     * Streams every pair in the store to out without holding a copy of the data
+     * in memory. To write to a FileChannel, wrap it with Channels.newOutputStream.
+     * out is flushed but not closed.
+     */
+    public void writeSnapshot(final OutputStream out, final SnapshotFormat format) throws KVException {
+        try {
+            write(out, format);
+        } catch (final IOException e) {
+            throw ioError();
+        } catch (final XMLStreamException e) {
+            throw new KVException(KVMessage.unknownError("Could not generate XML"));
+        }
+    }
 
-            transformer.transform(domSource, streamResult);
+    private void write(final OutputStream out, final SnapshotFormat format) throws IOException, XMLStreamException {
+        if (format == SnapshotFormat.BINARY) {
+            writeBinary(out);
+        } else {
+            writeXml(out);
+        }
+    }
 
-            return sw.toString();
+    private void writeXml(final OutputStream out) throws IOException, XMLStreamException {
+        final XMLStreamWriter writer = Snapshots.startXml(out);
+        try {
+            writer.writeStartElement("KVStore");
+            for (final Map.Entry<String, String> entry : engine.entries()) {
+                writer.writeStartElement("KVPair");
+                Snapshots.writeTextElement(writer, "Key", entry.getKey());
+                Snapshots.writeTextElement(writer, "Value", entry.getValue());
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.flush();
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            writer.close();
+        }
+    }
 
-        } catch (final ParserConfigurationException e) {
-            throw new KVException(KVMessage.unknownError("Could not create an XML parser"));
-        } catch (final TransformerException e) {
-            throw new KVException(KVMessage.unknownError("Could not generate XML"));
+    private void writeBinary(final OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(Snapshots.BINARY_MAGIC);
+        try {
+            for (final Map.Entry<String, String> entry : engine.entries()) {
+                Snapshots.writeString(data, entry.getKey());
+                Snapshots.writeString(data, entry.getValue());
+            }
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
         }
+        data.writeInt(Snapshots.BINARY_END);
+        data.flush();
+    }
 
+    /**
+     * Reads pairs written by writeSnapshot in either format into the store.
+     * The format is detected from the first bytes of the stream.
+     */
+    public void readSnapshot(final InputStream in) throws KVException {
+        try {
+            restore(in);
+        } catch (final IOException e) {
+            throw ioError();
+        } catch (final XMLStreamException e) {
+            throw new KVException(KVMessage.unknownError("Could not parse the given XML file"));
+        }
+        refreshFilter();
+    }
+
+    private void restore(final InputStream in) throws IOException, XMLStreamException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        data.mark(4);
+        final boolean binary;
+        try {
+            binary = data.readInt() == Snapshots.BINARY_MAGIC;
+        } catch (final EOFException e) {
+            throw new XMLStreamException("Snapshot is too short");
+        }
+        if (binary) {
+            for (int keyLength = data.readInt(); keyLength != Snapshots.BINARY_END; keyLength = data.readInt()) {
+                final String key = Snapshots.readString(data, keyLength);
+                final String value = Snapshots.readString(data, data.readInt());
+                if (engine.put(key, value)) added(key);
+            }
+            return;
+        }
+
+        data.reset();
+        final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(data);
+        try {
+            String key = null;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                final String name = reader.getLocalName();
+                if ("Key".equals(name)) {
+                    key = reader.getElementText();
+                } else if ("Value".equals(name)) {
+                    if (engine.put(key, reader.getElementText())) added(key);
+                }
+            }
+        } finally {
+            reader.close();
+        }
     }
 
     public void dumpToFile(String fileName) throws KVException {
+        dumpToFile(fileName, SnapshotFormat.XML);
+    }
+
+    public void dumpToFile(String fileName, SnapshotFormat format) throws KVException {
         try {
-            BufferedWriter out = new BufferedWriter(new FileWriter(fileName));
-            out.write(this.toXML());
-            out.newLine();
-            out.close();
-        } catch (IOException e) {
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+            try {
+                write(out, format);
+            } finally {
+                out.close();
+            }
+        } catch (final IOException e) {
             throw new KVException(KVMessage.unknownError("Could not write to the given file"));
+        } catch (final XMLStreamException e) {
+            throw new KVException(KVMessage.unknownError("Could not generate XML"));
         }
     }
 
+    /**
+     * Loads a file written by dumpToFile in either format.
+     */
     public void restoreFromFile(String fileName) throws KVException {
         try {
-            File file = new File(fileName);
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(file);
-            doc.getDocumentElement().normalize();
-
-            NodeList nList = doc.getElementsByTagName("KVPair");
-
-            for (int temp = 0; temp < nList.getLength(); temp++) {
-                Node nNode = nList.item(temp);
-                if (nNode.getNodeType() == Node.ELEMENT_NODE) {
-                    Element eElement = (Element) nNode;
-                    String key = getTagValue("Key", eElement);
-                    String value = getTagValue("Value", eElement);
-                    this.store.put(key, value);
-                }
+            final InputStream in = new FileInputStream(fileName);
+            try {
+                restore(in);
+            } finally {
+                in.close();
             }
-        } catch (IOException e) {
+        } catch (final IOException e) {
             throw new KVException(KVMessage.unknownError("Could not read from the given file"));
-        } catch (final ParserConfigurationException e) {
-            throw new KVException(KVMessage.unknownError("Could not create an XML parser"));
-        } catch (SAXException e) {
+        } catch (final XMLStreamException e) {
             throw new KVException(KVMessage.unknownError("Could not parse the given XML file"));
         }
+        refreshFilter();
     }
-
-
-    private static String getTagValue(String sTag, Element eElement) {
-        NodeList nlList = eElement.getElementsByTagName(sTag).item(0).getChildNodes();
-        Node nValue = nlList.item(0);
-        return nValue.getNodeValue();
-    }
-
 }
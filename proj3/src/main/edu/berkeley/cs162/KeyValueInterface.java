@@ -31,6 +31,8 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is the simple interface that all of the KeyValue servers,
@@ -61,4 +63,71 @@ public interface KeyValueInterface {
 	 * @throws KVException if there is an error when looking up the object store
 	 */	
 	public void del(String key) throws KVException;	
+
+	/**
+	 * Retrieve the objects corresponding to several keys at once
+	 * @param keys the keys to look up
+	 * @return one pair per key, in the same order, holding the value found and, as its
+	 * message, the status of that key: "Success" or the error it failed with
+	 * @throws KVException if the batch as a whole could not be run
+	 */
+	public default List<KVMessage.KVPair> mget(List<String> keys) throws KVException {
+		final List<KVMessage.KVPair> results = new ArrayList<KVMessage.KVPair>(keys.size());
+		for (final String key : keys) {
+			final KVMessage.KVPair result = new KVMessage.KVPair(key, null);
+			try {
+				result.setValue(get(key));
+				result.setMessage((result.getValue() != null
+						? KVMessage.ResponseType.SUCCESS : KVMessage.ResponseType.DNE_ERROR).toString());
+			} catch (KVException e) {
+				result.setMessage(e.getMsg().getMessage());
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Insert several Key, Value pairs at once
+	 * @param pairs the keys and values to insert
+	 * @return one pair per entry, in the same order, holding its key and, as its
+	 * message, its status: "Success" or the error it failed with
+	 * @throws KVException if the batch as a whole could not be run
+	 */
+	public default List<KVMessage.KVPair> mput(List<KVMessage.KVPair> pairs) throws KVException {
+		final List<KVMessage.KVPair> results = new ArrayList<KVMessage.KVPair>(pairs.size());
+		for (final KVMessage.KVPair pair : pairs) {
+			final KVMessage.KVPair result = new KVMessage.KVPair(pair.getKey(), null);
+			try {
+				put(pair.getKey(), pair.getValue());
+				result.setMessage(KVMessage.ResponseType.SUCCESS.toString());
+			} catch (KVException e) {
+				result.setMessage(e.getMsg().getMessage());
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Delete the objects corresponding to several keys at once
+	 * @param keys the keys to delete
+	 * @return one pair per key, in the same order, holding the key and, as its
+	 * message, its status: "Success" or the error it failed with
+	 * @throws KVException if the batch as a whole could not be run
+	 */
+	public default List<KVMessage.KVPair> mdel(List<String> keys) throws KVException {
+		final List<KVMessage.KVPair> results = new ArrayList<KVMessage.KVPair>(keys.size());
+		for (final String key : keys) {
+			final KVMessage.KVPair result = new KVMessage.KVPair(key, null);
+			try {
+				del(key);
+				result.setMessage(KVMessage.ResponseType.SUCCESS.toString());
+			} catch (KVException e) {
+				result.setMessage(e.getMsg().getMessage());
+			}
+			results.add(result);
+		}
+		return results;
+	}
 }
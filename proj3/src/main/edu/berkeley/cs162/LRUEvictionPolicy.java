@@ -0,0 +1,68 @@
+/**
+ * Least-recently-used eviction policy.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Collection;
+
+/**
+ * Evicts the least recently used entry. Entries are kept on an intrusive list in
+ * access order, so every operation is O(1).
+ */
+final class LRUEvictionPolicy implements EvictionPolicy {
+    private final CacheEntryList _order = new CacheEntryList();
+
+    @Override
+    public boolean recordsAccesses() {
+        return true;
+    }
+
+    @Override
+    public void onAccess(final KVCache.CacheEntry entry) {
+        _order.moveToLast(entry);
+    }
+
+    @Override
+    public void onInsert(final KVCache.CacheEntry entry) {
+        _order.addLast(entry);
+    }
+
+    @Override
+    public void onRemove(final KVCache.CacheEntry entry) {
+        _order.remove(entry);
+    }
+
+    @Override
+    public KVCache.CacheEntry selectVictim(final String candidateKey) {
+        return _order.head();
+    }
+
+    @Override
+    public Collection<KVCache.CacheEntry> entries() {
+        return _order.toList();
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Simulated device latency and failures for the cache and the store
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How long the AutoGrader makes every cache and store operation take, and how often a
+ * store operation fails as if the device had returned an I/O error. Without a model,
+ * which is the default, operations run at full speed.
+ *
+ * A model is picked with AutoGrader.setLatencyModel, or at startup with the
+ * kvstore.latency system property set to one of the names in {@link #forName}, e.g.
+ * "ant test -Dlatency=ssd".
+ */
+public class LatencyModel {
+
+    /** The fixed 1 ms pauses the AutoGrader always used to add to every operation. */
+    public static final LatencyModel AUTOGRADER = new LatencyModel(1000000, 1000000, 0, 0);
+
+    /** A flash device: a store access takes 80 to 200 microseconds. */
+    public static final LatencyModel SSD = new LatencyModel(0, 80000, 120000, 0);
+
+    /** A spinning disk: a store access takes 4 to 12 milliseconds, for a seek and a rotation. */
+    public static final LatencyModel HDD = new LatencyModel(0, 4000000, 8000000, 0);
+
+    /** Name of the system property that selects the model at startup. */
+    static final String PROPERTY = "kvstore.latency";
+
+    private final long cacheNanos;
+    private final long storeNanos;
+    private final long storeJitterNanos;
+    private final double storeFailureRate;
+
+    /**
+     * @param cacheNanos       time each cache operation takes.
+     * @param storeNanos       least time each store operation takes.
+     * @param storeJitterNanos a store operation takes up to this much longer, uniformly at random.
+     * @param storeFailureRate fraction of store operations that fail with "IO Error".
+     */
+    public LatencyModel(long cacheNanos, long storeNanos, long storeJitterNanos, double storeFailureRate) {
+        this.cacheNanos = cacheNanos;
+        this.storeNanos = storeNanos;
+        this.storeJitterNanos = storeJitterNanos;
+        this.storeFailureRate = storeFailureRate;
+    }
+
+    /**
+     * @return this model, with the given fraction of store operations failing.
+     */
+    public LatencyModel withStoreFailureRate(double rate) {
+        return new LatencyModel(cacheNanos, storeNanos, storeJitterNanos, rate);
+    }
+
+    /**
+     * @param name "none", "autograder", "ssd" or "hdd", in any case.
+     * @return the model of that name, or null for "none", which disables the model.
+     * @throws IllegalArgumentException for any other name.
+     */
+    public static LatencyModel forName(String name) {
+        switch (name.toLowerCase()) {
+            case "none":
+                return null;
+            case "autograder":
+                return AUTOGRADER;
+            case "ssd":
+                return SSD;
+            case "hdd":
+                return HDD;
+            default:
+                throw new IllegalArgumentException("Unknown latency model " + name);
+        }
+    }
+
+    /**
+     * @return the model named by the kvstore.latency system property, or null if it is unset.
+     */
+    static LatencyModel fromSystemProperty() {
+        final String name = System.getProperty(PROPERTY);
+        return name == null || name.isEmpty() ? null : forName(name);
+    }
+
+    /**
+     * Called once for every cache get, put and del. An interrupt cuts the pause short
+     * and stays set.
+     */
+    public void cacheAccess() {
+        pause(cacheNanos);
+    }
+
+    /**
+     * Called once for every store get, put and del.
+     * @throws InterruptedIOException if the thread is interrupted during the pause, so
+     * that it does not go on to the store with its interrupt set. The interrupt stays set.
+     * @throws IOException if this access is chosen to fail.
+     */
+    public void storeAccess() throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (!pause(storeJitterNanos > 0 ? storeNanos + random.nextLong(storeJitterNanos + 1) : storeNanos)) {
+            throw new InterruptedIOException("Interrupted during a simulated store access");
+        }
+        if (storeFailureRate > 0 && random.nextDouble() < storeFailureRate) {
+            throw new IOException("Simulated device failure");
+        }
+    }
+
+    /**
+     * Parks rather than sleeps: Thread.sleep rounds to whole milliseconds on some JVMs.
+     * parkNanos returns at once while the interrupt is set, so that is checked first.
+     * @return false if the thread was interrupted before the time was up.
+     */
+    private static boolean pause(final long nanos) {
+        if (nanos <= 0) {
+            return true;
+        }
+        final long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,853 @@
+/**
+ * Log-structured persistent storage engine for KVStore.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A Bitcask-style storage engine. Every put and delete is appended as a record to the
+ * active segment file, and an in-memory index maps each live key to the record that
+ * holds its value, so a get is one positional read. When the active segment reaches
+ * its maximum size it is sealed and a new one is started.
+ *
+ * Records are [crc32][type][key length][value length][key][value], with the CRC covering
+ * everything after itself. On startup the segments are replayed in order to rebuild the
+ * index; a torn or corrupt record at the end of a segment, left by a crash mid-append,
+ * is truncated away.
+ *
+ * A background thread compacts the sealed segments once enough of their bytes are dead
+ * (overwritten or deleted). Compaction copies the live records into a new file, appends
+ * a COMMIT record and syncs it; only then are the old segments deleted and the new file
+ * renamed into place. A crash before the COMMIT leaves the old segments untouched, and
+ * a crash after it is finished off by the next startup.
+ */
+final class LogStructuredEngine implements StoreEngine {
+    static final long DEFAULT_MAX_SEGMENT_BYTES = 4L * 1024 * 1024;
+
+    /** Compact once this fraction of the sealed segments' bytes is dead. */
+    static final double COMPACTION_THRESHOLD = 0.5;
+    static final long COMPACTION_INTERVAL_MILLIS = 1000;
+
+    private static final byte PUT = 1;
+    private static final byte DEL = 2;
+    private static final byte COMMIT = 3;
+
+    /** crc (4) + type (1) + key length (4) + value length (4) */
+    static final int HEADER_BYTES = 13;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACTED_SUFFIX = ".compacted";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * One log file. Only the active segment is appended to; sealed segments are immutable.
+     *
+     * A FileChannel closes itself, for every thread, when a thread using it is interrupted.
+     * So every operation on the channel goes through run, which reopens the file when that
+     * happens: the interrupted thread still gets its ClosedByInterruptException, and any
+     * other thread that found the channel closed retries on the new one.
+     */
+    static final class Segment {
+        final long id;
+        volatile File file;
+        private volatile FileChannel channel;
+        /** Bytes written so far. Only changed under the append lock. */
+        volatile long size = 0;
+        /** Bytes belonging to records that have been overwritten, deleted, or are tombstones. */
+        final AtomicLong deadBytes = new AtomicLong();
+        /**
+         * One for the engine, plus one per open FileRegion. The channel is closed when
+         * this drops to zero, so a region being sent survives compaction.
+         */
+        private final AtomicInteger pins = new AtomicInteger(1);
+
+        Segment(final long id, final File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        /** One operation on the segment's channel. */
+        private interface ChannelOp {
+            long apply(FileChannel channel) throws IOException;
+        }
+
+        private long run(final ChannelOp op) throws IOException {
+            while (true) {
+                final FileChannel current = channel;
+                try {
+                    return op.apply(current);
+                } catch (final ClosedByInterruptException e) {
+                    reopen(current);
+                    throw e;
+                } catch (final ClosedChannelException e) {
+                    // closed by another thread's interrupt, or retired
+                    if (!reopen(current)) throw e;
+                }
+            }
+        }
+
+        /**
+         * Replaces closed with a new channel on the same file, unless another thread
+         * already has or the segment has been retired.
+         * @return whether the segment has an open channel.
+         */
+        private synchronized boolean reopen(final FileChannel closed) throws IOException {
+            if (pins.get() == 0) {
+                return false;
+            }
+            if (channel == closed) {
+                try {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                } catch (final NoSuchFileException e) {
+                    // compacted away; only open regions still hold the segment
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the current channel, for a FileRegion to send from.
+         */
+        FileChannel channel() {
+            return channel;
+        }
+
+        long append(final ByteBuffer record) throws IOException {
+            final long offset = size;
+            long position = offset;
+            while (record.hasRemaining()) {
+                final long at = position;
+                position += run(new ChannelOp() {
+                    @Override
+                    public long apply(final FileChannel channel) throws IOException {
+                        return channel.write(record, at);
+                    }
+                });
+            }
+            size = position;
+            return offset;
+        }
+
+        int read(final ByteBuffer buffer, final long position) throws IOException {
+            return (int) run(new ChannelOp() {
+                @Override
+                public long apply(final FileChannel channel) throws IOException {
+                    return channel.read(buffer, position);
+                }
+            });
+        }
+
+        void force(final boolean metaData) throws IOException {
+            run(new ChannelOp() {
+                @Override
+                public long apply(final FileChannel channel) throws IOException {
+                    channel.force(metaData);
+                    return 0;
+                }
+            });
+        }
+
+        void truncate(final long length) throws IOException {
+            run(new ChannelOp() {
+                @Override
+                public long apply(final FileChannel channel) throws IOException {
+                    channel.truncate(length);
+                    return 0;
+                }
+            });
+        }
+
+        /**
+         * @return false if the channel has already been closed.
+         */
+        boolean pin() {
+            int n;
+            do {
+                n = pins.get();
+                if (n == 0) return false;
+            } while (!pins.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        void unpin() throws IOException {
+            if (pins.decrementAndGet() == 0) {
+                // after any reopen that saw the last pin
+                synchronized (this) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Location of the record holding a key's current value.
+     */
+    static final class RecordPointer {
+        final Segment segment;
+        final long offset;
+        final int keyLength;
+        final int valueLength;
+
+        RecordPointer(final Segment segment, final long offset, final int keyLength, final int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        int length() {
+            return HEADER_BYTES + keyLength + valueLength;
+        }
+
+        long valueOffset() {
+            return offset + HEADER_BYTES + keyLength;
+        }
+    }
+
+    /**
+     * Called for every intact record found while scanning a segment.
+     */
+    private interface RecordVisitor {
+        void visit(long offset, byte type, String key, int keyLength, byte[] record) throws IOException;
+    }
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final boolean syncWrites;
+
+    /** A ConcurrentSkipListMap if the engine is ordered, otherwise a ConcurrentHashMap. */
+    private final ConcurrentMap<String, RecordPointer> index;
+
+    /**
+     * Guards segments and active. Appends happen under it so the log order matches the index order.
+     * A ReentrantLock rather than a monitor, so a virtual thread doing file I/O under it does not
+     * pin its carrier.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private Segment active;
+
+    /** Only one compaction runs at a time. */
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private final Thread compactor;
+    private volatile boolean closed = false;
+    /** Background compactions that failed with an IOException; the next one starts over. */
+    private final AtomicLong compactionFailures = new AtomicLong();
+    /** Bytes of torn records recover cut off the ends of segments. */
+    private long truncatedBytes = 0;
+
+    /**
+     * Opens (or creates) a store in directory with default settings and background compaction.
+     */
+    LogStructuredEngine(final File directory) throws IOException {
+        this(directory, false);
+    }
+
+    /**
+     * Opens (or creates) a store in directory with default settings and background compaction.
+     * @param orderedIndex whether to keep the index in key order, so that range works.
+     */
+    LogStructuredEngine(final File directory, final boolean orderedIndex) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_BYTES, false, true, orderedIndex);
+    }
+
+    /**
+     * @param directory where the segment files live. Created if it does not exist.
+     * @param maxSegmentBytes size at which the active segment is sealed.
+     * @param syncWrites whether to force every append to disk before returning.
+     * @param backgroundCompaction whether to start the compaction thread.
+     */
+    LogStructuredEngine(final File directory,
+                        final long maxSegmentBytes,
+                        final boolean syncWrites,
+                        final boolean backgroundCompaction) throws IOException {
+        this(directory, maxSegmentBytes, syncWrites, backgroundCompaction, false);
+    }
+
+    /**
+     * @param directory where the segment files live. Created if it does not exist.
+     * @param maxSegmentBytes size at which the active segment is sealed.
+     * @param syncWrites whether to force every append to disk before returning.
+     * @param backgroundCompaction whether to start the compaction thread.
+     * @param orderedIndex whether to keep the index in key order, so that range works.
+     */
+    LogStructuredEngine(final File directory,
+                        final long maxSegmentBytes,
+                        final boolean syncWrites,
+                        final boolean backgroundCompaction,
+                        final boolean orderedIndex) throws IOException {
+        this.index = orderedIndex
+                ? new ConcurrentSkipListMap<String, RecordPointer>()
+                : new ConcurrentHashMap<String, RecordPointer>();
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.syncWrites = syncWrites;
+        recover();
+
+        if (backgroundCompaction) {
+            compactor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!closed) {
+                        try {
+                            Thread.sleep(COMPACTION_INTERVAL_MILLIS);
+                            if (shouldCompact()) compact();
+                        } catch (final InterruptedException e) {
+                            return;
+                        } catch (final IOException e) {
+                            compactionFailures.incrementAndGet();
+                        }
+                    }
+                }
+            }, "kvstore-compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        } else {
+            compactor = null;
+        }
+    }
+
+    @Override
+    public String get(final String key) throws IOException {
+        while (true) {
+            final RecordPointer pointer = index.get(key);
+            if (pointer == null) {
+                return null;
+            }
+            try {
+                return new String(readValue(pointer), UTF8);
+            } catch (final ClosedByInterruptException e) {
+                throw e;
+            } catch (final ClosedChannelException e) {
+                // the segment was compacted away after we looked the key up; look again,
+                // unless the key still points into it, which no retry will change
+                if (closed || index.get(key) == pointer) throw e;
+            }
+        }
+    }
+
+    /**
+     * Opens the bytes of key's value in its segment file for sending with transferTo,
+     * if the value is at least minLength bytes long. The segment stays open until the
+     * region is closed, even if compaction retires it in the meantime.
+     * @return the region, or null if key is not present or its value is shorter.
+     */
+    FileRegion openValue(final String key, final int minLength) throws IOException {
+        while (true) {
+            final RecordPointer pointer = index.get(key);
+            if (pointer == null || pointer.valueLength < minLength) {
+                return null;
+            }
+            final Segment segment = pointer.segment;
+            if (segment.pin()) {
+                return new FileRegion(segment.channel(), pointer.valueOffset(), pointer.valueLength, new Closeable() {
+                    @Override
+                    public void close() throws IOException {
+                        segment.unpin();
+                    }
+                });
+            }
+            // the segment was compacted away after we looked the key up; look again
+            ensureOpen();
+        }
+    }
+
+    @Override
+    public boolean put(final String key, final String value) throws IOException {
+        final byte[] keyBytes = key.getBytes(UTF8);
+        final byte[] valueBytes = value.getBytes(UTF8);
+        final ByteBuffer record = encode(PUT, keyBytes, valueBytes);
+        final RecordPointer old;
+        appendLock.lock();
+        try {
+            ensureOpen();
+            final Segment segment = segmentFor(record.remaining());
+            final long offset = segment.append(record);
+            if (syncWrites) segment.force(false);
+            old = index.put(key, new RecordPointer(segment, offset, keyBytes.length, valueBytes.length));
+        } finally {
+            appendLock.unlock();
+        }
+        if (old != null) markDead(old);
+        return old == null;
+    }
+
+    @Override
+    public boolean remove(final String key) throws IOException {
+        final ByteBuffer record = encode(DEL, key.getBytes(UTF8), new byte[0]);
+        final RecordPointer old;
+        appendLock.lock();
+        try {
+            ensureOpen();
+            if (!index.containsKey(key)) {
+                return false;
+            }
+            final Segment segment = segmentFor(record.remaining());
+            final int length = record.remaining();
+            segment.append(record);
+            if (syncWrites) segment.force(false);
+            // a tombstone is dead the moment it is written; it only matters during replay
+            segment.deadBytes.addAndGet(length);
+            old = index.remove(key);
+        } finally {
+            appendLock.unlock();
+        }
+        if (old != null) markDead(old);
+        return old != null;
+    }
+
+    @Override
+    public Iterable<Map.Entry<String, String>> entries() {
+        return valuesOf(index.keySet());
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return index instanceof ConcurrentNavigableMap;
+    }
+
+    @Override
+    public Iterable<Map.Entry<String, String>> range(final String fromKey, final String toKey) {
+        if (!isOrdered()) {
+            throw new UnsupportedOperationException("Not an ordered store");
+        }
+        final ConcurrentNavigableMap<String, RecordPointer> ordered = (ConcurrentNavigableMap<String, RecordPointer>) index;
+        return valuesOf((toKey == null ? ordered.tailMap(fromKey) : ordered.subMap(fromKey, toKey)).keySet());
+    }
+
+    /**
+     * @return the pairs of keys, reading each value as the iteration reaches it and
+     * skipping keys removed by then.
+     */
+    private Iterable<Map.Entry<String, String>> valuesOf(final Iterable<String> keySet) {
+        return new Iterable<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                final Iterator<String> keys = keySet.iterator();
+                return new Iterator<Map.Entry<String, String>>() {
+                    private Map.Entry<String, String> next = advance();
+
+                    private Map.Entry<String, String> advance() {
+                        while (keys.hasNext()) {
+                            final String key = keys.next();
+                            try {
+                                final String value = get(key);
+                                if (value != null) {
+                                    return new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+                                }
+                            } catch (final IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (next == null) throw new NoSuchElementException();
+                        final Map.Entry<String, String> current = next;
+                        next = advance();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (compactor != null) {
+            compactor.interrupt();
+            try {
+                compactor.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        compactionLock.lock();
+        try {
+            appendLock.lock();
+            try {
+                active.force(true);
+                for (final Segment segment : segments.values()) {
+                    segment.unpin();
+                }
+            } finally {
+                appendLock.unlock();
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * @return whether enough of the sealed segments is dead to be worth compacting.
+     */
+    boolean shouldCompact() {
+        long total = 0;
+        long dead = 0;
+        appendLock.lock();
+        try {
+            for (final Segment segment : segments.headMap(active.id).values()) {
+                total += segment.size;
+                dead += segment.deadBytes.get();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        return total > 0 && dead >= COMPACTION_THRESHOLD * total;
+    }
+
+    /**
+     * Rewrites the live records of every sealed segment into one new segment and deletes
+     * the old ones. Runs concurrently with reads and writes; only the index swap is
+     * visible to them.
+     */
+    void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            final List<Segment> sealed;
+            appendLock.lock();
+            try {
+                ensureOpen();
+                sealed = new ArrayList<Segment>(segments.headMap(active.id).values());
+            } finally {
+                appendLock.unlock();
+            }
+            if (sealed.isEmpty()) {
+                return;
+            }
+
+            // the output takes the id of the newest segment it replaces, so it still
+            // replays before the active segment
+            final long id = sealed.get(sealed.size() - 1).id;
+            final File compactedFile = fileFor(id, COMPACTED_SUFFIX);
+            Files.deleteIfExists(compactedFile.toPath());
+            final Segment output = new Segment(id, compactedFile);
+
+            final List<String> movedKeys = new ArrayList<String>();
+            final List<RecordPointer> from = new ArrayList<RecordPointer>();
+            final List<RecordPointer> to = new ArrayList<RecordPointer>();
+
+            for (final Segment segment : sealed) {
+                scan(segment, segment.size, new RecordVisitor() {
+                    @Override
+                    public void visit(final long offset, final byte type, final String key,
+                                      final int keyLength, final byte[] record) throws IOException {
+                        if (type != PUT) return;
+                        final RecordPointer current = index.get(key);
+                        if (current == null || current.segment != segment || current.offset != offset) return;
+                        final long newOffset = output.append(ByteBuffer.wrap(record));
+                        movedKeys.add(key);
+                        from.add(current);
+                        to.add(new RecordPointer(output, newOffset, keyLength, current.valueLength));
+                    }
+                });
+            }
+            final ByteBuffer commit = encode(COMMIT, new byte[0], new byte[0]);
+            output.deadBytes.addAndGet(commit.remaining());
+            output.append(commit);
+            output.force(true);
+
+            // Committed. Point the index at the copies, unless a key changed in the meantime.
+            for (int i = 0; i < movedKeys.size(); ++i) {
+                if (!index.replace(movedKeys.get(i), from.get(i), to.get(i))) {
+                    output.deadBytes.addAndGet(to.get(i).length());
+                }
+            }
+
+            for (final Segment segment : sealed) {
+                Files.deleteIfExists(segment.file.toPath());
+            }
+            final File segmentFile = fileFor(id, SEGMENT_SUFFIX);
+            Files.move(compactedFile.toPath(), segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            output.file = segmentFile;
+
+            appendLock.lock();
+            try {
+                for (final Segment segment : sealed) {
+                    segments.remove(segment.id);
+                }
+                segments.put(id, output);
+            } finally {
+                appendLock.unlock();
+            }
+            for (final Segment segment : sealed) {
+                segment.unpin();
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of segment files, including the active one.
+     */
+    int numSegments() {
+        appendLock.lock();
+        try {
+            return segments.size();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * @return how many background compactions failed.
+     */
+    long getCompactionFailureCount() {
+        return compactionFailures.get();
+    }
+
+    /**
+     * @return how many bytes of torn records were cut off the segments when the store was opened.
+     */
+    long getTruncatedBytes() {
+        return truncatedBytes;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Store " + directory + " is closed");
+    }
+
+    /**
+     * Returns the segment a record of the given length should be appended to,
+     * sealing the active segment first if the record would not fit.
+     * Must be called with the append lock held.
+     */
+    private Segment segmentFor(final int recordLength) throws IOException {
+        if (active.size > 0 && active.size + recordLength > maxSegmentBytes) {
+            active.force(false);
+            final long id = active.id + 1;
+            active = new Segment(id, fileFor(id, SEGMENT_SUFFIX));
+            segments.put(id, active);
+        }
+        return active;
+    }
+
+    private static void markDead(final RecordPointer pointer) {
+        pointer.segment.deadBytes.addAndGet(pointer.length());
+    }
+
+    private static byte[] readValue(final RecordPointer pointer) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(pointer.valueLength);
+        final long start = pointer.valueOffset();
+        while (buffer.hasRemaining()) {
+            if (pointer.segment.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Record runs past the end of " + pointer.segment.file);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static ByteBuffer encode(final byte type, final byte[] key, final byte[] value) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + key.length + value.length);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putInt(key.length);
+        buffer.putInt(value.length);
+        buffer.put(key);
+        buffer.put(value);
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, buffer.capacity() - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Visits every intact record of segment up to length bytes.
+     * @return the offset just past the last intact record.
+     */
+    private static long scan(final Segment segment, final long length, final RecordVisitor visitor) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment.file)));
+        try {
+            long offset = 0;
+            final byte[] header = new byte[HEADER_BYTES];
+            while (offset + HEADER_BYTES <= length) {
+                in.readFully(header);
+                final ByteBuffer fields = ByteBuffer.wrap(header);
+                final int crc = fields.getInt();
+                final byte type = fields.get();
+                final int keyLength = fields.getInt();
+                final int valueLength = fields.getInt();
+                if (keyLength < 0 || valueLength < 0
+                        || offset + HEADER_BYTES + keyLength + valueLength > length) {
+                    break;
+                }
+                final byte[] record = Arrays.copyOf(header, HEADER_BYTES + keyLength + valueLength);
+                in.readFully(record, HEADER_BYTES, keyLength + valueLength);
+                final CRC32 actual = new CRC32();
+                actual.update(record, 4, record.length - 4);
+                if ((int) actual.getValue() != crc) {
+                    break;
+                }
+                final String key = new String(record, HEADER_BYTES, keyLength, UTF8);
+                visitor.visit(offset, type, key, keyLength, record);
+                offset += record.length;
+            }
+            return offset;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the segment files, finishing or discarding any
+     * compaction that was interrupted by a crash.
+     */
+    private void recover() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        for (final long id : idsWithSuffix(COMPACTED_SUFFIX)) {
+            final File compactedFile = fileFor(id, COMPACTED_SUFFIX);
+            final Segment compacted = new Segment(id, compactedFile);
+            final byte[] lastType = new byte[1];
+            final long end = scan(compacted, compactedFile.length(), new RecordVisitor() {
+                @Override
+                public void visit(final long offset, final byte type, final String key,
+                                  final int keyLength, final byte[] record) {
+                    lastType[0] = type;
+                }
+            });
+            compacted.unpin();
+            if (end == compactedFile.length() && lastType[0] == COMMIT) {
+                for (final long oldId : idsWithSuffix(SEGMENT_SUFFIX)) {
+                    if (oldId <= id) Files.delete(fileFor(oldId, SEGMENT_SUFFIX).toPath());
+                }
+                Files.move(compactedFile.toPath(), fileFor(id, SEGMENT_SUFFIX).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.delete(compactedFile.toPath());
+            }
+        }
+
+        for (final long id : idsWithSuffix(SEGMENT_SUFFIX)) {
+            final Segment segment = new Segment(id, fileFor(id, SEGMENT_SUFFIX));
+            final long length = segment.file.length();
+            final long end = scan(segment, length, new RecordVisitor() {
+                @Override
+                public void visit(final long offset, final byte type, final String key,
+                                  final int keyLength, final byte[] record) {
+                    final RecordPointer old;
+                    if (type == PUT) {
+                        old = index.put(key, new RecordPointer(segment, offset, keyLength,
+                                record.length - HEADER_BYTES - keyLength));
+                    } else {
+                        old = (type == DEL) ? index.remove(key) : null;
+                        segment.deadBytes.addAndGet(record.length);
+                    }
+                    if (old != null) markDead(old);
+                }
+            });
+            if (end < length) {
+                truncatedBytes += length - end;
+                segment.truncate(end);
+            }
+            segment.size = end;
+            segments.put(id, segment);
+        }
+
+        if (segments.isEmpty()) {
+            segments.put(1L, new Segment(1, fileFor(1, SEGMENT_SUFFIX)));
+        }
+        active = segments.lastEntry().getValue();
+    }
+
+    private File fileFor(final long id, final String suffix) {
+        return new File(directory, String.format("segment-%010d%s", id, suffix));
+    }
+
+    private List<Long> idsWithSuffix(final String suffix) {
+        final List<Long> ids = new ArrayList<Long>();
+        final String[] names = directory.list();
+        if (names != null) {
+            for (final String name : names) {
+                if (name.startsWith("segment-") && name.endsWith(suffix)) {
+                    try {
+                        ids.add(Long.parseLong(name.substring("segment-".length(), name.length() - suffix.length())));
+                    } catch (final NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * In-memory storage engine for KVStore.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps the data in memory, split into stripes that are each a ConcurrentHashMap.
+ * A key's stripe is picked with KVCache.setIndexFor. When a KVServer builds its store
+ * with as many stripes as its cache has sets, the set write lock it already holds for
+ * a key covers that key's stripe, and operations on different sets never touch the same map.
+ * Once the cache is resized, sets and stripes no longer line up, but every stripe is a
+ * concurrent map and each key is still only written with its one set lock held.
+ */
+final class MemoryStoreEngine implements StoreEngine {
+    private final int numStripes;
+    private final List<Map<String, String>> stripes;
+    /** The only stripe of an ordered engine, or null. */
+    private final ConcurrentNavigableMap<String, String> ordered;
+
+    MemoryStoreEngine(final int numStripes) {
+        this.numStripes = numStripes;
+        this.stripes = new ArrayList<Map<String, String>>(numStripes);
+        for (int i = 0; i < numStripes; ++i) {
+            this.stripes.add(new ConcurrentHashMap<String, String>());
+        }
+        this.ordered = null;
+    }
+
+    /**
+     * Creates an ordered engine: a single ConcurrentSkipListMap, which needs no striping
+     * to take concurrent writers and supports range.
+     */
+    MemoryStoreEngine() {
+        this.numStripes = 1;
+        this.ordered = new ConcurrentSkipListMap<String, String>();
+        this.stripes = new ArrayList<Map<String, String>>(1);
+        this.stripes.add(ordered);
+    }
+
+    private Map<String, String> stripeFor(final String key) {
+        return stripes.get(KVCache.setIndexFor(key, numStripes));
+    }
+
+    @Override
+    public String get(final String key) {
+        return stripeFor(key).get(key);
+    }
+
+    @Override
+    public boolean put(final String key, final String value) {
+        return stripeFor(key).put(key, value) == null;
+    }
+
+    @Override
+    public boolean remove(final String key) {
+        return stripeFor(key).remove(key) != null;
+    }
+
+    /**
+     * Walks the stripes one after another, without copying them, so a snapshot of the
+     * whole store needs no more memory than one entry at a time.
+     */
+    @Override
+    public Iterable<Map.Entry<String, String>> entries() {
+        return new Iterable<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                final Iterator<Map<String, String>> stripeIt = stripes.iterator();
+                return new Iterator<Map.Entry<String, String>>() {
+                    private Iterator<Map.Entry<String, String>> current = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (current == null || !current.hasNext()) {
+                            if (!stripeIt.hasNext()) {
+                                return false;
+                            }
+                            current = stripeIt.next().entrySet().iterator();
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return current.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return ordered != null;
+    }
+
+    @Override
+    public Iterable<Map.Entry<String, String>> range(final String fromKey, final String toKey) {
+        if (ordered == null) {
+            throw new UnsupportedOperationException("Not an ordered store");
+        }
+        return (toKey == null ? ordered.tailMap(fromKey) : ordered.subMap(fromKey, toKey)).entrySet();
+    }
+
+    @Override
+    public void close() {
+    }
+}
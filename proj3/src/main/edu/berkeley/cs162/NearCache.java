@@ -0,0 +1,191 @@
+/**
+ * A client-side cache of recently read values
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+/**
+ * Keeps values a KVClient has read or written, in the same set-associative CacheSets
+ * the server's KVCache uses, so repeat reads of hot keys do not leave the client.
+ *
+ * Entries expire ttl after they were cached: writes by other clients are not seen here,
+ * so a value may be up to that stale. The client's own writes update or drop the entry.
+ * Unlike KVCache, this does not report to the AutoGrader.
+ *
+ * Responses can arrive after a later write of the same key has started, so a response
+ * is only cached if no write of its key started or finished while it was outstanding.
+ * Callers take a ticket with startRead or startWrite before sending the request and hand
+ * it to fill or finishWrite with the response. Writes are counted per epoch stripe
+ * rather than per key, so a write may also keep the response of another key out of the
+ * cache, which is harmless.
+ */
+final class NearCache {
+    /** Epoch stripes. Must be a power of two. */
+    private static final int NUM_EPOCHS = 1024;
+
+    private final KVCache.CacheSet[] sets;
+
+    /**
+     * Bumped whenever a write of a key in the stripe starts or finishes. Only written with
+     * the key's set lock held, so that a fill, which checks it under the same lock, is
+     * either dropped by the write or sees the bump.
+     */
+    private final AtomicLongArray epochs = new AtomicLongArray(NUM_EPOCHS);
+
+    NearCache(final int numSets, final int maxElemsPerSet, final long ttlMillis) {
+        sets = new KVCache.CacheSet[numSets];
+        for (int i = 0; i < numSets; ++i) {
+            sets[i] = new KVCache.CacheSet(i, maxElemsPerSet, KVCache.EvictionPolicyType.CLOCK,
+                    ttlMillis * 1000000L);
+        }
+    }
+
+    private KVCache.CacheSet setFor(final String key) {
+        return sets[KVCache.setIndexFor(key, sets.length)];
+    }
+
+    /**
+     * @return the cached value of key, or null if it is missing or expired.
+     */
+    String get(final String key) {
+        return setFor(key).get(key);
+    }
+
+    void put(final String key, final String value) {
+        final KVCache.CacheSet set = setFor(key);
+        final WriteLock lock = set.getWriteLock();
+        lock.lock();
+        try {
+            set.put(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int epochFor(final String key) {
+        return KVCache.hash(key) & (NUM_EPOCHS - 1);
+    }
+
+    /**
+     * @return the ticket of a read of key that is about to be sent.
+     */
+    long startRead(final String key) {
+        return epochs.get(epochFor(key));
+    }
+
+    /**
+     * Caches value as the response to a read of key, unless a write of key started or
+     * finished since the read's ticket was taken.
+     */
+    void fill(final String key, final String value, final long ticket) {
+        final KVCache.CacheSet set = setFor(key);
+        final WriteLock lock = set.getWriteLock();
+        lock.lock();
+        try {
+            if (epochs.get(epochFor(key)) == ticket) {
+                set.put(key, value);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops key ahead of a write of it that is about to be sent.
+     * @return the ticket of the write, for finishWrite.
+     */
+    long startWrite(final String key) {
+        final KVCache.CacheSet set = setFor(key);
+        final WriteLock lock = set.getWriteLock();
+        lock.lock();
+        try {
+            set.del(key);
+            return epochs.incrementAndGet(epochFor(key));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the end of a write of key. Caches value, if given, unless another write of
+     * key started or finished since this one's ticket was taken; otherwise drops key.
+     * @param value the value the write stored, or null for a delete or a failed write.
+     */
+    void finishWrite(final String key, final String value, final long ticket) {
+        final KVCache.CacheSet set = setFor(key);
+        final WriteLock lock = set.getWriteLock();
+        lock.lock();
+        try {
+            final int epoch = epochFor(key);
+            if (value != null && epochs.get(epoch) == ticket) {
+                set.put(key, value);
+            } else {
+                set.del(key);
+            }
+            epochs.incrementAndGet(epoch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void invalidate(final String key) {
+        final KVCache.CacheSet set = setFor(key);
+        final WriteLock lock = set.getWriteLock();
+        lock.lock();
+        try {
+            set.del(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getHitCount() {
+        long count = 0;
+        for (final KVCache.CacheSet set : sets) {
+            count += set.getHitCount();
+        }
+        return count;
+    }
+
+    long getMissCount() {
+        long count = 0;
+        for (final KVCache.CacheSet set : sets) {
+            count += set.getMissCount();
+        }
+        return count;
+    }
+
+    long getEvictionCount() {
+        long count = 0;
+        for (final KVCache.CacheSet set : sets) {
+            count += set.getEvictionCount();
+        }
+        return count;
+    }
+}
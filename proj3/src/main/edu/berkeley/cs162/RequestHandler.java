@@ -0,0 +1,63 @@
+/**
+ * Handler for requests read by the non-blocking SocketServer.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Counterpart of {@link NetworkHandler} for a SocketServer running its selector loop.
+ * Instead of being handed a Socket to read from, the handler is handed one complete
+ * request at a time and answers it through a Responder, so no thread is tied up
+ * while a client is idle or slow.
+ */
+public interface RequestHandler {
+
+    interface Responder {
+        /**
+         * Queues response to be written back to the client. Passing null closes the
+         * connection instead. Must be called exactly once per request, from any thread.
+         */
+        void respond(byte[] response);
+
+        /**
+         * Queues a framed response whose value is sent straight from a file with
+         * transferTo: head, which starts with the frame length, then region, then tail.
+         * The region is closed once sent, or when the connection closes first.
+         */
+        void respond(ByteBuffer head, FileRegion region, ByteBuffer tail);
+    }
+
+    /**
+     * Starts processing request, typically on another thread, and returns without waiting.
+     * format is the encoding of the request and of the expected response: the connection's
+     * negotiated WireFormat, or XML for a connection carrying a single document.
+     * The next request from the same connection is not handed over until this one
+     * has been responded to, so a connection's requests are processed in order.
+     */
+    void handleRequest(KVMessage.WireFormat format, byte[] request, Responder responder);
+}
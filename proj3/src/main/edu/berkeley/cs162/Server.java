@@ -31,6 +31,8 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 import edu.berkeley.cs162.KVClientHandler;
 import edu.berkeley.cs162.KVServer;
@@ -42,15 +44,26 @@ public class Server {
     static SocketServer server = null;
 
     /**
-     * @param args
+     * @param args pass -nio to serve connections from a selector loop instead of one pool thread each,
+     *             -writebehind to acknowledge writes before they reach the store,
+     *             and -adaptive to let the cache grow to 1000 sets while it misses
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
+        final List<String> options = Arrays.asList(args);
         System.out.println("Binding Server:");
-        key_server = new KVServer(100, 10);
+        key_server = new KVServer(new KVStore(100), new KVCache(100, 10),
+                options.contains("-writebehind") ? KVServer.WriteMode.WRITE_BEHIND : KVServer.WriteMode.WRITE_THROUGH);
+        if (options.contains("-adaptive")) {
+            key_server.enableAdaptiveSizing(1000, 0.9);
+        }
         server = new SocketServer("localhost", 8080);
-        NetworkHandler handler = new KVClientHandler(key_server);
-        server.addHandler(handler);
+        KVClientHandler handler = new KVClientHandler(key_server);
+        if (options.contains("-nio")) {
+            server.addRequestHandler(handler);
+        } else {
+            server.addHandler(handler);
+        }
         server.connect();
         System.out.println("Starting Server");
         server.run();
@@ -30,21 +30,47 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This is an generic class that should handle all TCP network connections
  * arriving on a given unique (host, port) tuple. Ensure that this class
  * remains generic by providing the connection handling logic in a NetworkHandler
+ *
+ * When given a RequestHandler instead, the server runs a single-threaded NIO selector
+ * loop that does all socket reads and writes itself and only passes complete requests
+ * on, so idle or slow connections cost a buffer rather than a thread. A connection that
+ * opens with the preamble of a KVMessage.WireFormat carries length-prefixed frames in
+ * that format; anything else is a single XML document that ends when the client shuts
+ * down its output.
  */
 public class SocketServer {
 	String hostname;
 	int port;
 	NetworkHandler handler;
 	ServerSocket server;
+
+    RequestHandler requestHandler;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private volatile boolean stopped = false;
+    /** Connections with responses waiting to be written, handed over to the selector thread. */
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
 	
 	public SocketServer(String hostname, int port) {
 		this.hostname = hostname;
@@ -56,14 +82,20 @@ public class SocketServer {
 	 * @throws IOException if there is a network error (for instance if the socket is inadvertently closed) 
 	 */
 	public void run() throws IOException {
+             if (requestHandler != null) {
+                 runSelector();
+                 return;
+             }
              Socket connection = null;
-             while(true){
+             while(!stopped){
                  try {
                     connection = server.accept();
                     if (handler != null) {
                           handler.handle(connection);
                     }
                 } catch (final SocketException e) {
+                     // closed by stop(); anything else, rebind and carry on
+                     if (stopped) return;
                      this.connect();
                  }
              }
@@ -77,9 +109,26 @@ public class SocketServer {
 		this.handler = handler;
 	}
 
+    /**
+     * Switch the server to its non-blocking selector loop, serving requests with handler.
+     * Must be called before connect.
+     */
+    public void addRequestHandler(RequestHandler handler) {
+        this.requestHandler = handler;
+    }
+
 
     public void connect() {
         try {
+            if (requestHandler != null) {
+                selector = Selector.open();
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.bind(new InetSocketAddress(port));
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                return;
+            }
             server = new ServerSocket(port);
         } catch (IOException e) {
             System.err.println("Could not listen on port: " + port);
@@ -94,6 +143,20 @@ public class SocketServer {
     }
 
     private void closeSocket() {
+        stopped = true;
+        if (requestHandler != null) {
+            // free the port right away; the selector loop closes the client connections
+            try {
+                if (serverChannel != null) serverChannel.close();
+            } catch (IOException e) {
+                System.err.println("Could not close socket.");
+            }
+            if (selector != null) selector.wakeup();
+            return;
+        }
+        if (server == null) {
+            return;
+        }
         try {
             server.close();
         } catch (IOException e) {
@@ -104,4 +167,330 @@ public class SocketServer {
     protected void finalize() {
         closeSocket();
     }
+
+    /**
+     * The selector loop: accepts connections, reads requests, and writes back the
+     * responses queued by the RequestHandler. Returns once stop is called.
+     */
+    private void runSelector() throws IOException {
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (!stopped) {
+                selector.select();
+                Connection ready;
+                while ((ready = writable.poll()) != null) {
+                    if (ready.key.isValid()) {
+                        ready.key.interestOps(ready.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        final Connection conn = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            conn.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.write();
+                        }
+                    } catch (final IOException e) {
+                        if (key.attachment() != null) ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+        } catch (final ClosedSelectorException e) {
+            // stopped
+        } finally {
+            for (final SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    // also releases any file regions still waiting to be sent
+                    ((Connection) key.attachment()).close();
+                } else {
+                    key.channel().close();
+                }
+            }
+            selector.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    /**
+     * State of one client connection in the selector loop. Reads, parsing and writes
+     * happen on the selector thread only; the request and response queues are shared
+     * with the threads calling respond, and are guarded by the connection's monitor.
+     */
+    private final class Connection implements RequestHandler.Responder {
+        /** Stop reading from a client that has this many requests and responses queued up. */
+        private static final int MAX_QUEUED = 64;
+
+        private final SocketChannel channel;
+        SelectionKey key;
+
+        /** Null until the first four bytes have told us which wire format this is. */
+        private volatile Boolean framed = null;
+        private volatile KVMessage.WireFormat format = KVMessage.WireFormat.XML;
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private ByteBuffer body = null;
+        private final ByteArrayOutputStream document = new ByteArrayOutputStream();
+
+        private final Queue<byte[]> requests = new ArrayDeque<byte[]>();
+        private final Queue<Outgoing> responses = new ArrayDeque<Outgoing>();
+        /** Whether a request has been handed to the RequestHandler and not yet answered. */
+        private boolean busy = false;
+        /** Set once the client has finished sending, or the handler asked us to hang up. */
+        private boolean inputDone = false;
+        /** Set by close, after which responses are dropped rather than queued. */
+        private boolean closed = false;
+
+        Connection(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read(final ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                endOfInput();
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (framed == null) {
+                    fill(header, buffer);
+                    if (header.hasRemaining()) return;
+                    final KVMessage.WireFormat negotiated = KVMessage.WireFormat.forPreamble(header.getInt(0));
+                    framed = negotiated != null;
+                    if (framed) {
+                        format = negotiated;
+                    } else {
+                        document.write(header.array(), 0, header.capacity());
+                    }
+                    header.clear();
+                } else if (!framed) {
+                    if (document.size() + buffer.remaining() > KVMessage.MAX_FRAME_BYTES) {
+                        throw new IOException("Request too large");
+                    }
+                    final byte[] chunk = new byte[buffer.remaining()];
+                    buffer.get(chunk);
+                    document.write(chunk, 0, chunk.length);
+                } else {
+                    if (body == null) {
+                        fill(header, buffer);
+                        if (header.hasRemaining()) return;
+                        final int length = header.getInt(0);
+                        header.clear();
+                        if (length < 0 || length > KVMessage.MAX_FRAME_BYTES) {
+                            throw new IOException("Invalid frame length " + length);
+                        }
+                        body = ByteBuffer.allocate(length);
+                    }
+                    fill(body, buffer);
+                    if (!body.hasRemaining()) {
+                        dispatch(body.array());
+                        body = null;
+                    }
+                }
+            }
+        }
+
+        private void endOfInput() throws IOException {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (framed == null || !framed) {
+                // a single-document client shuts down its output to end the request
+                header.flip();
+                document.write(header.array(), 0, header.limit());
+                if (document.size() > 0) {
+                    dispatch(document.toByteArray());
+                }
+            }
+            synchronized (this) {
+                inputDone = true;
+            }
+            closeIfDone();
+        }
+
+        private void dispatch(final byte[] request) {
+            synchronized (this) {
+                if (busy) {
+                    requests.add(request);
+                    if (requests.size() + responses.size() >= MAX_QUEUED) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                    return;
+                }
+                busy = true;
+            }
+            requestHandler.handleRequest(format, request, this);
+        }
+
+        @Override
+        public void respond(final byte[] response) {
+            final byte[] next;
+            synchronized (this) {
+                if (closed) {
+                    // nobody will write it, so do not queue it
+                } else if (response == null) {
+                    inputDone = true;
+                    requests.clear();
+                } else if (framed) {
+                    final ByteBuffer frame = ByteBuffer.allocate(4 + response.length);
+                    frame.putInt(response.length).put(response).flip();
+                    responses.add(new Outgoing(frame));
+                } else {
+                    responses.add(new Outgoing(ByteBuffer.wrap(response)));
+                }
+                next = requests.poll();
+                busy = next != null;
+            }
+            responded(next);
+        }
+
+        @Override
+        public void respond(final ByteBuffer head, final FileRegion region, final ByteBuffer tail) {
+            final byte[] next;
+            synchronized (this) {
+                if (closed) {
+                    release(region);
+                } else {
+                    responses.add(new Outgoing(head));
+                    responses.add(new Outgoing(region));
+                    responses.add(new Outgoing(tail));
+                }
+                next = requests.poll();
+                busy = next != null;
+            }
+            responded(next);
+        }
+
+        /**
+         * Passes on the next queued request, if any, and has the selector loop send
+         * the response just queued.
+         */
+        private void responded(final byte[] next) {
+            if (next != null) {
+                requestHandler.handleRequest(format, next, this);
+            }
+            writable.add(this);
+            selector.wakeup();
+        }
+
+        void write() throws IOException {
+            synchronized (this) {
+                while (!responses.isEmpty()) {
+                    if (!responses.peek().writeTo(channel)) {
+                        // the socket is full; OP_WRITE stays set until it drains
+                        return;
+                    }
+                    responses.poll();
+                }
+                int ops = key.interestOps() & ~SelectionKey.OP_WRITE;
+                if (!inputDone) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                key.interestOps(ops);
+            }
+            closeIfDone();
+        }
+
+        private void closeIfDone() {
+            synchronized (this) {
+                if (!inputDone || busy || !responses.isEmpty()) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                // nothing left to clean up
+            }
+            synchronized (this) {
+                closed = true;
+                for (final Outgoing unsent : responses) {
+                    release(unsent.region);
+                }
+                responses.clear();
+            }
+        }
+    }
+
+    /**
+     * A piece of a response waiting to be written: bytes on the heap, or a region of a
+     * file sent with transferTo.
+     */
+    private static final class Outgoing {
+        final ByteBuffer buffer;
+        final FileRegion region;
+
+        Outgoing(final ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.region = null;
+        }
+
+        Outgoing(final FileRegion region) {
+            this.buffer = null;
+            this.region = region;
+        }
+
+        /**
+         * Writes as much as the channel takes without blocking.
+         * @return whether all of it has been written.
+         */
+        boolean writeTo(final SocketChannel channel) throws IOException {
+            if (buffer != null) {
+                channel.write(buffer);
+                return !buffer.hasRemaining();
+            }
+            region.transferTo(channel);
+            if (region.remaining() > 0) {
+                return false;
+            }
+            release(region);
+            return true;
+        }
+    }
+
+    private static void release(final FileRegion region) {
+        if (region == null) {
+            return;
+        }
+        try {
+            region.close();
+        } catch (final IOException e) {
+            // nothing left to clean up
+        }
+    }
+
+    /**
+     * Copies as much of src into dst as fits.
+     */
+    private static void fill(final ByteBuffer dst, final ByteBuffer src) {
+        final int n = Math.min(dst.remaining(), src.remaining());
+        final ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        src.position(src.position() + n);
+    }
 }
@@ -0,0 +1,79 @@
+/**
+ * Storage engine abstraction for KVStore.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Where a KVStore actually keeps its data. KVStore wraps an engine with the
+ * AutoGrader hooks, the simulated delays and the XML dump/restore code, so
+ * engines only have to store and find values. Engines must be thread safe.
+ */
+interface StoreEngine {
+
+    /**
+     * @return the value stored for key, or null if there is none.
+     */
+    String get(String key) throws IOException;
+
+    /**
+     * @return whether key was not present before.
+     */
+    boolean put(String key, String value) throws IOException;
+
+    /**
+     * Removes key. Does nothing if key is not present.
+     * @return whether key was present.
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * @return a weakly consistent view of every stored pair. Pairs written or
+     * removed while the iteration is in progress may or may not be seen.
+     */
+    Iterable<Map.Entry<String, String>> entries() throws IOException;
+
+    /**
+     * @return whether the keys are kept in order, so that range works.
+     */
+    boolean isOrdered();
+
+    /**
+     * @return a weakly consistent view of the pairs with fromKey &lt;= key &lt; toKey, in
+     * ascending String order; every key from fromKey on if toKey is null. Iterating it
+     * never blocks writers.
+     * @throws UnsupportedOperationException if the engine is not ordered.
+     */
+    Iterable<Map.Entry<String, String>> range(String fromKey, String toKey) throws IOException;
+
+    /**
+     * Releases any files or threads held by this engine.
+     */
+    void close() throws IOException;
+}
@@ -31,19 +31,75 @@
 package edu.berkeley.cs162;
 
 // Java
-import java.util.concurrent.Executor;
+import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Every worker has its own lock-free deque. Jobs submitted from outside the pool are
+ * spread over the workers' deques round robin, jobs submitted by a worker go on its own
+ * deque, and a worker whose deque is empty steals from the others, so there is no single
+ * queue or monitor for every submission and every worker to fight over.
+ *
+ * The number of queued jobs is bounded. What happens to a job submitted when the pool is
+ * full is decided by the pool's RejectionPolicy. Two semaphores do the bookkeeping:
+ * freeSlots counts room left in the queue and queuedJobs counts jobs waiting to be taken.
+ * A job is always on a deque before its queuedJobs permit is released, so a worker holding
+ * a permit is guaranteed to find a job.
+ */
 public class ThreadPool implements Executor {
+    /** Queue capacity used by ThreadPool(int). */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** How often an idle worker checks whether it has been retired or shut down. */
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    /**
+     * What to do with a job submitted while the queue is full.
+     */
+    public enum RejectionPolicy {
+        /** Wait for room in the queue. */
+        BLOCK,
+        /** Throw a RejectedExecutionException. */
+        REJECT,
+        /** Run the job on the submitting thread. */
+        CALLER_RUNS
+    }
+
     /**
      * Set of threads in the threadpool
      */
-    protected final Thread threads[];
-    protected final Queue<Runnable> tasks;
+    protected volatile Thread threads[];
+
+    /**
+     * One deque per worker slot. Slots are never removed, so jobs left on the deque of a
+     * retired worker can still be stolen; a later resize reuses the slot.
+     */
+    private final List<Deque<Runnable>> queues = new CopyOnWriteArrayList<Deque<Runnable>>();
+    private final int queueCapacity;
+    private final RejectionPolicy rejectionPolicy;
+    private final Semaphore freeSlots;
+    private final Semaphore queuedJobs = new Semaphore(0);
+    private final AtomicInteger nextQueue = new AtomicInteger();
+    private final Object resizeLock = new Object();
+    private volatile boolean shutdown = false;
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong stealCount = new AtomicLong();
 
     /**
      * Initialize the number of threads required in the threadpool.
@@ -51,24 +107,71 @@ public class ThreadPool implements Executor {
      * @param size  How many threads in the thread pool.
      */
     public ThreadPool(int size) {
-        this.tasks = new LinkedList<Runnable>();
-        this.threads = new Thread[size];
-        for (Thread t : threads) {
-            t = (Thread) new WorkerThread(this);
-            t.start();
-        }
+        this(size, DEFAULT_QUEUE_CAPACITY, RejectionPolicy.BLOCK);
+    }
 
+    /**
+     * @param size  How many threads in the thread pool.
+     * @param queueCapacity how many jobs may wait for a thread.
+     * @param rejectionPolicy what to do with jobs submitted when queueCapacity jobs are waiting.
+     */
+    public ThreadPool(int size, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        if (size < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("size and queueCapacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+        this.rejectionPolicy = rejectionPolicy;
+        this.freeSlots = new Semaphore(queueCapacity);
+        this.threads = new Thread[0];
+        resize(size);
     }
 
     /**
      * Add a job to the queue of tasks that has to be executed. As soon as a thread is available,
      * it will retrieve tasks from this queue and start processing.
      * @param r job that has to be executed asynchronously
-     * @throws InterruptedException
+     * @throws InterruptedException if the policy is BLOCK and the caller is interrupted while waiting for room
+     * @throws RejectedExecutionException if the pool is shut down, or full and the policy is REJECT
+     */
+    public void addToQueue(Runnable r) throws InterruptedException {
+        if (shutdown) {
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Thread pool is shut down");
+        }
+        if (!freeSlots.tryAcquire()) {
+            switch (rejectionPolicy) {
+                case BLOCK:
+                    freeSlots.acquire();
+                    break;
+                case CALLER_RUNS:
+                    rejectedCount.incrementAndGet();
+                    r.run();
+                    return;
+                default:
+                    rejectedCount.incrementAndGet();
+                    throw new RejectedExecutionException("Thread pool queue is full");
+            }
+        }
+        queueFor(Thread.currentThread()).offerLast(r);
+        queuedJobs.release();
+
+        final int depth = getQueueDepth();
+        int max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+            // retry
+        }
+    }
+
+    /**
+     * @return the deque a job submitted by thread should go on.
      */
-    public synchronized void addToQueue(Runnable r) throws InterruptedException {
-        tasks.offer(r);
-        this.notify();
+    private Deque<Runnable> queueFor(final Thread thread) {
+        if (thread instanceof WorkerThread && ((WorkerThread) thread).threadPool == this) {
+            return queues.get(((WorkerThread) thread).slot);
+        }
+        final Thread[] workers = threads;
+        final int n = Math.max(workers.length, 1);
+        return queues.get((nextQueue.getAndIncrement() & Integer.MAX_VALUE) % n);
     }
 
     /**
@@ -76,11 +179,34 @@ public class ThreadPool implements Executor {
      * @return A runnable task that has to be executed
      * @throws InterruptedException
      */
-    public synchronized Runnable getJob() throws InterruptedException {
-        while (tasks.size() == 0) {
-            this.wait();
+    public Runnable getJob() throws InterruptedException {
+        queuedJobs.acquire();
+        return take(0);
+    }
+
+    /**
+     * Takes a job, starting with the deque of slot and then stealing from the others.
+     * Must only be called after acquiring a queuedJobs permit.
+     */
+    private Runnable take(final int slot) {
+        while (true) {
+            final Runnable own = queues.get(slot).pollFirst();
+            if (own != null) {
+                freeSlots.release();
+                return own;
+            }
+            final int n = queues.size();
+            for (int i = 1; i < n; ++i) {
+                final Runnable stolen = queues.get((slot + i) % n).pollLast();
+                if (stolen != null) {
+                    stealCount.incrementAndGet();
+                    freeSlots.release();
+                    return stolen;
+                }
+            }
+            // a job is queued for our permit, but another worker moved ahead of us in the scan; look again
+            Thread.yield();
         }
-        return tasks.poll();
     }
 
     @Override
@@ -88,7 +214,8 @@ public class ThreadPool implements Executor {
         try {
             this.addToQueue(r);
         } catch (final InterruptedException e) {
-            // Eat it
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room in the queue", e);
         }
     }
 
@@ -98,6 +225,146 @@ public class ThreadPool implements Executor {
         return ret;
     }
 
+    /**
+     * Changes the number of worker threads. Extra workers finish the job they are
+     * running and then exit; jobs already on their deques are taken by the others.
+     */
+    public void resize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        synchronized (resizeLock) {
+            if (shutdown) {
+                throw new IllegalStateException("Thread pool is shut down");
+            }
+            final Thread[] old = threads;
+            final Thread[] resized = new Thread[size];
+            for (int i = 0; i < size; ++i) {
+                if (i < old.length) {
+                    resized[i] = old[i];
+                    continue;
+                }
+                if (i >= queues.size()) {
+                    queues.add(new ConcurrentLinkedDeque<Runnable>());
+                }
+                resized[i] = new WorkerThread(this, i);
+                resized[i].start();
+            }
+            for (int i = size; i < old.length; ++i) {
+                ((WorkerThread) old[i]).retired = true;
+            }
+            threads = resized;
+        }
+    }
+
+    /**
+     * Stops accepting jobs. Jobs already queued still run; the workers exit once the
+     * queue is empty.
+     */
+    public void shutdown() {
+        synchronized (resizeLock) {
+            shutdown = true;
+        }
+    }
+
+    /**
+     * Waits for the workers to exit after shutdown.
+     * @return whether they all exited within the timeout.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (final Thread t : threads) {
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return !t.isAlive();
+            }
+            t.join(remaining);
+            if (t.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /** @return the number of worker threads. */
+    public int getPoolSize() {
+        return threads.length;
+    }
+
+    /** @return the number of jobs waiting for a thread. */
+    public int getQueueDepth() {
+        return queueCapacity - freeSlots.availablePermits();
+    }
+
+    /** @return the largest queue depth seen so far. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /** @return the number of jobs running right now. */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public long getCompletedTaskCount() {
+        return completedCount.get();
+    }
+
+    /** @return the number of jobs that threw a RuntimeException; they count as completed too. */
+    public long getFailedTaskCount() {
+        return failedCount.get();
+    }
+
+    /** @return the number of jobs turned away because the pool was full or shut down. */
+    public long getRejectedTaskCount() {
+        return rejectedCount.get();
+    }
+
+    /** @return the number of jobs a worker took from another worker's deque. */
+    public long getStealCount() {
+        return stealCount.get();
+    }
+
+    /**
+     * Body of a worker thread: take jobs until retired, or shut down with nothing queued.
+     */
+    void work(final WorkerThread worker) {
+        while (true) {
+            try {
+                if (!queuedJobs.tryAcquire(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (worker.retired || shutdown) {
+                        return;
+                    }
+                    continue;
+                }
+            } catch (final InterruptedException e) {
+                // Eat it
+                continue;
+            }
+            final Runnable job = take(worker.slot);
+            activeCount.incrementAndGet();
+            try {
+                job.run();
+            } catch (final RuntimeException e) {
+                // one bad job must not take the worker down with it
+                failedCount.incrementAndGet();
+            } finally {
+                activeCount.decrementAndGet();
+                completedCount.incrementAndGet();
+            }
+            if (worker.retired) {
+                return;
+            }
+        }
+    }
 }
 
 /**
@@ -108,9 +375,12 @@ class WorkerThread extends Thread {
      * The constructor.
      *
      * @param o the thread pool
+     * @param slot index of this worker's deque in the pool
      */
-    WorkerThread(ThreadPool o) {
+    WorkerThread(ThreadPool o, int slot) {
         this.threadPool = o;
+        this.slot = slot;
+        setDaemon(true);
     }
 
     /**
@@ -118,13 +388,10 @@ class WorkerThread extends Thread {
      */
     public void run()
     {
-        for (;;) {
-            try {
-                this.threadPool.getJob().run();
-            } catch (final InterruptedException e) {
-                // Eat it
-            }
-        }
+        threadPool.work(this);
     }
-    private final ThreadPool threadPool;
+    final ThreadPool threadPool;
+    final int slot;
+    /** Set by resize when this worker is no longer needed. */
+    volatile boolean retired = false;
 }
@@ -0,0 +1,151 @@
+/**
+ * W-TinyLFU eviction policy.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * W-TinyLFU (Einziger, Friedman and Manes). New entries land in a small LRU window.
+ * When the window overflows, its LRU entry competes with the victim of the main
+ * segmented-LRU region, and whichever key the frequency sketch has seen less often
+ * is evicted. A burst of one-off keys only churns the window, while keys with a
+ * history of popularity keep their place in the main region.
+ */
+final class TinyLFUEvictionPolicy implements EvictionPolicy {
+    /** Fraction of the set used as the admission window. */
+    private static final double WINDOW_FRACTION = 0.01;
+    /** Fraction of the main region reserved for entries that have been hit there. */
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final CacheEntryList _window = new CacheEntryList();
+    private final CacheEntryList _probation = new CacheEntryList();
+    private final CacheEntryList _protected = new CacheEntryList();
+    private final FrequencySketch _sketch;
+
+    private final int _maxWindow;
+    private final int _maxMain;
+    private final int _maxProtected;
+
+    TinyLFUEvictionPolicy(final int size) {
+        _maxWindow = Math.max(1, (int) (size * WINDOW_FRACTION));
+        _maxMain = size - _maxWindow;
+        _maxProtected = (int) (_maxMain * PROTECTED_FRACTION);
+        _sketch = new FrequencySketch(size);
+    }
+
+    @Override
+    public boolean recordsAccesses() {
+        return true;
+    }
+
+    @Override
+    public void onAccess(final KVCache.CacheEntry entry) {
+        _sketch.increment(entry.getKey());
+        if (_window.contains(entry)) {
+            _window.moveToLast(entry);
+        } else if (_protected.contains(entry)) {
+            _protected.moveToLast(entry);
+        } else if (_maxProtected > 0) {
+            // a hit in probation promotes the entry, demoting protected's LRU if it is full
+            _probation.remove(entry);
+            _protected.addLast(entry);
+            if (_protected.size() > _maxProtected) {
+                final KVCache.CacheEntry demoted = _protected.head();
+                _protected.remove(demoted);
+                _probation.addLast(demoted);
+            }
+        } else {
+            _probation.moveToLast(entry);
+        }
+    }
+
+    @Override
+    public void onInsert(final KVCache.CacheEntry entry) {
+        _sketch.increment(entry.getKey());
+        _window.addLast(entry);
+        if (_window.size() > _maxWindow) {
+            // the set had room, so the main region does too
+            final KVCache.CacheEntry overflow = _window.head();
+            _window.remove(overflow);
+            _probation.addLast(overflow);
+        }
+    }
+
+    @Override
+    public void onRemove(final KVCache.CacheEntry entry) {
+        if (_window.contains(entry)) {
+            _window.remove(entry);
+        } else if (_protected.contains(entry)) {
+            _protected.remove(entry);
+        } else {
+            _probation.remove(entry);
+        }
+    }
+
+    @Override
+    public KVCache.CacheEntry selectVictim(final String candidateKey) {
+        if (_window.size() < _maxWindow) {
+            // the window has room, so the main region is over its share
+            return mainVictim();
+        }
+        final KVCache.CacheEntry windowVictim = _window.head();
+        if (_maxMain == 0) {
+            return windowVictim;
+        }
+        final KVCache.CacheEntry mainVictim = mainVictim();
+        if (mainVictim == null) {
+            return windowVictim;
+        }
+        if (_sketch.frequency(windowVictim.getKey()) > _sketch.frequency(mainVictim.getKey())) {
+            // the window's candidate is admitted to the main region in place of its victim
+            _window.remove(windowVictim);
+            _probation.addLast(windowVictim);
+            return mainVictim;
+        }
+        return windowVictim;
+    }
+
+    private KVCache.CacheEntry mainVictim() {
+        if (!_probation.isEmpty()) {
+            return _probation.head();
+        }
+        return _protected.head();
+    }
+
+    @Override
+    public Collection<KVCache.CacheEntry> entries() {
+        final List<KVCache.CacheEntry> entries =
+                new ArrayList<KVCache.CacheEntry>(_window.size() + _probation.size() + _protected.size());
+        _window.appendTo(entries);
+        _probation.appendTo(entries);
+        _protected.appendTo(entries);
+        return entries;
+    }
+}
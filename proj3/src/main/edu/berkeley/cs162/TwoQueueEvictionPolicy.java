@@ -0,0 +1,116 @@
+/**
+ * 2Q eviction policy.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The full 2Q policy of Johnson and Shasha. New keys enter a FIFO probation queue (A1in);
+ * keys evicted from it are remembered in a ghost queue of keys only (A1out). A key that is
+ * requested again while it is a ghost has proven it is not a one-off, and is admitted to
+ * the LRU main queue (Am). One-off keys from a scan therefore only ever displace each
+ * other in A1in and never push hot entries out of Am.
+ */
+final class TwoQueueEvictionPolicy implements EvictionPolicy {
+    /** Fraction of the set reserved for A1in, as recommended in the paper. */
+    private static final double IN_FRACTION = 0.25;
+    /** Number of ghost keys to remember, as a fraction of the set size. */
+    private static final double OUT_FRACTION = 0.5;
+
+    private final CacheEntryList _in = new CacheEntryList();
+    private final CacheEntryList _main = new CacheEntryList();
+    private final LinkedHashSet<String> _ghosts = new LinkedHashSet<String>();
+
+    private final int _maxIn;
+    private final int _maxGhosts;
+
+    TwoQueueEvictionPolicy(final int size) {
+        _maxIn = Math.max(1, (int) (size * IN_FRACTION));
+        _maxGhosts = Math.max(1, (int) (size * OUT_FRACTION));
+    }
+
+    @Override
+    public boolean recordsAccesses() {
+        return true;
+    }
+
+    @Override
+    public void onAccess(final KVCache.CacheEntry entry) {
+        // hits in A1in are deliberately ignored; they are likely correlated references
+        if (_main.contains(entry)) {
+            _main.moveToLast(entry);
+        }
+    }
+
+    @Override
+    public void onInsert(final KVCache.CacheEntry entry) {
+        if (_ghosts.remove(entry.getKey())) {
+            _main.addLast(entry);
+        } else {
+            _in.addLast(entry);
+        }
+    }
+
+    @Override
+    public void onRemove(final KVCache.CacheEntry entry) {
+        if (_in.contains(entry)) {
+            _in.remove(entry);
+        } else {
+            _main.remove(entry);
+        }
+    }
+
+    @Override
+    public KVCache.CacheEntry selectVictim(final String candidateKey) {
+        if (_in.size() >= _maxIn || _main.isEmpty()) {
+            final KVCache.CacheEntry victim = _in.head();
+            remember(victim.getKey());
+            return victim;
+        }
+        return _main.head();
+    }
+
+    private void remember(final String key) {
+        _ghosts.add(key);
+        if (_ghosts.size() > _maxGhosts) {
+            final String oldest = _ghosts.iterator().next();
+            _ghosts.remove(oldest);
+        }
+    }
+
+    @Override
+    public Collection<KVCache.CacheEntry> entries() {
+        final List<KVCache.CacheEntry> entries = new ArrayList<KVCache.CacheEntry>(_in.size() + _main.size());
+        _in.appendTo(entries);
+        _main.appendTo(entries);
+        return entries;
+    }
+}
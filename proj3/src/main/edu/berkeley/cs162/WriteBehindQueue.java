@@ -0,0 +1,320 @@
+/**
+ * Bounded queue of store writes that a background thread applies in batches.
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the puts and deletes that KVServer has acknowledged but not yet applied to its
+ * store, for a background thread to apply in batches. Writes to a key that is already
+ * pending replace the pending write, so the store only sees the latest one.
+ *
+ * A write stays visible through pending until the store has it, so a reader that misses
+ * in pending will find the write in the store. The number of pending keys is bounded;
+ * writers of new keys wait while the queue is full.
+ */
+final class WriteBehindQueue {
+
+    /** Writes the flusher takes from the queue at once. */
+    private static final int BATCH_SIZE = 64;
+
+    /** How long the flusher waits before retrying after the store failed. */
+    private static final long RETRY_MILLIS = 100;
+
+    /** How long close waits for the pending writes to reach the store. */
+    static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * A pending put, or a pending delete if value is null.
+     */
+    static final class Write {
+        final String key;
+        final String value;
+
+        Write(final String key, final String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        boolean isDelete() {
+            return value == null;
+        }
+    }
+
+    private final KVStore store;
+    private final int capacity;
+
+    /** Guards pending, closed and stopped. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    /** The latest write of each key, in the order the keys first became pending. */
+    private final Map<String, Write> pending = new LinkedHashMap<String, Write>();
+    private boolean closed = false;
+    /** Set when close gives up: the flusher takes no more batches. */
+    private boolean stopped = false;
+    /** Batches the store failed partway through, each retried after RETRY_MILLIS. */
+    private final AtomicLong failures = new AtomicLong();
+
+    private final Thread flusher;
+
+    /**
+     * Starts the flusher thread.
+     * @param store where the writes go.
+     * @param capacity the most keys that may be pending at once.
+     */
+    WriteBehindQueue(final KVStore store, final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.store = store;
+        this.capacity = capacity;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<Write> batch;
+                    while ((batch = takeBatch()) != null) {
+                        flush(batch);
+                    }
+                } catch (final InterruptedException e) {
+                    // closed
+                }
+            }
+        }, "kvstore-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues a put of key, waiting for room if key is not already pending and the queue is full.
+     */
+    void put(final String key, final String value) throws InterruptedException {
+        enqueue(new Write(key, value));
+    }
+
+    /**
+     * Queues a delete of key, waiting for room if key is not already pending and the queue is full.
+     */
+    void del(final String key) throws InterruptedException {
+        enqueue(new Write(key, null));
+    }
+
+    private void enqueue(final Write write) throws InterruptedException {
+        lock.lock();
+        try {
+            while (pending.size() >= capacity && !pending.containsKey(write.key)) {
+                notFull.await();
+            }
+            if (closed) {
+                throw new IllegalStateException("write-behind queue is closed");
+            }
+            pending.put(write.key, write);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the latest write of key not yet in the store, or null if the store is up to date.
+     */
+    Write pending(final String key) {
+        lock.lock();
+        try {
+            return pending.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the pending writes of the keys with fromKey &lt;= key &lt; toKey (no upper
+     * bound if toKey is null), by key.
+     */
+    NavigableMap<String, Write> pendingIn(final String fromKey, final String toKey) {
+        final NavigableMap<String, Write> writes = new TreeMap<String, Write>();
+        lock.lock();
+        try {
+            for (final Write write : pending.values()) {
+                if (write.key.compareTo(fromKey) >= 0 && (toKey == null || write.key.compareTo(toKey) < 0)) {
+                    writes.put(write.key, write);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return writes;
+    }
+
+    /**
+     * @return the number of keys with a write not yet in the store.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every write queued so far, and any queued meanwhile, is in the store.
+     */
+    void flush() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!pending.isEmpty()) {
+                drained.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to CLOSE_TIMEOUT_MILLIS for the pending writes to reach the store, then
+     * stops the flusher. Writes queued after this fail with IllegalStateException.
+     * @return the number of keys whose writes were still queued, and are lost.
+     */
+    int close() throws InterruptedException {
+        return close(CLOSE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Like close(), waiting up to timeoutMillis. If the writes have not all reached the
+     * store by then, the flusher stops after the batch it is applying, which is left to
+     * finish rather than interrupted mid-write, and the writes still queued are dropped.
+     */
+    int close(final long timeoutMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        flusher.join(timeoutMillis);
+        lock.lock();
+        try {
+            stopped = true;
+        } finally {
+            lock.unlock();
+        }
+        return size();
+    }
+
+    /**
+     * @return how many times the store failed a write, leaving it and the rest of its batch
+     * to be retried.
+     */
+    long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return up to BATCH_SIZE pending writes, oldest key first, or null once closed and
+     * empty or stopped.
+     */
+    private List<Write> takeBatch() throws InterruptedException {
+        lock.lock();
+        try {
+            if (stopped) {
+                return null;
+            }
+            while (pending.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            final List<Write> batch = new ArrayList<Write>(Math.min(BATCH_SIZE, pending.size()));
+            final Iterator<Write> it = pending.values().iterator();
+            while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                batch.add(it.next());
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies batch to the store, then drops the writes that were not replaced meanwhile
+     * from pending. If the store fails, with a KVException or any RuntimeException, the
+     * failure is counted and the rest of the batch stays pending and is retried, so the
+     * flusher keeps running.
+     */
+    private void flush(final List<Write> batch) throws InterruptedException {
+        int written = 0;
+        try {
+            for (final Write write : batch) {
+                if (write.isDelete()) {
+                    store.del(write.key);
+                } else {
+                    store.put(write.key, write.value);
+                }
+                ++written;
+            }
+        } catch (final KVException e) {
+            failures.incrementAndGet();
+        } catch (final RuntimeException e) {
+            failures.incrementAndGet();
+        }
+
+        lock.lock();
+        try {
+            for (int i = 0; i < written; ++i) {
+                final Write write = batch.get(i);
+                if (pending.get(write.key) == write) {
+                    pending.remove(write.key);
+                }
+            }
+            notFull.signalAll();
+            if (pending.isEmpty()) {
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (written < batch.size()) {
+            Thread.sleep(RETRY_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package edu.berkeley.cs162;
+
+
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public final class AsyncClientIntTests extends BaseTest {
+
+    @Test(timeout = 20000)
+    public final void fanOutReadsOverlap() throws Exception {
+        try {
+            startServer();
+            for (final KVClient client : new KVClient[] {newClient(), newPersistentClient()}) {
+                final List<CompletableFuture<Boolean>> puts = new ArrayList<CompletableFuture<Boolean>>();
+                for (int i = 0; i < 500; ++i) {
+                    puts.add(client.putAsync("key" + i, "value" + i));
+                }
+                for (final CompletableFuture<Boolean> put : puts) {
+                    assertTrue(put.get());
+                }
+
+                // far more requests than may be in flight at once
+                final List<CompletableFuture<String>> gets = new ArrayList<CompletableFuture<String>>();
+                for (int i = 0; i < 500; ++i) {
+                    gets.add(client.getAsync("key" + i));
+                }
+                for (int i = 0; i < 500; ++i) {
+                    assertEquals("value" + i, gets.get(i).get());
+                }
+
+                client.delAsync("key0").get();
+                assertEquals("Does not exist", failureOf(client.getAsync("key0")));
+                client.close();
+            }
+        } finally { stopServer(); }
+    }
+
+    @Test(timeout = 20000)
+    public final void unansweredRequestsTimeOut() throws Exception {
+        final ServerSocket silent = new ServerSocket(0);
+        final Socket[] accepted = new Socket[2];
+        final Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < accepted.length; i++) {
+                        accepted[i] = silent.accept();
+                    }
+                } catch (final Exception e) {
+                    // test is over
+                }
+            }
+        };
+        acceptor.start();
+        try {
+            final KVClient client = new KVClient("localhost", silent.getLocalPort());
+            client.setAsyncTimeout(200);
+            assertEquals("Network Error: Could not receive data", failureOf(client.getAsync("key")));
+            // the stalled connection was dropped, so this one goes out on a new connection
+            assertEquals("Network Error: Could not receive data", failureOf(client.getAsync("key")));
+            client.close();
+            acceptor.join(5000);
+            assertNotNull(accepted[1]);
+        } finally {
+            silent.close();
+            acceptor.join();
+            for (final Socket socket : accepted) {
+                if (socket != null) socket.close();
+            }
+        }
+    }
+
+    private static String failureOf(final CompletableFuture<?> future) throws Exception {
+        try {
+            future.get();
+            fail("expected the request to fail");
+            return null;
+        } catch (final ExecutionException e) {
+            return ((KVException) e.getCause()).getMsg().getMessage();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package edu.berkeley.cs162;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -8,6 +9,7 @@ public abstract class BaseTest {
 
     private static volatile KVServer _kvServer;
     private static volatile SocketServer _socketServer;
+    private static volatile KVClientHandler _handler;
     private static final AtomicBoolean _serverRunning = new AtomicBoolean();
 
     private static Thread _serverThread;
@@ -20,6 +22,48 @@ public abstract class BaseTest {
 
 
     protected static void startServer() throws Exception {
+        startServer(false);
+    }
+
+    /**
+     * @param nonBlocking whether to run the SocketServer's NIO selector loop.
+     */
+    protected static void startServer(final boolean nonBlocking) throws Exception {
+        startServer(nonBlocking, KVClientHandler.ExecutionMode.POOLED);
+    }
+
+    /**
+     * @param nonBlocking whether to run the SocketServer's NIO selector loop.
+     * @param mode how the KVClientHandler runs requests.
+     */
+    protected static void startServer(final boolean nonBlocking, final KVClientHandler.ExecutionMode mode)
+            throws Exception {
+        startServer(nonBlocking, mode, null);
+    }
+
+    /**
+     * @param nonBlocking whether to run the SocketServer's NIO selector loop.
+     * @param dataDir where a persistent store keeps its files, or null for an in-memory store.
+     */
+    protected static void startServer(final boolean nonBlocking, final File dataDir) throws Exception {
+        startServer(nonBlocking, KVClientHandler.ExecutionMode.POOLED, dataDir);
+    }
+
+    /**
+     * @param nonBlocking whether to run the SocketServer's NIO selector loop.
+     * @param indexType how the in-memory store indexes its keys.
+     */
+    protected static void startServer(final boolean nonBlocking, final KVStore.IndexType indexType) throws Exception {
+        startServer(nonBlocking, KVClientHandler.ExecutionMode.POOLED, null, indexType);
+    }
+
+    private static void startServer(final boolean nonBlocking, final KVClientHandler.ExecutionMode mode,
+                                    final File dataDir) throws Exception {
+        startServer(nonBlocking, mode, dataDir, KVStore.IndexType.HASH);
+    }
+
+    private static void startServer(final boolean nonBlocking, final KVClientHandler.ExecutionMode mode,
+                                    final File dataDir, final KVStore.IndexType indexType) throws Exception {
 
         _serverRunning.set(false);
 
@@ -27,10 +71,18 @@ public abstract class BaseTest {
             @Override
             public void run() {
                 try {
-                    _kvServer = new KVServer(_numSets, _maxElemsPerSet);
+                    _kvServer = new KVServer(dataDir == null
+                                    ? new KVStore(_numSets, indexType)
+                                    : new KVStore(dataDir, indexType),
+                            new KVCache(_numSets, _maxElemsPerSet));
                     _socketServer = new SocketServer(HOSTNAME, PORT);
-                    final NetworkHandler handler = new KVClientHandler(_kvServer);
-                    _socketServer.addHandler(handler);
+                    final KVClientHandler handler = new KVClientHandler(_kvServer, mode);
+                    _handler = handler;
+                    if (nonBlocking) {
+                        _socketServer.addRequestHandler(handler);
+                    } else {
+                        _socketServer.addHandler(handler);
+                    }
                     _socketServer.connect();
                     _serverRunning.set(true);
                     _socketServer.run();
@@ -39,6 +91,8 @@ public abstract class BaseTest {
                 } catch (final IOException e) {
                     e.printStackTrace();
                     System.err.println("Unable to start server!");
+                } catch (final KVException e) {
+                    System.err.println("Unable to open the store!");
                 }
             }
         };
@@ -52,10 +106,41 @@ public abstract class BaseTest {
 
     }
 
+    /**
+     * @return the server's store, or null if it is not running.
+     */
+    protected static KVStore getStore() {
+        final KVServer kvServer = _kvServer;
+        return kvServer != null ? kvServer.getDataStore() : null;
+    }
+
+    /**
+     * @return the server's KVClientHandler, or null if it is not running.
+     */
+    protected static KVClientHandler getHandler() {
+        return _handler;
+    }
+
+    /**
+     * @return the server's cache, or null if it is not running.
+     */
+    protected static KVCache getCache() {
+        final KVServer kvServer = _kvServer;
+        return kvServer != null ? kvServer.getDataCache() : null;
+    }
+
     protected static KVClient newClient() throws Exception {
         return new KVClient(HOSTNAME, PORT);
     }
 
+    protected static KVClient newPersistentClient() throws Exception {
+        return new KVClient(HOSTNAME, PORT, true);
+    }
+
+    protected static KVClient newPersistentClient(final KVMessage.WireFormat format) throws Exception {
+        return new KVClient(HOSTNAME, PORT, format);
+    }
+
     @SuppressWarnings("deprecation")
     protected static void stopServer() throws Exception {
         _serverThread.stop(); // hack
@@ -63,6 +148,7 @@ public abstract class BaseTest {
         if (_socketServer != null) _socketServer.stop();
         _kvServer = null;
         _socketServer = null;
+        _handler = null;
     }
 
 }
@@ -0,0 +1,98 @@
+package edu.berkeley.cs162;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a KVServer in-process from 1 to 32 threads under the AUTOGRADER LatencyModel,
+ * so each store and cache operation sleeps for a millisecond. A server that serialises
+ * on one lock stays flat no matter how many threads there are, while a striped one
+ * scales with them.
+ */
+public final class KVServerThroughputIntTests {
+
+    private static final int NUM_SETS = 100;
+    private static final int MAX_ELEMS_PER_SET = 10;
+    private static final int OPS_PER_THREAD = 100;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+
+    private LatencyModel previousModel;
+
+    @Before
+    public void simulateLatency() {
+        previousModel = AutoGrader.getLatencyModel();
+        AutoGrader.setLatencyModel(LatencyModel.AUTOGRADER);
+    }
+
+    @After
+    public void restoreLatency() {
+        AutoGrader.setLatencyModel(previousModel);
+    }
+
+    @Test
+    public void throughputScalesWithThreads() throws Exception {
+        // warm-up pass, so that class loading and JIT compilation are not timed
+        for (final int numThreads : THREAD_COUNTS) {
+            measure(numThreads);
+        }
+
+        double singleThreaded = 0;
+        double mostThreads = 0;
+        for (final int numThreads : THREAD_COUNTS) {
+            final double opsPerSec = measure(numThreads);
+            if (numThreads == 1) singleThreaded = opsPerSec;
+            mostThreads = opsPerSec;
+        }
+
+        // 32 threads working on (mostly) different sets should manage far more than one thread
+        assertTrue(mostThreads > 4 * singleThreaded);
+    }
+
+    private static double measure(final int numThreads) throws Exception {
+        final KVServer server = new KVServer(NUM_SETS, MAX_ELEMS_PER_SET);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+
+        for (int t = 0; t < numThreads; ++t) {
+            final String prefix = "thread" + t + "-";
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPS_PER_THREAD; ++i) {
+                            final String key = prefix + i;
+                            server.put(key, key);
+                            assertEquals(key, server.get(key));
+                        }
+                    } catch (final Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            }));
+        }
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        final long startTime = System.nanoTime();
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = System.nanoTime() - startTime;
+
+        assertTrue(failures.isEmpty());
+        return 2.0 * numThreads * OPS_PER_THREAD * 1e9 / elapsed;
+    }
+}
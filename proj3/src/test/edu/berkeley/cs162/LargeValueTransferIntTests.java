@@ -0,0 +1,113 @@
+package edu.berkeley.cs162;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public final class LargeValueTransferIntTests extends BaseTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("kvstore").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static String largeValue(final int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            sb.append(i % 50 == 0 ? '&' : (char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    private void servesLargeValues(final boolean nonBlocking) throws Exception {
+        startServer(nonBlocking, dir);
+        KVStore store = getStore();
+        final String large = largeValue(200 * 1024);
+        try {
+            final KVClient writer = newPersistentClient(KVMessage.WireFormat.BINARY);
+            writer.put("large", large);
+            writer.put("small", "value");
+            writer.close();
+        } finally {
+            stopServer();
+            store.close();
+        }
+
+        // a fresh server, so the values are in the store's files but not in the cache
+        startServer(nonBlocking, dir);
+        store = getStore();
+        try {
+            final KVClient binary = newPersistentClient(KVMessage.WireFormat.BINARY);
+            // sent from the store's files, and not cached
+            assertEquals(large, binary.get("large"));
+            assertEquals("value", binary.get("small"));
+            assertNull(getCache().get("large"));
+
+            final File target = new File(dir, "download");
+            final RandomAccessFile file = new RandomAccessFile(target, "rw");
+            try {
+                final FileChannel out = file.getChannel();
+                final KVClient client = newClient();
+                assertEquals(large.length(), client.getToFile("large", out));
+                assertEquals(5, client.getToFile("small", out));
+                try {
+                    client.getToFile("missing", out);
+                    fail("expected a KVException for a missing key");
+                } catch (final KVException e) {
+                    assertEquals("Does not exist", e.getMsg().getMessage());
+                }
+            } finally {
+                file.close();
+            }
+            assertEquals(large + "value", new String(Files.readAllBytes(target.toPath()), "UTF-8"));
+
+            // the other formats go through the heap, and cache the value
+            assertEquals(large, newPersistentClient(KVMessage.WireFormat.XML).get("large"));
+            assertEquals(large, getCache().get("large"));
+            assertEquals(large, newClient().get("large"));
+
+            binary.del("large");
+            try {
+                binary.get("large");
+                fail("expected a KVException for a deleted key");
+            } catch (final KVException e) {
+                assertEquals("Does not exist", e.getMsg().getMessage());
+            }
+            binary.close();
+        } finally {
+            stopServer();
+            store.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public final void blockingServerSendsValuesFromFiles() throws Exception {
+        servesLargeValues(false);
+    }
+
+    @Test(timeout = 20000)
+    public final void nonBlockingServerSendsValuesFromFiles() throws Exception {
+        servesLargeValues(true);
+    }
+}
@@ -0,0 +1,76 @@
+package edu.berkeley.cs162;
+
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class NonBlockingServerIntTests extends BaseTest {
+
+    @Test public final void servesBothWireFormats() throws Exception {
+        try {
+            startServer(true);
+
+            final KVClient plain = newClient();
+            plain.put("HELLO", "WORLD");
+            assertEquals("WORLD", plain.get("HELLO"));
+
+            final KVClient persistent = newPersistentClient();
+            assertEquals("WORLD", persistent.get("HELLO"));
+            final KVClient.Pipeline pipeline = persistent.pipeline();
+            for (int i = 0; i < 100; ++i) {
+                pipeline.put("key" + i, "value" + i).get("key" + i);
+            }
+            final List<KVMessage> resps = pipeline.sync();
+            for (int i = 0; i < 100; ++i) {
+                assertEquals("value" + i, resps.get(2 * i + 1).getValue());
+            }
+            final KVClient binary = newPersistentClient(KVMessage.WireFormat.BINARY);
+            assertEquals("value7", binary.get("key7"));
+            binary.close();
+
+            persistent.del("HELLO");
+            try {
+                plain.get("HELLO");
+                fail("expected a KVException for a deleted key");
+            } catch (final KVException e) {
+                assertEquals("Does not exist", e.getMsg().getMessage());
+            }
+            persistent.close();
+        } finally { stopServer(); }
+    }
+
+    @Test(timeout = 20000)
+    public final void slowClientsDoNotUseUpWorkers() throws Exception {
+        final List<Socket> stalled = new ArrayList<Socket>();
+        try {
+            startServer(true);
+
+            // far more half-sent requests than the handler has pool threads
+            for (int i = 0; i < 100; ++i) {
+                final Socket sock = new Socket("localhost", 8080);
+                final DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+                out.writeInt(KVMessage.FRAMED_PREAMBLE);
+                out.writeInt(1000);
+                out.write(new byte[10]);
+                out.flush();
+                stalled.add(sock);
+            }
+
+            final KVClient client = newPersistentClient();
+            client.put("FOO", "BAR");
+            assertEquals("BAR", client.get("FOO"));
+            client.close();
+        } finally {
+            for (final Socket sock : stalled) {
+                sock.close();
+            }
+            stopServer();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package edu.berkeley.cs162;
+
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class PersistentConnectionIntTests extends BaseTest {
+
+    @Test public final void errorsDoNotBreakTheConnection() throws Exception {
+        try {
+            startServer();
+
+            final KVClient client = newPersistentClient();
+            client.put("HELLO", "WORLD");
+            try {
+                client.get("MISSING");
+                fail("expected a KVException for a missing key");
+            } catch (final KVException e) {
+                assertEquals("Does not exist", e.getMsg().getMessage());
+            }
+            assertEquals("WORLD", client.get("HELLO"));
+            client.del("HELLO");
+
+            // an ordinary client still works against the same server
+            final KVClient plain = newClient();
+            plain.put("FOO", "BAR");
+            assertEquals("BAR", client.get("FOO"));
+            client.close();
+        } finally { stopServer(); }
+    }
+
+    @Test(timeout = 20000)
+    public final void idleConnectionsAreClosed() throws Exception {
+        try {
+            startServer();
+            getHandler().setIdleTimeout(200);
+
+            final Socket idle = new Socket("localhost", 8080);
+            new DataOutputStream(idle.getOutputStream()).writeInt(KVMessage.WireFormat.BINARY.preamble);
+            // the server hangs up rather than keep a pool thread for it
+            assertEquals(-1, idle.getInputStream().read());
+            idle.close();
+
+            final KVClient client = newPersistentClient(KVMessage.WireFormat.BINARY);
+            client.put("HELLO", "WORLD");
+            Thread.sleep(500);
+            // its pooled connection was closed meanwhile, so it reconnects
+            assertEquals("WORLD", client.get("HELLO"));
+            client.close();
+        } finally { stopServer(); }
+    }
+
+    @Test public final void pipelinedResponsesArriveInOrder() throws Exception {
+        try {
+            startServer();
+            checkPipeline(newPersistentClient());
+        } finally { stopServer(); }
+    }
+
+    @Test public final void binaryWireFormat() throws Exception {
+        try {
+            startServer();
+            checkPipeline(newPersistentClient(KVMessage.WireFormat.BINARY));
+        } finally { stopServer(); }
+    }
+
+    @Test public final void batchOperationsOverEveryConnectionKind() throws Exception {
+        try {
+            startServer();
+            final KVClient[] clients = {
+                    newClient(), newPersistentClient(), newPersistentClient(KVMessage.WireFormat.BINARY)};
+            for (final KVClient client : clients) {
+                final List<KVMessage.KVPair> pairs = new ArrayList<KVMessage.KVPair>();
+                final List<String> keys = new ArrayList<String>();
+                for (int i = 0; i < 100; ++i) {
+                    pairs.add(new KVMessage.KVPair("key" + i, "value" + i));
+                    keys.add("key" + i);
+                }
+                for (final KVMessage.KVPair result : client.mput(pairs)) {
+                    assertEquals("Success", result.getMessage());
+                }
+                keys.add("MISSING");
+                final List<KVMessage.KVPair> values = client.mget(keys);
+                for (int i = 0; i < 100; ++i) {
+                    assertEquals("value" + i, values.get(i).getValue());
+                }
+                assertEquals("Does not exist", values.get(100).getMessage());
+
+                final List<KVMessage.KVPair> deleted = client.mdel(keys);
+                assertEquals("Success", deleted.get(0).getMessage());
+                assertEquals("Does not exist", deleted.get(100).getMessage());
+                assertTrue(client.mget(new ArrayList<String>()).isEmpty());
+                client.close();
+            }
+        } finally { stopServer(); }
+    }
+
+    @Test(timeout = 20000)
+    public final void pooledClientSharedByThreads() throws Exception {
+        try {
+            startServer();
+            final KVClient client = new KVClient("localhost", 8080, KVMessage.WireFormat.BINARY, 4);
+            final Throwable[] failure = new Throwable[1];
+            final Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; ++t) {
+                final int id = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 50; ++i) {
+                                client.put("t" + id + "k" + i, "v" + i);
+                                assertEquals("v" + i, client.get("t" + id + "k" + i));
+                            }
+                        } catch (final Throwable e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure[0]);
+            client.close();
+        } finally { stopServer(); }
+    }
+
+    @Test public final void nearCacheServesRepeatReads() throws Exception {
+        try {
+            startServer();
+            final KVClient client = newPersistentClient();
+            client.enableNearCache(10, 10, 60000);
+            client.put("HOT", "1");
+            for (int i = 0; i < 10; ++i) {
+                assertEquals("1", client.get("HOT"));
+            }
+            assertEquals(10, client.getNearCacheHitCount());
+
+            // another client's write is only seen once the entry is gone
+            newClient().put("HOT", "2");
+            assertEquals("1", client.get("HOT"));
+            client.del("HOT");
+            try {
+                client.get("HOT");
+                fail("expected a KVException for a deleted key");
+            } catch (final KVException e) {
+                assertEquals("Does not exist", e.getMsg().getMessage());
+            }
+            assertEquals(1, client.getNearCacheMissCount());
+            client.close();
+        } finally { stopServer(); }
+    }
+
+    private static void checkPipeline(final KVClient client) throws Exception {
+        final int n = 200;
+
+        KVClient.Pipeline pipeline = client.pipeline();
+        for (int i = 0; i < n; ++i) {
+            pipeline.put("key" + i, "value" + i);
+        }
+        for (final KVMessage resp : pipeline.sync()) {
+            assertEquals("Success", resp.getMessage());
+        }
+
+        pipeline = client.pipeline();
+        for (int i = 0; i < n; ++i) {
+            pipeline.get("key" + i);
+        }
+        pipeline.get("MISSING");
+        final List<KVMessage> resps = pipeline.sync();
+        assertEquals(n + 1, resps.size());
+        for (int i = 0; i < n; ++i) {
+            assertEquals("value" + i, resps.get(i).getValue());
+        }
+        assertEquals("Does not exist", resps.get(n).getMessage());
+        client.close();
+    }
+}
@@ -0,0 +1,74 @@
+package edu.berkeley.cs162;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class ScanIntTests extends BaseTest {
+
+    @Test public void scanPagesThroughRangeTest() throws Exception {
+        try {
+            startServer(false, KVStore.IndexType.ORDERED);
+            final KVClient client = newClient();
+            final List<KVMessage.KVPair> pairs = new ArrayList<KVMessage.KVPair>();
+            for (int i = 0; i < 50; i++) {
+                pairs.add(new KVMessage.KVPair(String.format("user:%03d", i), "value" + i));
+                pairs.add(new KVMessage.KVPair(String.format("item:%03d", i), "value" + i));
+            }
+            client.mput(pairs);
+
+            final KVMessage.ScanPage first = client.scanPage("user:010", "user:030", 7);
+            assertEquals(7, first.getPairs().size());
+            assertEquals("user:010", first.getPairs().get(0).getKey());
+            assertEquals("value10", first.getPairs().get(0).getValue());
+            assertEquals("user:017", first.getNextKey());
+
+            final List<KVMessage.KVPair> range = client.scan("user:010", "user:030", 100);
+            assertEquals(20, range.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(String.format("user:%03d", i + 10), range.get(i).getKey());
+            }
+
+            final List<KVMessage.KVPair> items = client.prefix("item:", 1000);
+            assertEquals(50, items.size());
+            assertEquals("item:049", items.get(49).getKey());
+            assertEquals(0, client.prefix("nothing:", 10).size());
+        } finally {
+            stopServer();
+        }
+    }
+
+    @Test public void binaryScanSeesDeletesTest() throws Exception {
+        try {
+            startServer(true, KVStore.IndexType.ORDERED);
+            final KVClient client = newPersistentClient(KVMessage.WireFormat.BINARY);
+            for (int i = 0; i < 10; i++) {
+                client.put("k" + i, "v" + i);
+            }
+            client.del("k3");
+            final List<KVMessage.KVPair> all = client.scan(null, null, 3);
+            assertEquals(3, all.size());
+            assertEquals("k2", all.get(2).getKey());
+            assertEquals(9, client.prefix("k", 100).size());
+            client.close();
+        } finally {
+            stopServer();
+        }
+    }
+
+    @Test public void scanNeedsOrderedStoreTest() throws Exception {
+        try {
+            startServer();
+            try {
+                newClient().scan("a", "b", 10);
+                fail("expected the scan to fail");
+            } catch (final KVException e) {
+                assertTrue(e.getMsg().getMessage().startsWith(KVMessage.ResponseType.UNKNOWN_ERROR.toString()));
+            }
+        } finally {
+            stopServer();
+        }
+    }
+}
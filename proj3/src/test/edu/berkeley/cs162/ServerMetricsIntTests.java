@@ -0,0 +1,37 @@
+package edu.berkeley.cs162;
+
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public final class ServerMetricsIntTests extends BaseTest {
+
+    @Test public final void metricsAdminRequest() throws Exception {
+        try {
+            startServer();
+            KVMetrics.reset();
+
+            final KVClient client = newClient();
+            client.put("HELLO", "WORLD");
+            for (int i = 0; i < 5; ++i) {
+                assertEquals("WORLD", client.get("HELLO"));
+            }
+
+            for (final KVClient metricsClient : new KVClient[] {client, newPersistentClient(KVMessage.WireFormat.BINARY)}) {
+                final Map<String, String> metrics = metricsClient.getServerMetrics();
+                assertEquals("5", metrics.get("server.get.count"));
+                assertEquals("1", metrics.get("server.put.count"));
+                assertEquals("1", metrics.get("store.put.count"));
+                assertTrue(Long.parseLong(metrics.get("server.get.p99_ns")) > 0);
+                assertTrue(Long.parseLong(metrics.get("cache.hits")) >= 5);
+                assertNotNull(metrics.get("cache.set.0.evictions"));
+                assertNotNull(metrics.get("lock.wait.max_ns"));
+                assertEquals("0", metrics.get("server.write_behind.pending"));
+                metricsClient.close();
+            }
+        } finally { stopServer(); }
+    }
+}
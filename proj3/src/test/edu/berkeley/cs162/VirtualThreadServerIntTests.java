@@ -0,0 +1,53 @@
+package edu.berkeley.cs162;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class VirtualThreadServerIntTests extends BaseTest {
+
+    @Test(timeout = 20000)
+    public final void servesMoreOpenConnectionsThanPoolThreads() throws Exception {
+        final List<KVClient> clients = new ArrayList<KVClient>();
+        try {
+            startServer(false, KVClientHandler.ExecutionMode.VIRTUAL_THREADS);
+            assertEquals(VirtualThreads.isSupported(), getHandler().usesVirtualThreads());
+
+            // a pooled handler would keep all but its first 10 connections queued
+            for (int i = 0; i < 50; ++i) {
+                final KVClient client = newPersistentClient(KVMessage.WireFormat.BINARY);
+                client.put("key" + i, "value" + i);
+                clients.add(client);
+            }
+            for (int i = 0; i < 50; ++i) {
+                assertEquals("value" + i, clients.get(i).get("key" + i));
+            }
+        } finally {
+            for (final KVClient client : clients) {
+                client.close();
+            }
+            stopServer();
+        }
+    }
+
+    @Test public final void selectorLoopRunsRequestsOnOwnThreads() throws Exception {
+        try {
+            startServer(true, KVClientHandler.ExecutionMode.VIRTUAL_THREADS);
+
+            final KVClient client = newPersistentClient();
+            final KVClient.Pipeline pipeline = client.pipeline();
+            for (int i = 0; i < 100; ++i) {
+                pipeline.put("key" + i, "value" + i).get("key" + i);
+            }
+            final List<KVMessage> resps = pipeline.sync();
+            for (int i = 0; i < 100; ++i) {
+                assertEquals("value" + i, resps.get(2 * i + 1).getValue());
+            }
+            client.close();
+        } finally { stopServer(); }
+    }
+}
@@ -0,0 +1,56 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public final class CacheSizerUnitTests {
+
+    /** Misses every key once, through the cache like KVServer does. */
+    private static void missAll(final KVCache cache, final String prefix, final int count) {
+        for (int i = 0; i < count; i++) {
+            final String key = prefix + i;
+            if (cache.get(key) == null) {
+                cache.put(key, "value");
+            }
+        }
+    }
+
+    @Test
+    public void testGrowsWhileEvicting() {
+        final KVCache cache = new KVCache(2, 4);
+        final CacheSizer sizer = new CacheSizer(cache, 5, 0.9);
+        missAll(cache, "a", 200);
+        assertEquals(1, sizer.adjust());
+        assertEquals(3, cache.getNumSets());
+        for (int round = 0; round < 5; round++) {
+            missAll(cache, "b" + round, 200);
+            sizer.adjust();
+        }
+        assertEquals(5, cache.getNumSets());
+    }
+
+    @Test
+    public void testShrinksWhenMostlyEmpty() {
+        final KVCache cache = new KVCache(2, 4);
+        for (int i = 0; i < 6; i++) {
+            cache.split();
+        }
+        final CacheSizer sizer = new CacheSizer(cache, 8, 0.9);
+        for (int i = 0; i < 200; i++) {
+            cache.get("missing" + i);
+        }
+        assertEquals(-1, sizer.adjust());
+        assertEquals(7, cache.getNumSets());
+    }
+
+    @Test
+    public void testWaitsForEnoughLookups() {
+        final KVCache cache = new KVCache(2, 4);
+        final CacheSizer sizer = new CacheSizer(cache, 8, 0.9);
+        missAll(cache, "a", (int) CacheSizer.MIN_LOOKUPS / 2);
+        assertEquals(0, sizer.adjust());
+        missAll(cache, "b", (int) CacheSizer.MIN_LOOKUPS / 2);
+        assertEquals(1, sizer.adjust());
+    }
+}
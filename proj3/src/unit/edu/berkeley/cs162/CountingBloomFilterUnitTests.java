@@ -0,0 +1,51 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public final class CountingBloomFilterUnitTests {
+
+    @Test
+    public void testNoFalseNegatives() {
+        final CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("key" + i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            filter.remove("key" + i);
+        }
+        for (int i = 1; i < 1000; i += 2) {
+            assertTrue(filter.mightContain("key" + i));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRateIsNearTarget() {
+        final CountingBloomFilter filter = new CountingBloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("key" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("absent" + i)) {
+                filter.recordFalsePositive();
+                ++falsePositives;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 2000);
+        assertEquals(falsePositives / 100000.0, filter.getFalsePositiveRate(), 1e-9);
+        assertEquals(100000 - falsePositives, filter.getNegativeCount());
+    }
+
+    @Test
+    public void testRemovedKeysAreRuledOut() {
+        final CountingBloomFilter filter = new CountingBloomFilter(100, 0.001);
+        filter.add("a");
+        filter.add("b");
+        filter.remove("a");
+        filter.remove("b");
+        assertFalse(filter.mightContain("a"));
+        assertFalse(filter.mightContain("b"));
+    }
+}
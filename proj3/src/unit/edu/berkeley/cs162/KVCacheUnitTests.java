@@ -75,6 +75,107 @@ public final class KVCacheUnitTests {
         assertNull(set.get("4"));
     }
 
+    /**
+     * Deleting an entry frees its slot, so the next insert must not evict anything.
+     */
+    @Test public final void testDeleteFreesSlot() throws Exception {
+        final KVCache.CacheSet set = new KVCache.CacheSet(0, 3);
+        set.put("0", "0");
+        set.put("1", "1");
+        set.put("2", "2");
+
+        assertEquals("1", set.del("1"));
+        set.put("3", "3");
+
+        assertEquals("0", set.get("0"));
+        assertNull(set.get("1"));
+        assertEquals("2", set.get("2"));
+        assertEquals("3", set.get("3"));
+    }
+
+    /**
+     * LRU evicts the entry that was read least recently, not the oldest one.
+     */
+    @Test public final void testLRUEvictsLeastRecentlyUsed() throws Exception {
+        final KVCache.CacheSet set = new KVCache.CacheSet(0, 3, KVCache.EvictionPolicyType.LRU);
+        set.put("0", "0");
+        set.put("1", "1");
+        set.put("2", "2");
+
+        assertEquals("0", set.get("0"));
+        set.put("3", "3");
+
+        assertEquals("0", set.get("0"));
+        assertNull(set.get("1"));
+    }
+
+    /**
+     * A scan of one-off keys must not push an entry out of the 2Q main queue.
+     */
+    @Test public final void testTwoQueueResistsScans() throws Exception {
+        final KVCache.CacheSet set = new KVCache.CacheSet(0, 8, KVCache.EvictionPolicyType.TWO_QUEUE);
+        set.put("hot", "hot");
+        // push "hot" out of the probation queue so it becomes a ghost, then bring it back
+        for (int i = 0; i < 8; ++i) {
+            set.put("warmup" + i, "warmup" + i);
+        }
+        assertNull(set.get("hot"));
+        set.put("hot", "hot");
+
+        for (int i = 0; i < 100; ++i) {
+            set.put("scan" + i, "scan" + i);
+        }
+        assertEquals("hot", set.get("hot"));
+    }
+
+    /**
+     * W-TinyLFU keeps a frequently read entry of the main region over a cold key leaving
+     * the window, even though the frequent entry is the main region's LRU victim.
+     */
+    @Test public final void testTinyLFURejectsColdCandidate() throws Exception {
+        // a window of one entry in front of a main region of three
+        final KVCache.CacheSet set = new KVCache.CacheSet(0, 4, KVCache.EvictionPolicyType.W_TINY_LFU);
+        set.put("a", "a");
+        set.put("b", "b");
+        set.put("c", "c");
+        set.put("cold", "cold");
+        for (int i = 0; i < 5; ++i) {
+            assertEquals("a", set.get("a"));
+            assertEquals("b", set.get("b"));
+            assertEquals("c", set.get("c"));
+        }
+
+        // "cold" leaves the window and competes with "a", demoted to the head of probation
+        set.put("new", "new");
+
+        assertNull(set.get("cold"));
+        assertEquals("a", set.get("a"));
+        assertEquals("b", set.get("b"));
+        assertEquals("c", set.get("c"));
+        assertEquals("new", set.get("new"));
+    }
+
+    /**
+     * Reads must not block behind a thread that holds the set's write lock.
+     */
+    @Test(timeout = 1000) public final void testGetDoesNotTakeWriteLock() throws Exception {
+        final KVCache.CacheSet set = new KVCache.CacheSet(0, 5);
+        set.getWriteLock().lock();
+        set.put("key", "value");
+
+        final String[] result = new String[1];
+        final Thread reader = new Thread() {
+            public void run() {
+                result[0] = set.get("key");
+            }
+        };
+        reader.start();
+        reader.join();
+        set.getWriteLock().unlock();
+
+        assertEquals("value", result[0]);
+    }
+
     @Test public final void testSimpleToXml() throws Exception {
         final KVCache kvCache = new KVCache(2, 2);
         kvCache.put("1", "1");
@@ -88,22 +189,22 @@ public final class KVCacheUnitTests {
         sb.append(  "<KVCache>"                                                   );
         sb.append(      "<Set Id=\"0\">"                                          );
         sb.append(          "<CacheEntry isReferenced=\"false\" isValid=\"true\">");
-        sb.append(              "<Key>2</Key>"                                    );
-        sb.append(              "<Value>2</Value>"                                );
+        sb.append(              "<Key>1</Key>"                                    );
+        sb.append(              "<Value>1</Value>"                                );
         sb.append(          "</CacheEntry>"                                       );
         sb.append(          "<CacheEntry isReferenced=\"false\" isValid=\"true\">");
-        sb.append(              "<Key>4</Key>"                                    );
-        sb.append(              "<Value>4</Value>"                                );
+        sb.append(              "<Key>3</Key>"                                    );
+        sb.append(              "<Value>3</Value>"                                );
         sb.append(          "</CacheEntry>"                                       );
         sb.append(      "</Set>"                                                  );
         sb.append(      "<Set Id=\"1\">"                                          );
         sb.append(          "<CacheEntry isReferenced=\"false\" isValid=\"true\">");
-        sb.append(              "<Key>1</Key>"                                    );
-        sb.append(              "<Value>1</Value>"                                );
+        sb.append(              "<Key>2</Key>"                                    );
+        sb.append(              "<Value>2</Value>"                                );
         sb.append(          "</CacheEntry>"                                       );
         sb.append(          "<CacheEntry isReferenced=\"false\" isValid=\"true\">");
-        sb.append(              "<Key>3</Key>"                                    );
-        sb.append(              "<Value>3</Value>"                                );
+        sb.append(              "<Key>4</Key>"                                    );
+        sb.append(              "<Value>4</Value>"                                );
         sb.append(          "</CacheEntry>"                                       );
         sb.append(      "</Set>"                                                  );
         sb.append(  "</KVCache>"                                                  );
@@ -155,8 +256,8 @@ public final class KVCacheUnitTests {
         sb.append(  "<KVCache>"                                                    );
         sb.append(      "<Set Id=\"0\">"                                           );
         sb.append(          "<CacheEntry isReferenced=\"false\" isValid=\"true\">" );
-        sb.append(              "<Key>2</Key>"                                     );
-        sb.append(              "<Value>2</Value>"                                 );
+        sb.append(              "<Key>1</Key>"                                     );
+        sb.append(              "<Value>1</Value>"                                 );
         sb.append(          "</CacheEntry>"                                        );
         sb.append(          "<CacheEntry isReferenced=\"false\" isValid=\"false\">");
         sb.append(              "<Key/>"                                           );
@@ -165,8 +266,8 @@ public final class KVCacheUnitTests {
         sb.append(      "</Set>"                                                   );
         sb.append(      "<Set Id=\"1\">"                                           );
         sb.append(          "<CacheEntry isReferenced=\"false\" isValid=\"true\">" );
-        sb.append(              "<Key>1</Key>"                                     );
-        sb.append(              "<Value>1</Value>"                                 );
+        sb.append(              "<Key>2</Key>"                                     );
+        sb.append(              "<Value>2</Value>"                                 );
         sb.append(          "</CacheEntry>"                                        );
         sb.append(          "<CacheEntry isReferenced=\"false\" isValid=\"false\">");
         sb.append(              "<Key/>"                                           );
@@ -179,4 +280,173 @@ public final class KVCacheUnitTests {
 
     }
 
+    /**
+     * The compact layout must hold the same entries, with the same reference bits and in
+     * the same order, as the object layout under CLOCK, including across slab growth.
+     */
+    @Test public final void testCompactLayoutMatchesObjects() throws Exception {
+        final KVCache objects = new KVCache(2, 8, KVCache.EvictionPolicyType.CLOCK, KVCache.EntryLayout.OBJECTS);
+        final KVCache compact = new KVCache(2, 8, KVCache.EvictionPolicyType.CLOCK, KVCache.EntryLayout.COMPACT);
+        final java.util.Random random = new java.util.Random(162);
+        for (int i = 0; i < 5000; ++i) {
+            final String key = (random.nextInt(4) == 0 ? "\u00e9l\u00e8ve" : "key") + random.nextInt(24);
+            final int op = random.nextInt(10);
+            if (op < 5) {
+                assertEquals(objects.get(key), compact.get(key));
+            } else if (op < 9) {
+                final StringBuilder value = new StringBuilder();
+                for (int n = random.nextInt(200); n > 0; --n) {
+                    value.append(n % 7 == 0 ? '\u20ac' : 'v');
+                }
+                objects.put(key, value.toString());
+                compact.put(key, value.toString());
+            } else {
+                objects.del(key);
+                compact.del(key);
+            }
+        }
+        assertEquals(objects.toXML(), compact.toXML());
+        assertEquals(objects.getHitCount(), compact.getHitCount());
+        assertEquals(objects.getEvictionCount(), compact.getEvictionCount());
+    }
+
+    /**
+     * Deleting from a compact set returns the old value, frees the slot, and leaves the
+     * keys that probed past it reachable.
+     */
+    @Test public final void testCompactDeleteKeepsProbeChains() throws Exception {
+        final KVCache.CacheSet set = new CompactCacheSet(0, 64);
+        for (int i = 0; i < 64; ++i) {
+            set.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 64; i += 2) {
+            assertEquals("value" + i, set.del("key" + i));
+        }
+        for (int i = 0; i < 64; ++i) {
+            assertEquals(i % 2 == 0 ? null : "value" + i, set.get("key" + i));
+        }
+        assertNull(set.del("key0"));
+        assertEquals(32, set.getCacheEntries().size());
+        assertEquals(0, set.getEvictionCount());
+    }
+
+    /**
+     * Negative entries answer lookups in both layouts, give way to a put, and are left
+     * out of the XML.
+     */
+    @Test public final void testNegativeEntries() throws Exception {
+        for (final KVCache.EntryLayout layout : KVCache.EntryLayout.values()) {
+            final KVCache cache = new KVCache(1, 4, KVCache.EvictionPolicyType.CLOCK, layout);
+            final String empty = cache.toXML();
+            cache.putAbsent("gone");
+            assertSame(KVCache.ABSENT, cache.lookup("gone"));
+            assertNull(cache.get("gone"));
+            assertEquals(empty, cache.toXML());
+
+            cache.put("gone", "back");
+            assertEquals("back", cache.lookup("gone"));
+            cache.putAbsent("gone");
+            assertSame(KVCache.ABSENT, cache.lookup("gone"));
+        }
+    }
+
+    /**
+     * Splitting and merging sets moves entries without losing any, in both layouts, and
+     * after a full round of splits keys sit where a cache built with that many sets puts them.
+     */
+    @Test public final void testSplitAndMergeKeepEntries() throws Exception {
+        for (final KVCache.EntryLayout layout : KVCache.EntryLayout.values()) {
+            final KVCache cache = new KVCache(3, 64, KVCache.EvictionPolicyType.CLOCK, layout);
+            for (int i = 0; i < 100; ++i) {
+                cache.put("key" + i, "value" + i);
+            }
+            cache.putAbsent("gone");
+            for (int n = 4; n <= 6; ++n) {
+                assertEquals(n, cache.split());
+                for (int i = 0; i < 100; ++i) {
+                    assertEquals("value" + i, cache.get("key" + i));
+                }
+            }
+            for (int i = 0; i < 100; ++i) {
+                assertEquals(KVCache.setIndexFor("key" + i, 6), cache.getSetId("key" + i));
+            }
+            assertSame(KVCache.ABSENT, cache.lookup("gone"));
+            assertEquals(101, cache.getEntryCount());
+
+            for (int n = 5; n >= 3; --n) {
+                assertEquals(n, cache.merge());
+            }
+            assertEquals(3, cache.merge());
+            for (int i = 0; i < 100; ++i) {
+                assertEquals("value" + i, cache.get("key" + i));
+            }
+            assertEquals(0, cache.getEvictionCount());
+        }
+    }
+
+    /**
+     * Changing the set size rebuilds every set, keeping what fits and the running counts.
+     */
+    @Test public final void testSetMaxElemsPerSet() throws Exception {
+        final KVCache cache = new KVCache(2, 4);
+        for (int i = 0; i < 8; ++i) {
+            cache.put("key" + i, "value" + i);
+        }
+        final long evictions = cache.getEvictionCount();
+        cache.get("key0");
+        cache.setMaxElemsPerSet(16);
+        assertEquals(32, cache.getCapacity());
+        assertEquals(1, cache.getHitCount());
+        for (int i = 0; i < 8; ++i) {
+            if (cache.get("key" + i) == null) {
+                cache.put("key" + i, "value" + i);
+            }
+        }
+        assertEquals(8, cache.getEntryCount());
+
+        cache.setMaxElemsPerSet(1);
+        assertEquals(2, cache.getCapacity());
+        assertEquals(2, cache.getEntryCount());
+        assertTrue(cache.getEvictionCount() >= evictions + 6);
+        assertTrue(cache.getHitCount() >= 1);
+    }
+
+    /**
+     * Shrinking a CLOCK set keeps the entries the hand would evict last: the ones read
+     * since they were put.
+     */
+    @Test public final void testShrinkingClockSetKeepsReferencedEntries() throws Exception {
+        for (final KVCache.EntryLayout layout : KVCache.EntryLayout.values()) {
+            final KVCache cache = new KVCache(1, 4, KVCache.EvictionPolicyType.CLOCK, layout);
+            cache.put("a", "a");
+            cache.put("b", "b");
+            cache.put("c", "c");
+            cache.put("d", "d");
+            assertEquals("b", cache.get("b"));
+            assertEquals("d", cache.get("d"));
+
+            cache.setMaxElemsPerSet(2);
+            assertEquals(2, cache.getEntryCount());
+            assertEquals("b", cache.get("b"));
+            assertEquals("d", cache.get("d"));
+            assertNull(cache.get("a"));
+            assertNull(cache.get("c"));
+        }
+    }
+
+    /**
+     * Sequential keys spread evenly over the sets, including a power-of-two number of them.
+     */
+    @Test public final void testSequentialKeysSpreadEvenly() throws Exception {
+        for (final int numSets : new int[] {8, 64, 100}) {
+            final int[] counts = new int[numSets];
+            for (int i = 0; i < 1000 * numSets; ++i) {
+                ++counts[KVCache.setIndexFor("key" + i, numSets)];
+            }
+            for (final int count : counts) {
+                assertTrue(count > 850 && count < 1150);
+            }
+        }
+    }
+
 }
@@ -10,6 +10,8 @@ import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.JAXBException;
 import java.io.FileNotFoundException;
 import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public final class KVMessageUnitTests{
 
@@ -181,4 +183,63 @@ public final class KVMessageUnitTests{
             System.out.println(e.getMsg().getMessage());
        }
      }
+
+    @Test
+    public final void testBinaryRoundTrip() throws KVException {
+        final KVMessage put = new KVMessage("putreq");
+        put.setKey("k\u00e9y");
+        put.setValue("<value & more>");
+        final KVMessage decodedPut = KVMessage.WireFormat.BINARY.decode(KVMessage.WireFormat.BINARY.encode(put));
+        assertEquals("putreq", decodedPut.getMsgType());
+        assertEquals("k\u00e9y", decodedPut.getKey());
+        assertEquals("<value & more>", decodedPut.getValue());
+        assertNull(decodedPut.getMessage());
+
+        final KVMessage resp = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+        resp.setKey("key");
+        resp.setValue("");
+        final KVMessage decodedResp = KVMessage.WireFormat.BINARY.decode(resp.toBinary());
+        assertEquals("resp", decodedResp.getMsgType());
+        assertEquals("Success", decodedResp.getMessage());
+        assertEquals("", decodedResp.getValue());
+    }
+
+    @Test
+    public final void testBatchRoundTrip() throws KVException {
+        final KVMessage resp = KVMessage.makeResponse(KVMessage.ResponseType.SUCCESS);
+        final KVMessage.KVPair found = new KVMessage.KVPair("a", "<1>");
+        found.setMessage("Success");
+        final KVMessage.KVPair missing = new KVMessage.KVPair("b", null);
+        missing.setMessage("Does not exist");
+        resp.setPairs(Arrays.asList(found, missing));
+        for (final KVMessage.WireFormat format : KVMessage.WireFormat.values()) {
+            final KVMessage decoded = format.decode(format.encode(resp));
+            assertEquals("Success", decoded.getMessage());
+            assertEquals(2, decoded.getPairs().size());
+            assertEquals("a", decoded.getPairs().get(0).getKey());
+            assertEquals("<1>", decoded.getPairs().get(0).getValue());
+            assertEquals("Success", decoded.getPairs().get(0).getMessage());
+            assertEquals("b", decoded.getPairs().get(1).getKey());
+            assertNull(decoded.getPairs().get(1).getValue());
+            assertEquals("Does not exist", decoded.getPairs().get(1).getMessage());
+        }
+
+        final KVMessage empty = new KVMessage("mgetreq");
+        empty.setPairs(new ArrayList<KVMessage.KVPair>());
+        assertTrue(KVMessage.WireFormat.XML.decode(KVMessage.WireFormat.XML.encode(empty)).getPairs().isEmpty());
+    }
+
+    @Test
+    public final void testBinaryRejectsTruncatedMessage() throws KVException {
+        final KVMessage put = new KVMessage("putreq");
+        put.setKey("key");
+        put.setValue("value");
+        final byte[] encoded = put.toBinary();
+        try {
+            KVMessage.fromBinary(java.util.Arrays.copyOf(encoded, encoded.length - 3));
+            fail("expected a KVException");
+        } catch (final KVException e) {
+            assertEquals(KVMessage.ResponseType.MESSAGE_ERROR.toString(), e.getMsg().getMessage());
+        }
+    }
 }
@@ -6,6 +6,12 @@ import org.junit.Test;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 public final class KVServerUnitTests {
 
@@ -94,4 +100,380 @@ public final class KVServerUnitTests {
         cache.getWriteLock(key).unlock();
 
     }
-}
\ No newline at end of file
+
+    @Test public void testBatchOperationsReportPerKeyStatus() throws Exception {
+        final KVServer server = new KVServer(4, 2);
+        final List<KVMessage.KVPair> pairs = new ArrayList<KVMessage.KVPair>();
+        for (int i = 0; i < 20; i++) {
+            pairs.add(new KVMessage.KVPair("key" + i, "value" + i));
+        }
+        pairs.add(new KVMessage.KVPair("", "value"));
+        final List<KVMessage.KVPair> putResults = server.mput(pairs);
+        assertEquals(21, putResults.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("key" + i, putResults.get(i).getKey());
+            assertEquals("Success", putResults.get(i).getMessage());
+        }
+        assertTrue(putResults.get(20).getMessage().startsWith("Unknown Error"));
+
+        // more keys than the cache holds, so some come from the store
+        final List<KVMessage.KVPair> getResults = server.mget(Arrays.asList("key3", "missing", "key17", "key3"));
+        assertEquals("value3", getResults.get(0).getValue());
+        assertEquals("Does not exist", getResults.get(1).getMessage());
+        assertNull(getResults.get(1).getValue());
+        assertEquals("value17", getResults.get(2).getValue());
+        assertEquals("Success", getResults.get(3).getMessage());
+
+        final List<KVMessage.KVPair> delResults = server.mdel(Arrays.asList("key5", "key5"));
+        assertEquals("Success", delResults.get(0).getMessage());
+        assertEquals("Does not exist", delResults.get(1).getMessage());
+        try {
+            server.get("key5");
+            fail("expected key5 to be deleted");
+        } catch (final KVException e) {
+            assertEquals("Does not exist", e.getMsg().getMessage());
+        }
+    }
+
+    @Test public void testWriteBehindReadsPendingWrites() throws Exception {
+        final KVStore store = new KVStore(4);
+        // one entry per set, so most reads miss the cache
+        final KVServer server = new KVServer(store, new KVCache(4, 1), KVServer.WriteMode.WRITE_BEHIND, 8);
+        try {
+            for (int i = 0; i < 50; i++) {
+                server.put("key" + i, "value" + i);
+                server.put("key" + i, "newer" + i);
+            }
+            for (int i = 0; i < 50; i += 2) {
+                server.del("key" + i);
+            }
+            for (int i = 0; i < 50; i++) {
+                try {
+                    assertEquals("newer" + i, server.get("key" + i));
+                    assertTrue(i % 2 == 1);
+                } catch (final KVException e) {
+                    assertEquals(0, i % 2);
+                    assertEquals("Does not exist", e.getMsg().getMessage());
+                }
+            }
+
+            server.flush();
+            assertEquals(0, server.getPendingWriteCount());
+            for (int i = 1; i < 50; i += 2) {
+                assertEquals("newer" + i, store.get("key" + i));
+            }
+            try {
+                store.get("key0");
+                fail("expected key0 to be deleted from the store");
+            } catch (final KVException e) {
+                // deleted
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test(timeout = 10000) public void testWriteBehindQueueIsBounded() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final KVStore store = new KVStore() {
+            @Override
+            public boolean put(String key, String value) throws KVException {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.put(key, value);
+            }
+        };
+        final KVServer server = new KVServer(store, new KVCache(1, 10), KVServer.WriteMode.WRITE_BEHIND, 2);
+        try {
+            server.put("a", "1");
+            server.put("b", "1");
+            // the queue is full, but a write to a pending key replaces it
+            server.put("a", "2");
+            assertEquals(2, server.getPendingWriteCount());
+
+            final Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        server.put("c", "1");
+                    } catch (final KVException e) {
+                        // checked below
+                    }
+                }
+            });
+            writer.start();
+            writer.join(200);
+            assertTrue("a write of a new key should wait for room", writer.isAlive());
+            assertEquals("2", server.get("a"));
+
+            release.countDown();
+            writer.join();
+            server.flush();
+            assertEquals("2", store.get("a"));
+            assertEquals("1", store.get("c"));
+        } finally {
+            release.countDown();
+            server.close();
+        }
+    }
+
+    @Test(timeout = 10000) public void testWriteBehindSurvivesRuntimeExceptions() throws Exception {
+        final KVStore store = new KVStore() {
+            private boolean failed = false;
+
+            @Override
+            public boolean put(String key, String value) throws KVException {
+                if (!failed) {
+                    failed = true;
+                    throw new IllegalStateException("store hiccup");
+                }
+                return super.put(key, value);
+            }
+        };
+        final KVServer server = new KVServer(store, new KVCache(1, 10), KVServer.WriteMode.WRITE_BEHIND, 8);
+        try {
+            server.put("a", "1");
+            server.flush();
+            assertEquals("1", store.get("a"));
+            assertEquals(1, server.getFailedWriteCount());
+            server.put("b", "2");
+            server.flush();
+            assertEquals("2", store.get("b"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test(timeout = 10000) public void testWriteBehindCloseGivesUpOnFailingStore() throws Exception {
+        final KVStore store = new KVStore() {
+            @Override
+            public boolean put(String key, String value) throws KVException {
+                throw new KVException(KVMessage.makeResponse(KVMessage.ResponseType.IO_ERROR));
+            }
+        };
+        final WriteBehindQueue queue = new WriteBehindQueue(store, 8);
+        queue.put("a", "1");
+        queue.put("b", "2");
+        assertEquals(2, queue.close(300));
+        assertTrue(queue.getFailureCount() > 0);
+    }
+
+    @Test(timeout = 10000) public void testWriteBehindCloseLeavesStoreWritesAlone() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final boolean[] interrupted = new boolean[1];
+        final KVStore store = new KVStore() {
+            @Override
+            public boolean put(String key, String value) throws KVException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    interrupted[0] = true;
+                }
+                return super.put(key, value);
+            }
+        };
+        final WriteBehindQueue queue = new WriteBehindQueue(store, 8);
+        queue.put("a", "1");
+        writing.await();
+        queue.put("b", "2");
+        assertEquals(2, queue.close(100));
+
+        // the write in progress finishes, and the flusher stops before the queued one
+        release.countDown();
+        while (queue.size() > 1) {
+            Thread.sleep(10);
+        }
+        assertFalse(interrupted[0]);
+        assertEquals("1", store.get("a"));
+        Thread.sleep(200);
+        assertNotNull(queue.pending("b"));
+    }
+
+    @Test public void testMissingKeysAreCached() throws Exception {
+        final int[] storeGets = new int[1];
+        final KVStore store = new KVStore() {
+            @Override
+            String getIfPresent(String key) throws KVException {
+                ++storeGets[0];
+                return super.getIfPresent(key);
+            }
+        };
+        final KVServer server = new KVServer(store, new KVCache(1, 4));
+
+        assertNull(server.getIfPresent("missing"));
+        try {
+            server.get("missing");
+            fail("expected missing to not exist");
+        } catch (final KVException e) {
+            assertEquals("Does not exist", e.getMsg().getMessage());
+        }
+        assertEquals(1, storeGets[0]);
+        assertNull(server.getDataCache().get("missing"));
+
+        // a put replaces the negative entry
+        server.put("missing", "found");
+        assertEquals("found", server.get("missing"));
+        assertEquals(1, storeGets[0]);
+        server.del("missing");
+        assertNull(server.getIfPresent("missing"));
+    }
+
+    @Test public void testFilterKeepsMissesAwayFromTheStore() throws Exception {
+        final int[] storeGets = new int[1];
+        final KVStore store = new KVStore() {
+            @Override
+            String getIfPresent(String key) throws KVException {
+                ++storeGets[0];
+                return super.getIfPresent(key);
+            }
+        };
+        store.enableFilter(100, 0.001);
+        final KVServer server = new KVServer(store, new KVCache(1, 1));
+        server.put("a", "1");
+        server.put("b", "2");
+
+        for (int i = 0; i < 20; i++) {
+            assertNull(server.getIfPresent("missing" + i));
+        }
+        assertEquals(0, storeGets[0]);
+        // evicted from the one-entry cache, so it comes from the store
+        assertEquals("1", server.get("a"));
+        assertEquals(1, storeGets[0]);
+    }
+
+    @Test public void testScanMergesPendingWrites() throws Exception {
+        final KVStore store = new KVStore(4, KVStore.IndexType.ORDERED);
+        final KVServer server = new KVServer(store, new KVCache(4, 4), KVServer.WriteMode.WRITE_BEHIND, 64);
+        try {
+            store.put("a1", "stored");
+            store.put("a2", "stored");
+            store.put("b1", "stored");
+            server.put("a2", "pending");
+            server.put("a3", "pending");
+            server.del("a1");
+
+            final KVMessage.ScanPage page = server.prefix("a", 10);
+            assertEquals(2, page.getPairs().size());
+            assertEquals("a2", page.getPairs().get(0).getKey());
+            assertEquals("pending", page.getPairs().get(0).getValue());
+            assertEquals("a3", page.getPairs().get(1).getKey());
+            assertNull(page.getNextKey());
+
+            final KVMessage.ScanPage first = server.scan(null, null, 2);
+            assertEquals(2, first.getPairs().size());
+            assertEquals("b1", first.getNextKey());
+            final KVMessage.ScanPage rest = server.scan(first.getNextKey(), null, 2);
+            assertEquals(1, rest.getPairs().size());
+            assertEquals("b1", rest.getPairs().get(0).getKey());
+            assertNull(rest.getNextKey());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test public void testPrefixEnd() {
+        assertEquals("b", KVServer.prefixEnd("a"));
+        assertEquals("user;", KVServer.prefixEnd("user:"));
+        assertEquals("b", KVServer.prefixEnd("a\uFFFF"));
+        assertNull(KVServer.prefixEnd(""));
+    }
+
+    @Test(timeout = 30000) public void testCacheResizesUnderLoad() throws Exception {
+        final KVStore store = new KVStore(4);
+        final KVCache cache = new KVCache(4, 8);
+        final KVServer server = new KVServer(store, cache);
+        final int numKeys = 16;
+        final int numWriters = 8;
+        final CountDownLatch done = new CountDownLatch(numWriters);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        for (int t = 0; t < numWriters; t++) {
+            final int writer = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 500; round++) {
+                            final List<KVMessage.KVPair> pairs = new ArrayList<KVMessage.KVPair>();
+                            for (int i = 0; i < numKeys; i++) {
+                                server.put("key" + i, "w" + writer + "r" + round);
+                                server.getIfPresent("key" + (numKeys - 1 - i));
+                                pairs.add(new KVMessage.KVPair("batch" + i, "w" + writer + "r" + round));
+                            }
+                            server.mput(pairs);
+                        }
+                    } catch (final Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        while (done.getCount() > 0) {
+            for (int i = 0; i < 12; i++) {
+                cache.split();
+            }
+            cache.setMaxElemsPerSet(cache.getMaxElemsPerSet() == 8 ? 4 : 8);
+            for (int i = 0; i < 12; i++) {
+                cache.merge();
+            }
+        }
+        assertEquals(new ArrayList<Throwable>(), errors);
+        // the cache never disagrees with the store
+        for (int i = 0; i < numKeys; i++) {
+            for (final String key : new String[] {"key" + i, "batch" + i}) {
+                final String cached = cache.get(key);
+                if (cached != null) {
+                    assertEquals(store.get(key), cached);
+                }
+            }
+        }
+    }
+
+    /**
+     * A put that waited on a set the key was split away from must lock the key's new set.
+     */
+    @Test(timeout = 10000) public void testWriterFollowsKeyToItsNewSet() throws Exception {
+        final KVStore store = new KVStore(2);
+        final KVCache cache = new KVCache(2, 8);
+        final KVServer server = new KVServer(store, cache);
+        final String key = "key";
+        final int oldSet = cache.getSetId(key);
+        final ReentrantReadWriteLock oldLock = cache.getSet(oldSet)._lock;
+        oldLock.writeLock().lock();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.put(key, "value");
+                } catch (final KVException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+        while (!oldLock.hasQueuedThreads()) {
+            Thread.yield();
+        }
+        // the cache lock is reentrant, so this thread can split the set it holds
+        while (cache.getSetId(key) == oldSet) {
+            cache.split();
+        }
+        final WriteLock newLock = cache.getWriteLock(key);
+        newLock.lock();
+        oldLock.writeLock().unlock();
+        Thread.sleep(100);
+        assertNull(store.getIfPresent(key));
+        newLock.unlock();
+        writer.join();
+        assertEquals("value", store.get(key));
+        assertEquals("value", cache.get(key));
+    }
+}
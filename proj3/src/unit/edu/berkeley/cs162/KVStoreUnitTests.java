@@ -4,6 +4,8 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
@@ -23,14 +25,14 @@ public final class KVStoreUnitTests {
             sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
             sb.append("<KVStore>");
             sb.append("<KVPair>");
-            sb.append("<Key>key2</Key>");
-            sb.append("<Value>value2</Value>");
-            sb.append("</KVPair>");
-            sb.append("<KVPair>");
             sb.append("<Key>key1</Key>");
             sb.append("<Value>value1</Value>");
             sb.append("</KVPair>");
             sb.append("<KVPair>");
+            sb.append("<Key>key2</Key>");
+            sb.append("<Value>value2</Value>");
+            sb.append("</KVPair>");
+            sb.append("<KVPair>");
             sb.append("<Key>key0</Key>");
             sb.append("<Value>value0</Value>");
             sb.append("</KVPair>");
@@ -102,4 +104,80 @@ public final class KVStoreUnitTests {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void binarySnapshotRoundTripTest() throws KVException {
+        final KVStore kvStoreA = new KVStore(4);
+        for (int i = 0; i < 100; i++) {
+            kvStoreA.put("key" + i, "value <&> " + i);
+        }
+        final String fileName = "KVStore.bin";
+        kvStoreA.dumpToFile(fileName, KVStore.SnapshotFormat.BINARY);
+        new File(fileName).deleteOnExit();
+
+        final KVStore kvStoreB = new KVStore();
+        kvStoreB.restoreFromFile(fileName);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value <&> " + i, kvStoreB.get("key" + i));
+        }
+    }
+
+    @Test
+    public void memoryEntriesWalkEveryStripeTest() {
+        final MemoryStoreEngine engine = new MemoryStoreEngine(8);
+        for (int i = 0; i < 100; i++) {
+            engine.put("key" + i, "value" + i);
+        }
+        final Map<String, String> seen = new HashMap<String, String>();
+        for (final Map.Entry<String, String> entry : engine.entries()) {
+            seen.put(entry.getKey(), entry.getValue());
+            // a live view: writing meanwhile must not break the iteration
+            engine.put("new" + entry.getKey(), "value");
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, seen.get("key" + i));
+        }
+        assertFalse(new MemoryStoreEngine(4).entries().iterator().hasNext());
+    }
+
+    @Test
+    public void xmlSnapshotEscapesTextTest() throws KVException {
+        final KVStore kvStoreA = new KVStore();
+        kvStoreA.put("a<b", "c&d>e");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        kvStoreA.writeSnapshot(out, KVStore.SnapshotFormat.XML);
+
+        final KVStore kvStoreB = new KVStore();
+        kvStoreB.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("c&d>e", kvStoreB.get("a<b"));
+    }
+
+    @Test
+    public void filterIsRebuiltOnRestoreTest() throws KVException {
+        final KVStore kvStoreA = new KVStore();
+        for (int i = 0; i < 500; i++) {
+            kvStoreA.put("key" + i, "value" + i);
+        }
+        final String fileName = "KVStoreFilter.bin";
+        kvStoreA.dumpToFile(fileName, KVStore.SnapshotFormat.BINARY);
+        new File(fileName).deleteOnExit();
+
+        final KVStore kvStoreB = new KVStore();
+        kvStoreB.enableFilter(10, 0.01);
+        kvStoreB.put("extra", "value");
+        kvStoreB.restoreFromFile(fileName);
+        // grown to fit what was restored
+        assertTrue(kvStoreB.getFilter().getExpectedKeys() >= 501);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(kvStoreB.mightContain("key" + i));
+        }
+        assertTrue(kvStoreB.mightContain("extra"));
+
+        kvStoreB.del("extra");
+        int ruledOut = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (!kvStoreB.mightContain("absent" + i)) ++ruledOut;
+        }
+        assertTrue(ruledOut > 900);
+    }
+}
@@ -0,0 +1,43 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public final class LatencyHistogramUnitTests {
+
+    @Test public final void testBucketsCoverEveryValue() {
+        long previous = -1;
+        for (int bucket = 0; bucket < 960; ++bucket) {
+            final long lowest = LatencyHistogram.lowestValueIn(bucket);
+            assertTrue(lowest > previous);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lowest));
+            if (lowest > 0) {
+                assertEquals(bucket - 1, LatencyHistogram.bucketOf(lowest - 1));
+            }
+            previous = lowest;
+        }
+        assertEquals(959, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test public final void testPercentilesAreWithinBucketPrecision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; ++i) {
+            histogram.record(i * 1000);
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500, snapshot.getMean());
+        assertEquals(500000, snapshot.getPercentile(0.5), 500000 * 0.07);
+        assertEquals(990000, snapshot.getPercentile(0.99), 990000 * 0.07);
+        assertEquals(1000000, snapshot.getMax(), 1000000 * 0.07);
+        assertTrue(snapshot.getMax() >= 1000000);
+    }
+
+    @Test public final void testEmptySnapshot() {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMean());
+        assertEquals(0, snapshot.getPercentile(0.99));
+    }
+}
@@ -0,0 +1,56 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public final class LatencyModelUnitTests {
+
+    @Test public final void testForName() {
+        assertNull(LatencyModel.forName("none"));
+        assertSame(LatencyModel.SSD, LatencyModel.forName("SSD"));
+        assertSame(LatencyModel.AUTOGRADER, LatencyModel.forName("autograder"));
+        try {
+            LatencyModel.forName("tape");
+            fail("expected an unknown model to be rejected");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test public final void testStoreAccessTakesAtLeastTheModelledTime() throws Exception {
+        final LatencyModel model = new LatencyModel(0, 2000000, 0, 0);
+        final long start = System.nanoTime();
+        model.storeAccess();
+        assertTrue(System.nanoTime() - start >= 2000000);
+    }
+
+    @Test(timeout = 10000) public final void testInterruptEndsStoreAccess() throws Exception {
+        final LatencyModel model = new LatencyModel(0, 60L * 1000000000L, 0, 0);
+        Thread.currentThread().interrupt();
+        try {
+            model.storeAccess();
+            fail("expected an InterruptedIOException");
+        } catch (final java.io.InterruptedIOException e) {
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test public final void testSimulatedFailuresAreIOErrors() throws Exception {
+        final KVStore store = new KVStore();
+        store.put("key", "value");
+        final LatencyModel previous = AutoGrader.getLatencyModel();
+        AutoGrader.setLatencyModel(new LatencyModel(0, 0, 0, 0).withStoreFailureRate(1.0));
+        try {
+            store.get("key");
+            fail("expected the simulated failure");
+        } catch (final KVException e) {
+            assertEquals("IO Error", e.getMsg().getMessage());
+        } finally {
+            AutoGrader.setLatencyModel(previous);
+        }
+        assertEquals("value", store.get("key"));
+    }
+}
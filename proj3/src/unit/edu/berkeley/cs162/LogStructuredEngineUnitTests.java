@@ -0,0 +1,205 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+
+public final class LogStructuredEngineUnitTests {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("kvstore").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private LogStructuredEngine open(final long maxSegmentBytes) throws IOException {
+        return new LogStructuredEngine(dir, maxSegmentBytes, false, false);
+    }
+
+    @Test
+    public void testDataSurvivesReopen() throws IOException {
+        LogStructuredEngine engine = open(LogStructuredEngine.DEFAULT_MAX_SEGMENT_BYTES);
+        engine.put("a", "1");
+        engine.put("b", "2");
+        engine.put("a", "3");
+        engine.put("c", "4");
+        engine.remove("c");
+        engine.close();
+
+        engine = open(LogStructuredEngine.DEFAULT_MAX_SEGMENT_BYTES);
+        assertEquals("3", engine.get("a"));
+        assertEquals("2", engine.get("b"));
+        assertNull(engine.get("c"));
+        engine.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testSegmentsSurviveInterruptedThreads() throws IOException {
+        LogStructuredEngine engine = open(LogStructuredEngine.DEFAULT_MAX_SEGMENT_BYTES);
+        engine.put("a", "1");
+
+        Thread.currentThread().interrupt();
+        try {
+            engine.get("a");
+            fail("expected a ClosedByInterruptException");
+        } catch (final ClosedByInterruptException e) {
+            // the interrupt closed the active segment's channel
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals("1", engine.get("a"));
+
+        Thread.currentThread().interrupt();
+        try {
+            engine.put("b", "2");
+            fail("expected a ClosedByInterruptException");
+        } catch (final ClosedByInterruptException e) {
+            // and again, this time while appending
+        } finally {
+            Thread.interrupted();
+        }
+        engine.put("b", "3");
+        assertEquals("1", engine.get("a"));
+        assertEquals("3", engine.get("b"));
+        engine.close();
+
+        engine = open(LogStructuredEngine.DEFAULT_MAX_SEGMENT_BYTES);
+        assertEquals("1", engine.get("a"));
+        assertEquals("3", engine.get("b"));
+        engine.close();
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws IOException {
+        LogStructuredEngine engine = open(LogStructuredEngine.DEFAULT_MAX_SEGMENT_BYTES);
+        engine.put("a", "1");
+        engine.put("b", "2");
+        engine.close();
+
+        // a crash halfway through appending a record
+        final File[] segments = dir.listFiles();
+        assertEquals(1, segments.length);
+        final FileOutputStream out = new FileOutputStream(segments[0], true);
+        out.write(new byte[] {1, 2, 3, 4, 1, 0, 0, 0, 1, 0, 0, 0});
+        out.close();
+
+        engine = open(LogStructuredEngine.DEFAULT_MAX_SEGMENT_BYTES);
+        assertEquals(12, engine.getTruncatedBytes());
+        assertEquals("1", engine.get("a"));
+        assertEquals("2", engine.get("b"));
+        engine.put("c", "3");
+        engine.close();
+
+        engine = open(LogStructuredEngine.DEFAULT_MAX_SEGMENT_BYTES);
+        assertEquals(0, engine.getTruncatedBytes());
+        assertEquals("3", engine.get("c"));
+        engine.close();
+    }
+
+    @Test
+    public void testCompactionKeepsLiveData() throws IOException {
+        LogStructuredEngine engine = open(256);
+        for (int round = 0; round < 50; ++round) {
+            for (int i = 0; i < 10; ++i) {
+                engine.put("key" + i, "value" + round);
+            }
+        }
+        engine.remove("key0");
+        final int before = engine.numSegments();
+        assertTrue(engine.shouldCompact());
+
+        engine.compact();
+        assertTrue(engine.numSegments() < before);
+        assertNull(engine.get("key0"));
+        for (int i = 1; i < 10; ++i) {
+            assertEquals("value49", engine.get("key" + i));
+        }
+        engine.close();
+
+        engine = open(256);
+        assertNull(engine.get("key0"));
+        for (int i = 1; i < 10; ++i) {
+            assertEquals("value49", engine.get("key" + i));
+        }
+        engine.close();
+    }
+
+    @Test
+    public void testUnfinishedCompactionIsDiscarded() throws IOException {
+        LogStructuredEngine engine = open(LogStructuredEngine.DEFAULT_MAX_SEGMENT_BYTES);
+        engine.put("a", "1");
+        engine.close();
+
+        final File compacted = new File(dir, "segment-0000000001.compacted");
+        final FileOutputStream out = new FileOutputStream(compacted);
+        out.write(new byte[] {9, 9, 9});
+        out.close();
+
+        engine = open(LogStructuredEngine.DEFAULT_MAX_SEGMENT_BYTES);
+        assertFalse(compacted.exists());
+        assertEquals("1", engine.get("a"));
+        engine.close();
+    }
+
+    @Test
+    public void testPersistentKVStore() throws KVException {
+        KVStore store = new KVStore(dir);
+        store.put("key", "value");
+        store.close();
+
+        store = new KVStore(dir);
+        assertEquals("value", store.get("key"));
+        store.del("key");
+        try {
+            store.get("key");
+            fail("deleted key should not exist");
+        } catch (final KVException e) {
+            // expected
+        }
+        store.close();
+    }
+
+    @Test
+    public void testOpenValueSurvivesCompaction() throws IOException {
+        final LogStructuredEngine engine = open(256);
+        engine.put("big", "0123456789");
+        assertNull(engine.openValue("big", 11));
+        assertNull(engine.openValue("missing", 0));
+        final FileRegion region = engine.openValue("big", 10);
+        assertEquals(10, region.remaining());
+
+        // overwrite the key until its segment is sealed, then compact the segment away
+        for (int round = 0; round < 50; ++round) {
+            engine.put("big", "value" + round);
+        }
+        engine.compact();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        region.transferTo(Channels.newChannel(out));
+        region.close();
+        assertEquals("0123456789", out.toString("UTF-8"));
+        assertEquals("value49", engine.get("big"));
+        engine.close();
+    }
+}
@@ -0,0 +1,65 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public final class NearCacheUnitTests {
+
+    @Test public final void testCountsHitsMissesAndEvictions() throws Exception {
+        final NearCache cache = new NearCache(1, 2, 60000);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test public final void testEntriesExpire() throws Exception {
+        final NearCache cache = new NearCache(4, 4, 50);
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+
+        // writing the key again restarts its time to live
+        cache.put("a", "2");
+        assertEquals("2", cache.get("a"));
+    }
+
+    @Test public final void testInvalidate() throws Exception {
+        final NearCache cache = new NearCache(4, 4, 60000);
+        cache.put("a", "1");
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+    }
+
+    @Test public final void testLateResponsesAreNotCached() throws Exception {
+        final NearCache cache = new NearCache(4, 4, 60000);
+
+        // a get is in flight when the client's own put of the key starts
+        final long read = cache.startRead("a");
+        final long write = cache.startWrite("a");
+        cache.fill("a", "old", read);
+        assertNull(cache.get("a"));
+        cache.finishWrite("a", "new", write);
+        assertEquals("new", cache.get("a"));
+
+        // two puts in flight at once; the server may have applied either one last
+        final long first = cache.startWrite("a");
+        final long second = cache.startWrite("a");
+        cache.finishWrite("a", "2", second);
+        cache.finishWrite("a", "1", first);
+        assertNull(cache.get("a"));
+
+        // a get that finishes after a put finished may have read before it
+        final long late = cache.startRead("a");
+        cache.finishWrite("a", "3", cache.startWrite("a"));
+        cache.fill("a", "stale", late);
+        assertEquals("3", cache.get("a"));
+    }
+}
@@ -5,6 +5,9 @@ import static org.junit.Assert.*;
 import org.junit.Test;
 
 // Java
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public final class ThreadPoolUnitTests {
@@ -40,4 +43,150 @@ public final class ThreadPoolUnitTests {
         assertTrue(atom.get() == 1); // check that the task was actually executed
     }
 
+    /**
+     * @return a job that waits for release, counting itself into running meanwhile.
+     */
+    private static Runnable blocker(final CountDownLatch release, final AtomicInteger running) {
+        return new Runnable() {
+            public void run() {
+                running.incrementAndGet();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    // Eat it
+                }
+            }
+        };
+    }
+
+    private static void waitFor(final AtomicInteger value, final int expected) throws InterruptedException {
+        for (int i = 0; i < 200 && value.get() != expected; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, value.get());
+    }
+
+    @Test public final void testStartsAllThreads() {
+        final ThreadPool pool = new ThreadPool(NUM_THREADS);
+        assertEquals(NUM_THREADS, pool.getPoolSize());
+        for (final Thread t : pool.threads) {
+            assertTrue(t.isAlive());
+        }
+        pool.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public final void testRejectsWhenQueueIsFull() throws Exception {
+        final ThreadPool pool = new ThreadPool(1, 2, ThreadPool.RejectionPolicy.REJECT);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        pool.addToQueue(blocker(release, running));
+        waitFor(running, 1);
+
+        pool.addToQueue(blocker(release, running));
+        pool.addToQueue(blocker(release, running));
+        assertEquals(2, pool.getQueueDepth());
+        try {
+            pool.addToQueue(blocker(release, running));
+            fail("expected the full pool to reject the job");
+        } catch (final RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, pool.getRejectedTaskCount());
+
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(2, TimeUnit.SECONDS));
+        assertEquals(3, pool.getCompletedTaskCount());
+    }
+
+    @Test(timeout = 5000)
+    public final void testCallerRunsWhenQueueIsFull() throws Exception {
+        final ThreadPool pool = new ThreadPool(1, 1, ThreadPool.RejectionPolicy.CALLER_RUNS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        pool.addToQueue(blocker(release, running));
+        waitFor(running, 1);
+        pool.addToQueue(blocker(release, running));
+
+        final Thread[] ranOn = new Thread[1];
+        pool.addToQueue(new Runnable() {
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+            }
+        });
+        assertSame(Thread.currentThread(), ranOn[0]);
+        release.countDown();
+        pool.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public final void testResize() throws Exception {
+        final ThreadPool pool = new ThreadPool(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        for (int i = 0; i < 6; ++i) {
+            pool.addToQueue(blocker(release, running));
+        }
+        waitFor(running, 2);
+
+        pool.resize(4);
+        assertEquals(4, pool.getPoolSize());
+        waitFor(running, 4);
+
+        pool.resize(1);
+        assertEquals(1, pool.getPoolSize());
+        release.countDown();
+        waitFor(running, 6);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(2, TimeUnit.SECONDS));
+        assertEquals(6, pool.getCompletedTaskCount());
+    }
+
+    @Test(timeout = 5000)
+    public final void testShutdownRunsQueuedJobs() throws Exception {
+        final ThreadPool pool = new ThreadPool(2);
+        final AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 50; ++i) {
+            pool.addToQueue(new Runnable() {
+                public void run() {
+                    done.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.addToQueue(new Runnable() {
+                public void run() {
+                }
+            });
+            fail("expected a shut down pool to reject the job");
+        } catch (final RejectedExecutionException e) {
+            // expected
+        }
+        assertTrue(pool.awaitTermination(2, TimeUnit.SECONDS));
+        assertEquals(50, done.get());
+    }
+
+    @Test(timeout = 5000)
+    public final void testFailedJobsAreCounted() throws Exception {
+        final ThreadPool pool = new ThreadPool(1);
+        final AtomicInteger done = new AtomicInteger();
+        pool.addToQueue(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("bad job");
+            }
+        });
+        pool.addToQueue(new Runnable() {
+            public void run() {
+                done.incrementAndGet();
+            }
+        });
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(2, TimeUnit.SECONDS));
+        assertEquals(1, done.get());
+        assertEquals(2, pool.getCompletedTaskCount());
+        assertEquals(1, pool.getFailedTaskCount());
+    }
+
 }